@@ -0,0 +1,126 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.connection;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding a receive buffer full of responses, as the read loop does. Nobody is waiting on
+ * the responses, so this measures parsing the header and body up to the point a response
+ * would be handed to its caller.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+    private static final int RESPONSES = 64;
+
+    @Param({"get", "getk", "miss", "set", "increment"})
+    public String response;
+
+    @Param({"16", "512", "4096"})
+    public int valueSize;
+
+    private Connection connection;
+    private ByteBuffer stream;
+
+    @Setup
+    public void setUp() {
+        BufferPool pool = BufferPool.create(false, 1024 * 1024);
+        // never connected, only its read side is used
+        connection = new Connection(null, (task, delayNanos) -> () -> { }, 1024, 0, pool);
+
+        byte[] key = "user:1234567890:profile".getBytes(StandardCharsets.UTF_8);
+        byte[] value = new byte[valueSize];
+        ByteBuffer buffer = ByteBuffer.allocate(RESPONSES * (24 + 8 + key.length + value.length));
+        for (int i = 0; i < RESPONSES; i++) {
+            write(buffer, response, i, key, value);
+        }
+        buffer.flip();
+        stream = buffer;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RESPONSES)
+    public ByteBuffer decode() {
+        stream.position(0);
+        return connection.decodeResponses(stream);
+    }
+
+    private static void write(ByteBuffer buffer, String response, int opaque, byte[] key, byte[] value) {
+        switch (response) {
+            case "get":
+                header(buffer, Opcodes.get, 0, 4, 0, 4 + value.length, opaque);
+                buffer.putInt(0);
+                buffer.put(value);
+                break;
+            case "getk":
+                header(buffer, Opcodes.getk, key.length, 4, 0, 4 + key.length + value.length, opaque);
+                buffer.putInt(0);
+                buffer.put(key);
+                buffer.put(value);
+                break;
+            case "miss":
+                byte[] error = "Not found".getBytes(StandardCharsets.US_ASCII);
+                header(buffer, Opcodes.get, 0, 0, 1, error.length, opaque);
+                buffer.put(error);
+                break;
+            case "set":
+                header(buffer, Opcodes.set, 0, 0, 0, 0, opaque);
+                break;
+            case "increment":
+                header(buffer, Opcodes.increment, 0, 0, 0, 8, opaque);
+                buffer.putLong(opaque);
+                break;
+            default:
+                throw new IllegalArgumentException("no such response " + response);
+        }
+    }
+
+    private static void header(ByteBuffer buffer,
+                               byte opcode,
+                               int keyLength,
+                               int extrasLength,
+                               int status,
+                               int totalBody,
+                               int opaque) {
+        buffer.put((byte) 0x81); // response magic number
+        buffer.put(opcode);
+        buffer.putChar((char) keyLength);
+        buffer.put((byte) extrasLength);
+        buffer.put((byte) 0x00); // data type
+        buffer.putChar((char) status);
+        buffer.putInt(totalBody);
+        buffer.putInt(opaque);
+        buffer.putLong(opaque + 1); // cas
+    }
+}
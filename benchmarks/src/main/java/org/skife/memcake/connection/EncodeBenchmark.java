@@ -0,0 +1,100 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.connection;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding a request packet, as the write loop does, for each kind of command. The leased
+ * header buffer goes straight back to the pool, so a steady state encode allocates nothing
+ * beyond what the command itself asks for.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodeBenchmark {
+    private static final Duration TIMEOUT = Duration.ofSeconds(1);
+
+    @Param({"get", "getkq", "set", "setq", "increment", "delete", "noop"})
+    public String opcode;
+
+    /**
+     * Bytes of value, for commands which carry one. Past {@link Command#MAX_INLINE_VALUE} the
+     * value is wrapped rather than copied.
+     */
+    @Param({"16", "512", "4096"})
+    public int valueSize;
+
+    private final BufferPool pool = BufferPool.create(false, 1024 * 1024);
+    private final List<ByteBuffer> packet = new ArrayList<>(2);
+    private Command command;
+    private int opaque;
+
+    @Setup
+    public void setUp() {
+        byte[] key = "user:1234567890:profile".getBytes(StandardCharsets.UTF_8);
+        byte[] value = new byte[valueSize];
+        command = command(opcode, key, value);
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        packet.clear();
+        ByteBuffer header = command.encode(opaque++, pool, packet);
+        pool.release(header);
+        return header;
+    }
+
+    static Command command(String opcode, byte[] key, byte[] value) {
+        switch (opcode) {
+            case "get":
+                return new GetCommand(new CompletableFuture<>(), key, TIMEOUT);
+            case "getkq":
+                return new GetKQuietCommand(new CompletableFuture<>(), key, TIMEOUT);
+            case "set":
+                return new SetCommand(new CompletableFuture<>(), key, 0, 0, value, Version.NONE, TIMEOUT);
+            case "setq":
+                return new SetQuietCommand(new CompletableFuture<>(), key, 0, 0, value, Version.NONE, TIMEOUT);
+            case "increment":
+                return new IncrementCommand(new CompletableFuture<>(), key, 1, 0, 0, Version.NONE, TIMEOUT);
+            case "delete":
+                return new DeleteCommand(new CompletableFuture<>(), key, Version.NONE, TIMEOUT);
+            case "noop":
+                return new NoOpCommand(new CompletableFuture<>(), TIMEOUT);
+            default:
+                throw new IllegalArgumentException("no such command " + opcode);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.connection;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.skife.memcake.testing.EmbeddedMemcached;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trips through a connection, keeping {@link #depth} requests in flight at all times.
+ * Each invocation waits for the oldest request and sends another in its place, so the score is
+ * requests per second at that pipeline depth.
+ * <p>
+ * Runs against an {@link EmbeddedMemcached}, so results are repeatable anywhere, unless a real
+ * memcached is given with {@code -Dmemcake.address=host:port}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+    private static final int MULTI_KEYS = 16;
+
+    @Param({"1", "16", "128"})
+    public int depth;
+
+    @Param({"100"})
+    public int valueSize;
+
+    /**
+     * Latency the embedded server adds to every response, to see how deep a pipeline it takes
+     * to hide a round trip.
+     */
+    @Param({"0"})
+    public int latencyMicros;
+
+    @Param({"aio", "selector"})
+    public String transport;
+
+    private EmbeddedMemcached server;
+    private SelectorTransport selector;
+    private HashedWheelTimer timer;
+    private Connection connection;
+    private CompletableFuture<?>[] window;
+    private int next;
+
+    private byte[] key;
+    private byte[] value;
+    private final List<Key> keys = new ArrayList<>(MULTI_KEYS);
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        InetSocketAddress address;
+        String given = System.getProperty("memcake.address");
+        if (given == null) {
+            server = EmbeddedMemcached.start().withLatency(Duration.ofNanos(latencyMicros * 1000L));
+            address = server.getAddress();
+        }
+        else {
+            int colon = given.lastIndexOf(':');
+            address = new InetSocketAddress(given.substring(0, colon), Integer.parseInt(given.substring(colon + 1)));
+        }
+        timer = HashedWheelTimer.create();
+        Transport through = AsynchronousTransport.create();
+        if (transport.equals("selector")) {
+            selector = SelectorTransport.create(1);
+            through = selector;
+        }
+        // a request's future completes a moment before its slot is given back, the window is
+        // what bounds the depth so leave headroom for the stragglers
+        connection = Connection.open(address, depth * 2, through, timer).get();
+        window = new CompletableFuture<?>[depth];
+
+        key = "pipeline".getBytes(StandardCharsets.UTF_8);
+        value = new byte[valueSize];
+        connection.set(key, 0, 0, value, Version.NONE, TIMEOUT).get();
+        for (int i = 0; i < MULTI_KEYS; i++) {
+            byte[] k = ("pipeline:" + i).getBytes(StandardCharsets.UTF_8);
+            connection.set(k, 0, 0, value, Version.NONE, TIMEOUT).get();
+            keys.add(Key.of(k));
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void drain() {
+        for (int i = 0; i < window.length; i++) {
+            if (window[i] != null) {
+                window[i].join();
+                window[i] = null;
+            }
+        }
+        next = 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        connection.close();
+        timer.close();
+        if (selector != null) {
+            selector.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Benchmark
+    public Object get() {
+        Object oldest = retire();
+        admit(connection.get(key, TIMEOUT));
+        return oldest;
+    }
+
+    @Benchmark
+    public Object set() {
+        Object oldest = retire();
+        admit(connection.set(key, 0, 0, value, Version.NONE, TIMEOUT));
+        return oldest;
+    }
+
+    /**
+     * A get of {@value #MULTI_KEYS} keys, sent as one batch of quiet gets.
+     */
+    @Benchmark
+    public Object getMulti() {
+        Object oldest = retire();
+        admit(connection.getMulti(keys, TIMEOUT));
+        return oldest;
+    }
+
+    /**
+     * Wait for the request whose slot in the window is next, if any, to make room for another.
+     */
+    private Object retire() {
+        CompletableFuture<?> oldest = window[next];
+        return oldest == null ? null : oldest.join();
+    }
+
+    private void admit(CompletableFuture<?> request) {
+        window[next] = request;
+        next = next + 1 == window.length ? 0 : next + 1;
+    }
+}
@@ -26,6 +26,6 @@ public class AddOp extends SetOp {
 
     @Override
     public CompletableFuture<Version> execute() {
-        return memcake.call(key, (c) -> c.add(key, flags, expires, value, timeout));
+        return memcake.write(key, (c) -> c.add(key, flags, expires, value, timeout));
     }
 }
@@ -43,7 +43,7 @@ public class AddQuietOp {
     }
 
     public CompletableFuture<Void> execute() {
-        return memcake.call(key, (c) -> c.addq(key, flags, expires, value, timeout));
+        return memcake.write(key, (c) -> c.addq(key, flags, expires, value, timeout));
     }
 
     public AddQuietOp timeout(Duration timeout) {
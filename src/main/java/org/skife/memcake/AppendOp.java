@@ -44,6 +44,6 @@ public class AppendOp {
     }
 
     public CompletableFuture<Version> execute() {
-        return memcake.call(key, (c) -> c.append(key, value, version, timeout));
+        return memcake.write(key, (c) -> c.append(key, value, version, timeout));
     }
 }
@@ -44,6 +44,6 @@ public class AppendQuietOp {
     }
 
     public CompletableFuture<Void> execute() {
-        return memcake.call(key, (c) -> c.appendq(key, value, cas, timeout));
+        return memcake.write(key, (c) -> c.appendq(key, value, cas, timeout));
     }
 }
@@ -0,0 +1,157 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake;
+
+import org.skife.memcake.connection.Counter;
+import org.skife.memcake.connection.Key;
+import org.skife.memcake.connection.Value;
+import org.skife.memcake.connection.Version;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Synchronous calls on a {@link Memcake}, for code which runs a thread per request.
+ * <p>
+ * Calls go out on the client's connections, pipelined along with everything else, and the
+ * calling thread parks until its response is read. Values are decoded on the calling thread.
+ * Any number of threads can share the client's few connections this way.
+ * <p>
+ * The calling thread parks on the connection's own future, which the I/O thread wakes it from
+ * before doing anything else, when the call goes to a single connection which is up and the
+ * client has neither a near cache ({@link Memcake#withNearCache(NearCache)}) nor coalesced
+ * gets ({@link Memcake#withCoalescedGets()}). Otherwise it waits on a future composed from the
+ * connection's, as any {@link java.util.concurrent.CompletableFuture} is waited on. That is the
+ * case for a {@link #flush()}, or a {@link #getMulti(Collection)} spanning servers, against
+ * more than one server, for a call made while its connection is reconnecting, and for any get
+ * or write on a client with a near cache or coalesced gets.
+ * <p>
+ * Every call uses the client's default timeout. Failures are reported as by
+ * {@link java.util.concurrent.Future#get()}: an {@link ExecutionException} wrapping a
+ * {@link org.skife.memcake.connection.StatusException} or
+ * {@link java.util.concurrent.TimeoutException}, for instance.
+ */
+public final class BlockingMemcake {
+    private final Memcake memcake;
+    private final Duration timeout;
+
+    private BlockingMemcake(Memcake memcake) {
+        this.memcake = memcake;
+        this.timeout = memcake.defaultTimeout();
+    }
+
+    /**
+     * @param memcake client to make calls on, calls fail once it is closed
+     */
+    public static BlockingMemcake create(Memcake memcake) {
+        return new BlockingMemcake(memcake);
+    }
+
+    public Optional<Value> get(byte[] key) throws InterruptedException, ExecutionException {
+        return memcake.get(key, timeout).get();
+    }
+
+    public Optional<Value> get(String key) throws InterruptedException, ExecutionException {
+        return get(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @throws IllegalStateException if the value cannot be decoded by {@code transcoder}
+     */
+    public <T> Optional<T> get(String key, Transcoder<T> transcoder) throws InterruptedException, ExecutionException {
+        Optional<Value> value = get(key);
+        return value.isPresent() ? Optional.of(transcoder.decode(value.get())) : Optional.empty();
+    }
+
+    /**
+     * @return the values which were found, by key. Keys which were not found are absent
+     */
+    public Map<Key, Value> getMulti(Collection<byte[]> keys) throws InterruptedException, ExecutionException {
+        List<Key> ks = new ArrayList<>(keys.size());
+        for (byte[] key : keys) {
+            ks.add(Key.of(key));
+        }
+        return memcake.callMulti(ks, (c, k) -> c.getMulti(k, timeout)).get();
+    }
+
+    public Version set(byte[] key, byte[] value) throws InterruptedException, ExecutionException {
+        return set(key, value, 0, 0);
+    }
+
+    public Version set(String key, String value) throws InterruptedException, ExecutionException {
+        return set(key.getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public Version set(byte[] key, byte[] value, int flags, int expires) throws InterruptedException, ExecutionException {
+        return memcake.set(key, flags, expires, value, Version.NONE, timeout).get();
+    }
+
+    /**
+     * Set {@code value} as encoded by {@code transcoder}, which also decides the flags.
+     */
+    public <T> Version set(String key, T value, Transcoder<T> transcoder) throws InterruptedException, ExecutionException {
+        Value encoded = transcoder.encode(value);
+        return set(key.getBytes(StandardCharsets.UTF_8), encoded.getValue(), encoded.getFlags(), 0);
+    }
+
+    /**
+     * Set only if the value is still at {@code cas}, as read by a get.
+     */
+    public Version cas(byte[] key, byte[] value, Version cas) throws InterruptedException, ExecutionException {
+        return memcake.set(key, 0, 0, value, cas, timeout).get();
+    }
+
+    public Version add(byte[] key, byte[] value, int expires) throws InterruptedException, ExecutionException {
+        return memcake.write(key, (c) -> c.add(key, 0, expires, value, timeout)).get();
+    }
+
+    public Version replace(byte[] key, byte[] value, int expires) throws InterruptedException, ExecutionException {
+        return memcake.write(key, (c) -> c.replace(key, 0, expires, value, Version.NONE, timeout)).get();
+    }
+
+    public void delete(byte[] key) throws InterruptedException, ExecutionException {
+        memcake.write(key, (c) -> c.delete(key, Version.NONE, timeout)).get();
+    }
+
+    public void delete(String key) throws InterruptedException, ExecutionException {
+        delete(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param initial value to create the counter with if it does not exist
+     */
+    public Counter increment(byte[] key, long delta, long initial, int expires) throws InterruptedException, ExecutionException {
+        return memcake.write(key, (c) -> c.increment(key, delta, initial, expires, Version.NONE, timeout)).get();
+    }
+
+    /**
+     * @param initial value to create the counter with if it does not exist
+     */
+    public Counter decrement(byte[] key, long delta, long initial, int expires) throws InterruptedException, ExecutionException {
+        return memcake.write(key, (c) -> c.decrement(key, delta, initial, expires, Version.NONE, timeout)).get();
+    }
+
+    /**
+     * Flush every server.
+     */
+    public void flush() throws InterruptedException, ExecutionException {
+        memcake.writeAll((c) -> c.flush(0, timeout)).get();
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake;
+
+import org.skife.memcake.connection.Value;
+import org.skife.memcake.connection.Version;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates large values on their way to the server, see
+ * {@link Transcoders#compressing(Transcoder, int)}.
+ * <p>
+ * Deflaters and inflaters hold native memory and are costly to create, so they are pooled,
+ * along with a scratch buffer to deflate into and inflate out of. The only allocation per
+ * value is the exactly sized array handed on.
+ */
+final class CompressingTranscoder<T> implements Transcoder<T> {
+    // scratch buffers bigger than this are dropped rather than kept idle in the pool
+    private static final int MAX_POOLED_SCRATCH = 1024 * 1024;
+    private static final int MAX_IDLE_CODECS = 2 * Runtime.getRuntime().availableProcessors();
+
+    private static final Queue<Codec> idle = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger idleCount = new AtomicInteger();
+
+    private final Transcoder<T> transcoder;
+    private final int threshold;
+
+    CompressingTranscoder(Transcoder<T> transcoder, int threshold) {
+        this.transcoder = transcoder;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public Value encode(T value) {
+        Value plain = transcoder.encode(value);
+        byte[] bytes = plain.getValue();
+        if (bytes.length < threshold || (plain.getFlags() & Transcoders.COMPRESSED) != 0) {
+            return plain;
+        }
+        Codec codec = acquire();
+        try {
+            Deflater deflater = codec.deflater;
+            deflater.setInput(bytes);
+            deflater.finish();
+            // only worth storing compressed if it comes out smaller
+            byte[] out = codec.scratch(bytes.length);
+            int length = 0;
+            while (!deflater.finished() && length < bytes.length) {
+                length += deflater.deflate(out, length, bytes.length - length);
+            }
+            if (!deflater.finished() || length >= bytes.length) {
+                return plain;
+            }
+            return Value.of(Version.NONE, plain.getFlags() | Transcoders.COMPRESSED, Arrays.copyOf(out, length));
+        } finally {
+            release(codec);
+        }
+    }
+
+    @Override
+    public T decode(Value value) {
+        if ((value.getFlags() & Transcoders.COMPRESSED) == 0) {
+            return transcoder.decode(value);
+        }
+        byte[] bytes = value.getValue();
+        Codec codec = acquire();
+        try {
+            Inflater inflater = codec.inflater;
+            inflater.setInput(bytes);
+            byte[] out = codec.scratch(Math.max(bytes.length * 4, 64));
+            int length = 0;
+            while (!inflater.finished()) {
+                if (length == out.length) {
+                    out = codec.grow();
+                }
+                int n = inflater.inflate(out, length, out.length - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("compressed value is truncated");
+                }
+                length += n;
+            }
+            return transcoder.decode(Value.of(value.getVersion(),
+                                              value.getFlags() & ~Transcoders.COMPRESSED,
+                                              Arrays.copyOf(out, length)));
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("compressed value is corrupt", e);
+        } finally {
+            release(codec);
+        }
+    }
+
+    private static Codec acquire() {
+        Codec codec = idle.poll();
+        if (codec == null) {
+            return new Codec();
+        }
+        idleCount.decrementAndGet();
+        return codec;
+    }
+
+    private static void release(Codec codec) {
+        codec.deflater.reset();
+        codec.inflater.reset();
+        if (codec.scratch.length > MAX_POOLED_SCRATCH) {
+            codec.scratch = new byte[0];
+        }
+        if (idleCount.incrementAndGet() > MAX_IDLE_CODECS) {
+            idleCount.decrementAndGet();
+            codec.end();
+            return;
+        }
+        idle.add(codec);
+    }
+
+    private static final class Codec {
+        private final Deflater deflater = new Deflater();
+        private final Inflater inflater = new Inflater();
+        private byte[] scratch = new byte[0];
+
+        byte[] scratch(int size) {
+            if (scratch.length < size) {
+                scratch = new byte[size];
+            }
+            return scratch;
+        }
+
+        byte[] grow() {
+            scratch = Arrays.copyOf(scratch, scratch.length * 2);
+            return scratch;
+        }
+
+        void end() {
+            deflater.end();
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake;
+
+import org.skife.memcake.connection.CompletionStrategy;
+import org.skife.memcake.connection.Connection;
+import org.skife.memcake.connection.Metrics;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * A single, self healing, connection to a server. Reconnects whenever the underlying
+ * connection fails, parking calls made in the meantime until the next attempt finishes.
+ */
+class ConnectionSlot {
+
+    // calls made while not connected, each is run exactly once with either a new connection
+    // or the exception from a connection attempt which started after the call was made.
+    private final LinkedBlockingQueue<BiConsumer<Connection, Throwable>> reconnectQueue = new LinkedBlockingQueue<>();
+    private final AtomicReference<Connection> conn = new AtomicReference<>();
+    private final AtomicReference<State> state = new AtomicReference<>(State.DISCONNECTED);
+    private final Function<InetSocketAddress, CompletableFuture<Connection>> connector;
+    private final InetSocketAddress addr;
+    private final Metrics metrics;
+    private volatile CompletionStrategy completions = CompletionStrategy.inline();
+
+    ConnectionSlot(Function<InetSocketAddress, CompletableFuture<Connection>> connector,
+                   InetSocketAddress addr,
+                   Metrics metrics) {
+        this.connector = connector;
+        this.addr = addr;
+        this.metrics = metrics;
+    }
+
+    void connect() {
+        if (state.compareAndSet(State.DISCONNECTED, State.CONNECTING)) {
+            // we won the connect race! Calls parked from here on wait for the next attempt
+            // if this one fails, they may have been made after the server came back.
+            final List<BiConsumer<Connection, Throwable>> waiters = new ArrayList<>();
+            reconnectQueue.drainTo(waiters);
+            CompletableFuture<Connection> attempt;
+            try {
+                attempt = connector.apply(addr);
+            } catch (RuntimeException e) {
+                // treat it like any other failed attempt, rather than being stuck connecting
+                attempt = new CompletableFuture<>();
+                attempt.completeExceptionally(e);
+            }
+            attempt.whenComplete((c, e) -> {
+                if (e != null) {
+                    if (state.compareAndSet(State.CONNECTING, State.DISCONNECTED)) {
+                        // nobody is listening, don't leave them hanging until it comes back
+                        waiters.forEach((w) -> w.accept(null, e));
+                        // only try again for calls made during this attempt, otherwise the
+                        // next call will, rather than spinning while the server is down
+                        if (!reconnectQueue.isEmpty()) {
+                            connect();
+                        }
+                    }
+                    else {
+                        waiters.forEach((w) -> w.accept(null, closed()));
+                    }
+                    return;
+                }
+
+                c.setMetrics(metrics);
+                // calls are spread over the pool, so nothing else can be relied on to follow
+                // a quiet command on the same connection
+                c.setAnchorQuiets(true);
+                conn.set(c);
+                // after publishing, so either this or setCompletionStrategy sees the latest.
+                // Nothing is sent on it until it is connected, below
+                c.setCompletionStrategy(completions);
+                c.addNetworkFailureListener(() -> {
+                    if (conn.compareAndSet(c, null)) {
+                        c.close();
+                        if (state.compareAndSet(State.CONNECTED, State.DISCONNECTED)) {
+                            connect();
+                        }
+                    }
+                });
+                if (state.compareAndSet(State.CONNECTING, State.CONNECTED)) {
+                    waiters.forEach((w) -> w.accept(c, null));
+                    drainReconnectQueue(c, null);
+                }
+                else {
+                    // closed while we were connecting
+                    conn.set(null);
+                    c.close();
+                    waiters.forEach((w) -> w.accept(null, closed()));
+                }
+            });
+        }
+    }
+
+    private void drainReconnectQueue(Connection c, Throwable e) {
+        BiConsumer<Connection, Throwable> waiter;
+        while ((waiter = reconnectQueue.poll()) != null) {
+            waiter.accept(c, e);
+        }
+    }
+
+    <T> CompletableFuture<T> call(Function<Connection, CompletableFuture<T>> f) {
+        State current = state.get();
+        if (current == State.CLOSED) {
+            throw closed();
+        }
+        Connection c = conn.get();
+        // the connection may have failed but not yet been swapped out, if so wait for the next
+        if (current == State.CONNECTED && c != null && c.isOpen()) {
+            return f.apply(c);
+        }
+
+        CompletableFuture<T> nf = new CompletableFuture<T>();
+        reconnectQueue.add((nc, ce) -> {
+            if (ce != null) {
+                nf.completeExceptionally(ce);
+                return;
+            }
+            f.apply(nc).whenComplete((r, e) -> {
+                if (e != null) {
+                    nf.completeExceptionally(e);
+                }
+                else {
+                    nf.complete(r);
+                }
+            });
+        });
+        connect();
+        // the state may have changed between our check and the add
+        c = conn.get();
+        if (state.get() == State.CONNECTED && c != null && c.isOpen()) {
+            drainReconnectQueue(c, null);
+        }
+        else if (state.get() == State.CLOSED) {
+            drainReconnectQueue(null, closed());
+        }
+        return nf;
+    }
+
+    /**
+     * Applies to the current connection, and to every one after it.
+     */
+    void setCompletionStrategy(CompletionStrategy strategy) {
+        this.completions = strategy;
+        Connection c = conn.get();
+        if (c != null) {
+            c.setCompletionStrategy(strategy);
+        }
+    }
+
+    /**
+     * Number of requests outstanding on the current connection, or {@link Integer#MAX_VALUE}
+     * if there is no usable connection right now.
+     */
+    int outstanding() {
+        Connection c = conn.get();
+        if (c == null || !c.isOpen()) {
+            return Integer.MAX_VALUE;
+        }
+        return c.getRequestsInFlight();
+    }
+
+    void close() {
+        if (state.getAndSet(State.CLOSED) != State.CLOSED) {
+            Connection c = conn.getAndSet(null);
+            if (c != null) {
+                c.close();
+            }
+            drainReconnectQueue(null, closed());
+        }
+    }
+
+    private static IllegalStateException closed() {
+        return new IllegalStateException("Memcake has been closed, it may no longer be used.");
+    }
+
+    private enum State {
+        CONNECTED, CONNECTING, DISCONNECTED, CLOSED
+    }
+}
@@ -57,6 +57,6 @@ public class DecrementOp {
     }
 
     public CompletableFuture<Counter> execute() {
-        return memcake.call(key, (c) -> c.decrement(key, delta, initialValue, expires, cas, timeout));
+        return memcake.write(key, (c) -> c.decrement(key, delta, initialValue, expires, cas, timeout));
     }
 }
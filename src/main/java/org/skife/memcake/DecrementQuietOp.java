@@ -56,6 +56,6 @@ public class DecrementQuietOp {
     }
 
     public CompletableFuture<Void> execute() {
-        return memcake.call(key, (c) -> c.decrementq(key, delta, initialValue, expires, cas, timeout));
+        return memcake.write(key, (c) -> c.decrementq(key, delta, initialValue, expires, cas, timeout));
     }
 }
@@ -0,0 +1,52 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake;
+
+import org.skife.memcake.connection.Key;
+import org.skife.memcake.connection.StatusException;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+public class DeleteMultiOp {
+    private final Memcake memcake;
+    private final Set<Key> keys;
+    private Duration timeout;
+
+    DeleteMultiOp(Memcake memcake, Collection<byte[]> keys, Duration timeout) {
+        this.memcake = memcake;
+        this.keys = new LinkedHashSet<>(keys.size() * 2);
+        for (byte[] key : keys) {
+            this.keys.add(Key.of(key));
+        }
+        this.timeout = timeout;
+    }
+
+    public DeleteMultiOp timeout(Duration timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    /**
+     * @return the keys which could not be deleted, by key. Keys which did not exist are
+     * included, with a status of 1 (not found)
+     */
+    public CompletableFuture<Map<Key, StatusException>> execute() {
+        return memcake.writeMulti(keys, (c, k) -> c.deleteMulti(k, timeout));
+    }
+}
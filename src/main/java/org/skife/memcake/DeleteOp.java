@@ -42,6 +42,6 @@ public class DeleteOp {
     }
 
     public CompletableFuture<Void> execute() {
-        return memcake.call(key, (c) -> c.delete(key, cas, timeout));
+        return memcake.write(key, (c) -> c.delete(key, cas, timeout));
     }
 }
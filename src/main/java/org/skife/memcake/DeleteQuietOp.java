@@ -42,6 +42,6 @@ public class DeleteQuietOp {
     }
 
     public CompletableFuture<Void> execute() {
-        return memcake.call(key, (c) -> c.deleteq(key, cas, timeout));
+        return memcake.write(key, (c) -> c.deleteq(key, cas, timeout));
     }
 }
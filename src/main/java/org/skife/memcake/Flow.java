@@ -0,0 +1,50 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake;
+
+/**
+ * The interfaces of {@code java.util.concurrent.Flow}, which only arrived in Java 9, for
+ * streaming keys and values through a client with backpressure. They are the same as the
+ * JDK's, and Reactive Streams', so adapting between them is a matter of delegating each method.
+ *
+ * @see GetProcessor
+ * @see SetSubscriber
+ */
+public final class Flow {
+    private Flow() {
+    }
+
+    public interface Publisher<T> {
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    public interface Subscriber<T> {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T item);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    public interface Subscription {
+        void request(long n);
+
+        void cancel();
+    }
+
+    public interface Processor<T, R> extends Subscriber<T>, Publisher<R> {
+    }
+}
@@ -39,6 +39,6 @@ public class FlushOp {
 
     public CompletableFuture<Void> execute() {
         // TODO a way to indicate which one, or apply to all?
-        return memcake.call(null, (c) -> c.flush(expires, timeout));
+        return memcake.writeAll((c) -> c.flush(expires, timeout));
     }
 }
@@ -0,0 +1,96 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake;
+
+/**
+ * Count-min sketch of how often keys have been seen, with 4 bit counters, for TinyLFU
+ * admission in the {@link NearCache}.
+ * <p>
+ * Sixteen counters are packed into each long, and a key's four counters (one per row) are
+ * spread over the table by differently seeded hashes. Every {@code sampleSize} increments all
+ * counters are halved, so the popularity of keys which have gone cold decays. Not thread safe,
+ * the near cache only touches it while holding its policy lock.
+ */
+class FrequencySketch {
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int size = 0;
+
+    /**
+     * @param expectedEntries roughly how many distinct keys the cache holds at once
+     */
+    FrequencySketch(long expectedEntries) {
+        int wanted = (int) Math.max(16, Math.min(1 << 24, expectedEntries));
+        int length = Integer.highestOneBit(wanted);
+        if (length < wanted) {
+            length <<= 1;
+        }
+        this.table = new long[length];
+        this.tableMask = length - 1;
+        this.sampleSize = 10 * length;
+    }
+
+    /**
+     * @return the estimated number of times the key was seen, at most 15
+     */
+    int frequency(int hash) {
+        int frequency = Integer.MAX_VALUE;
+        for (int row = 0; row < 4; row++) {
+            int index = indexOf(hash, row);
+            int offset = counterOffset(hash, row);
+            frequency = Math.min(frequency, (int) ((table[index] >>> offset) & 0xfL));
+        }
+        return frequency;
+    }
+
+    void increment(int hash) {
+        boolean added = false;
+        for (int row = 0; row < 4; row++) {
+            int index = indexOf(hash, row);
+            int offset = counterOffset(hash, row);
+            long mask = 0xfL << offset;
+            if ((table[index] & mask) != mask) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+        if (added && ++size == sampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size /= 2;
+    }
+
+    private int indexOf(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return ((int) h) & tableMask;
+    }
+
+    private static int counterOffset(int hash, int row) {
+        // which of the long's sixteen counters, picked by a different pair of bits per row
+        return ((((hash >>> (row << 3)) & 3) << 2) + row) << 2;
+    }
+}
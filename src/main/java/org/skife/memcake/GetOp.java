@@ -13,8 +13,11 @@
  */
 package org.skife.memcake;
 
+import org.skife.memcake.connection.PooledValue;
+import org.skife.memcake.connection.StreamedValue;
 import org.skife.memcake.connection.Value;
 
+import java.nio.channels.WritableByteChannel;
 import java.time.Duration;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
@@ -37,6 +40,31 @@ public class GetOp {
 
 
     public CompletableFuture<Optional<Value>> execute() {
-        return memcake.call(key, (c) -> c.get(key, timeout));
+        return memcake.get(key, timeout);
+    }
+
+    /**
+     * Get the value decoded by {@code transcoder}. A value which cannot be decoded fails the
+     * future with an {@link IllegalStateException}.
+     */
+    public <T> CompletableFuture<Optional<T>> execute(Transcoder<T> transcoder) {
+        return execute().thenApply((ov) -> ov.map(transcoder::decode));
+    }
+
+    /**
+     * Get the value without copying it into a {@code byte[]}, for callers which only pass the
+     * bytes along. The value must be released once the caller is done with it.
+     */
+    public CompletableFuture<Optional<PooledValue>> executePooled() {
+        return memcake.call(key, (c) -> c.getPooled(key, timeout));
+    }
+
+    /**
+     * Write the value to {@code sink} as it arrives, rather than gathering it up in memory.
+     * The sink must be a blocking channel, such as a {@link java.nio.channels.FileChannel},
+     * and is written to from the connection's read loop.
+     */
+    public CompletableFuture<Optional<StreamedValue>> streamTo(WritableByteChannel sink) {
+        return memcake.call(key, (c) -> c.streamTo(key, sink, timeout));
     }
 }
@@ -0,0 +1,212 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake;
+
+import org.skife.memcake.connection.Key;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Gets a stream of keys, pipelining as many gets as the subscriber has asked for results, up
+ * to a limit on how many are outstanding at once. Keys are only requested from upstream as
+ * there is room for them, so memory use is bounded no matter how many keys go through.
+ * <p>
+ * Results are published as they arrive, which for keys on different servers may not be the
+ * order the keys came in. A failed get, such as one which timed out, fails the stream and
+ * cancels upstream. Only one subscriber is allowed.
+ *
+ * @see Memcake#streamGets(int)
+ */
+public final class GetProcessor implements Flow.Processor<byte[], Lookup> {
+    private final Memcake memcake;
+    private final int maxOutstanding;
+    private final Duration timeout;
+
+    private final AtomicReference<Flow.Subscriber<? super Lookup>> downstream = new AtomicReference<>();
+    private volatile Flow.Subscription upstream;
+    private final ConcurrentLinkedQueue<Lookup> ready = new ConcurrentLinkedQueue<>();
+    // results asked for by the subscriber which have not been published yet
+    private final AtomicLong demand = new AtomicLong();
+    // keys received which have not been published yet
+    private final AtomicInteger active = new AtomicInteger();
+    // keeps drain() to one thread at a time, and has it go round again if it was called meanwhile
+    private final AtomicInteger draining = new AtomicInteger();
+    private final AtomicReference<Throwable> error = new AtomicReference<>();
+    private volatile boolean upstreamDone = false;
+    private volatile boolean cancelled = false;
+
+    // only touched by drain(). Keys requested from upstream which have not been published yet
+    private long requested = 0;
+    private boolean terminated = false;
+
+    GetProcessor(Memcake memcake, int maxOutstanding, Duration timeout) {
+        if (maxOutstanding < 1) {
+            throw new IllegalArgumentException("at least one get must be allowed to be outstanding");
+        }
+        this.memcake = memcake;
+        this.maxOutstanding = maxOutstanding;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Lookup> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber");
+        if (!downstream.compareAndSet(null, subscriber)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("only one subscriber is allowed"));
+            return;
+        }
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    fail(new IllegalArgumentException("must request a positive number of results, not " + n));
+                    return;
+                }
+                long current;
+                long next;
+                do {
+                    current = demand.get();
+                    next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                } while (!demand.compareAndSet(current, next));
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+                drain();
+            }
+        });
+        drain();
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (upstream != null) {
+            subscription.cancel();
+            return;
+        }
+        upstream = subscription;
+        drain();
+    }
+
+    @Override
+    public void onNext(byte[] key) {
+        active.incrementAndGet();
+        try {
+            memcake.get(key, timeout).whenComplete((value, e) -> {
+                if (e != null) {
+                    fail(e);
+                }
+                else {
+                    ready.add(new Lookup(Key.of(key), value));
+                    drain();
+                }
+            });
+        } catch (RuntimeException e) {
+            // the client has been closed
+            fail(e);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        fail(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        upstreamDone = true;
+        drain();
+    }
+
+    private void fail(Throwable e) {
+        error.compareAndSet(null, e);
+        drain();
+    }
+
+    /**
+     * Publish whatever has arrived that the subscriber has room for, then ask upstream for
+     * as many more keys as there is room for.
+     */
+    private void drain() {
+        if (draining.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            Flow.Subscriber<? super Lookup> subscriber = downstream.get();
+            Flow.Subscription keys = upstream;
+            if (terminated) {
+                // gets which were in flight when the stream ended
+                ready.clear();
+            }
+            else if (subscriber != null) {
+                Throwable e = error.get();
+                if (cancelled || e != null) {
+                    terminated = true;
+                    ready.clear();
+                    if (keys != null) {
+                        keys.cancel();
+                    }
+                    if (!cancelled) {
+                        subscriber.onError(e);
+                    }
+                }
+                else {
+                    long wanted = demand.get();
+                    long published = 0;
+                    Lookup lookup;
+                    while (published < wanted && (lookup = ready.poll()) != null) {
+                        subscriber.onNext(lookup);
+                        published++;
+                    }
+                    if (published > 0) {
+                        if (wanted != Long.MAX_VALUE) {
+                            demand.addAndGet(-published);
+                        }
+                        requested -= published;
+                        active.addAndGet((int) -published);
+                    }
+                    if (upstreamDone && active.get() == 0) {
+                        terminated = true;
+                        subscriber.onComplete();
+                    }
+                    else if (keys != null && !upstreamDone) {
+                        long room = Math.min(demand.get(), maxOutstanding) - requested;
+                        if (room > 0) {
+                            requested += room;
+                            keys.request(room);
+                        }
+                    }
+                }
+            }
+            missed = draining.addAndGet(-missed);
+        } while (missed != 0);
+    }
+}
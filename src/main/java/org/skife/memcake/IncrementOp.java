@@ -57,6 +57,6 @@ public class IncrementOp {
     }
 
     public CompletableFuture<Counter> execute() {
-        return memcake.call(key, (c) -> c.increment(key, delta, initialValue, expires, cas, timeout));
+        return memcake.write(key, (c) -> c.increment(key, delta, initialValue, expires, cas, timeout));
     }
 }
@@ -56,6 +56,6 @@ public class IncrementQuietOp {
     }
 
     public CompletableFuture<Void> execute() {
-        return memcake.call(key, (c) -> c.incrementq(key, delta, initialValue, expires, cas, timeout));
+        return memcake.write(key, (c) -> c.incrementq(key, delta, initialValue, expires, cas, timeout));
     }
 }
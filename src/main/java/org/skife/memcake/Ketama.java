@@ -0,0 +1,129 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Consistent hash ring laid out the same way as libmemcached's weighted ketama distribution
+ * ({@code MEMCACHED_BEHAVIOR_KETAMA_WEIGHTED}), so keys land on the same server as they would
+ * from C, PHP, or any other libmemcached based client given the same server list.
+ * <p>
+ * Each server gets 160 points on the ring, scaled by its share of the total weight. Points
+ * come four at a time from the MD5 of {@code host-n} (or {@code host:port-n} when not on the
+ * default port), where host is the address as configured, not as resolved. A key belongs to
+ * the first point at or after the first four bytes of its MD5.
+ */
+class Ketama {
+    static final int POINTS_PER_SERVER = 160;
+    private static final int POINTS_PER_HASH = 4;
+    private static final int DEFAULT_PORT = 11211;
+    // low bits of a packed ring entry hold the owning server, the rest its position
+    private static final int OWNER_BITS = 24;
+
+    private static final ThreadLocal<MessageDigest> md5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is required of every JVM", e);
+        }
+    });
+
+    // sorted ring positions (unsigned 32 bit values) and the index of the server owning each
+    private final long[] points;
+    private final int[] owners;
+
+    Ketama(List<InetSocketAddress> servers, List<Integer> weights) {
+        if (servers.isEmpty() || servers.size() != weights.size() || servers.size() >= 1 << OWNER_BITS) {
+            throw new IllegalArgumentException("need at least one server, and a weight for each");
+        }
+        long totalWeight = 0;
+        for (int weight : weights) {
+            if (weight <= 0) {
+                throw new IllegalArgumentException("server weights must be positive");
+            }
+            totalWeight += weight;
+        }
+
+        long[] ring = new long[servers.size() * POINTS_PER_SERVER * 2];
+        int count = 0;
+        for (int server = 0; server < servers.size(); server++) {
+            float pct = (float) weights.get(server) / (float) totalWeight;
+            int pointsForServer = (int) (Math.floor(pct * POINTS_PER_SERVER / 4 * (float) servers.size()
+                                                    + 0.0000000001)) * 4;
+            InetSocketAddress address = servers.get(server);
+            String prefix = address.getPort() == DEFAULT_PORT
+                            ? address.getHostString()
+                            : address.getHostString() + ":" + address.getPort();
+            for (int i = 0; i < pointsForServer / POINTS_PER_HASH; i++) {
+                byte[] digest = digest((prefix + "-" + i).getBytes(StandardCharsets.UTF_8));
+                for (int h = 0; h < POINTS_PER_HASH; h++) {
+                    if (count == ring.length) {
+                        ring = Arrays.copyOf(ring, ring.length * 2);
+                    }
+                    // position in the high bits, owner in the low bits, so one sort orders both
+                    ring[count++] = (position(digest, h) << OWNER_BITS) | server;
+                }
+            }
+        }
+        Arrays.sort(ring, 0, count);
+
+        this.points = new long[count];
+        this.owners = new int[count];
+        for (int i = 0; i < count; i++) {
+            points[i] = ring[i] >>> OWNER_BITS;
+            owners[i] = (int) (ring[i] & ((1 << OWNER_BITS) - 1));
+        }
+    }
+
+    /**
+     * @return index, in the list given at construction, of the server owning {@code key}
+     */
+    int serverFor(byte[] key) {
+        long hash = position(digest(key), 0);
+        int low = 0;
+        int high = points.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (points[mid] < hash) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return owners[low == points.length ? 0 : low];
+    }
+
+    int size() {
+        return points.length;
+    }
+
+    private static byte[] digest(byte[] input) {
+        return md5.get().digest(input);
+    }
+
+    private static long position(byte[] digest, int alignment) {
+        int offset = alignment * 4;
+        return ((long) (digest[3 + offset] & 0xFF) << 24)
+               | ((long) (digest[2 + offset] & 0xFF) << 16)
+               | ((long) (digest[1 + offset] & 0xFF) << 8)
+               | (digest[offset] & 0xFF);
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake;
+
+import org.skife.memcake.connection.Key;
+import org.skife.memcake.connection.Value;
+
+import java.util.Optional;
+
+/**
+ * The outcome of a get of one key, as streamed out of a {@link GetProcessor}.
+ */
+public final class Lookup {
+    private final Key key;
+    private final Optional<Value> value;
+
+    Lookup(Key key, Optional<Value> value) {
+        this.key = key;
+        this.value = value;
+    }
+
+    public Key getKey() {
+        return key;
+    }
+
+    /**
+     * @return the value, or empty if the key was not found
+     */
+    public Optional<Value> getValue() {
+        return value;
+    }
+}
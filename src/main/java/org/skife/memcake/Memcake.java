@@ -13,138 +13,483 @@
  */
 package org.skife.memcake;
 
+import org.skife.memcake.connection.CompletionStrategy;
 import org.skife.memcake.connection.Connection;
+import org.skife.memcake.connection.HashedWheelTimer;
+import org.skife.memcake.connection.Key;
+import org.skife.memcake.connection.Metrics;
+import org.skife.memcake.connection.Transport;
+import org.skife.memcake.connection.UnixDomainSockets;
+import org.skife.memcake.connection.Value;
+import org.skife.memcake.connection.Version;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.function.Consumer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
 import java.util.function.Function;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  * High level client for memcached
  */
 public class Memcake implements AutoCloseable {
-    private static final ScheduledExecutorService cron = Executors.newScheduledThreadPool(1);
-
-    private final LinkedBlockingQueue<Consumer<Connection>> reconnectQueue = new LinkedBlockingQueue<>();
-    private final AtomicReference<Connection> conn = new AtomicReference<>();
-    private final AtomicReference<ClientState> state = new AtomicReference<>(ClientState.DISCONNECTED);
-    private final Function<InetSocketAddress, CompletableFuture<Connection>> connector;
-    private final InetSocketAddress addr;
+    private final ServerPool[] servers;
+    private final Ketama ring;
     private final Duration timeout;
-
-    private Memcake(Function<InetSocketAddress, CompletableFuture<Connection>> connector,
-                    InetSocketAddress addr,
-                    Duration timeout) {
-        this.connector = connector;
-        this.addr = addr;
+    private final Metrics metrics;
+
+    // timer created by, and closed with, this client. null when the caller owns the timer
+    private volatile HashedWheelTimer ownTimer;
+    private volatile NearCache nearCache;
+    // gets in flight, by key, when concurrent gets of a key are coalesced. null when they are not
+    private volatile ConcurrentHashMap<Key, CompletableFuture<Optional<Value>>> flights;
+    private final LongAdder coalesced = new LongAdder();
+    // registered by withMBean, unregistered on close
+    private volatile ObjectName mbean;
+
+    private Memcake(ServerPool[] servers, Ketama ring, Duration timeout, Metrics metrics) {
+        this.servers = servers;
+        this.ring = ring;
         this.timeout = timeout;
-        connect();
+        this.metrics = metrics;
+    }
+
+    public static Memcake create(Set<InetSocketAddress> servers,
+                                 Duration defaultTimeout,
+                                 Function<InetSocketAddress, CompletableFuture<Connection>> connector) {
+        return create(servers, 1, defaultTimeout, connector);
     }
 
+    /**
+     * @param connectionsPerServer number of connections to open to each server, calls are spread
+     *                             across them by how many requests each has in flight
+     */
     public static Memcake create(Set<InetSocketAddress> servers,
+                                 int connectionsPerServer,
+                                 Duration defaultTimeout,
+                                 Function<InetSocketAddress, CompletableFuture<Connection>> connector) {
+        Map<InetSocketAddress, Integer> weighted = new LinkedHashMap<>();
+        for (InetSocketAddress server : servers) {
+            weighted.put(server, 1);
+        }
+        return create(weighted, connectionsPerServer, defaultTimeout, connector);
+    }
+
+    /**
+     * Create a client sharding keys across several servers with libmemcached compatible
+     * weighted ketama hashing. Servers are identified on the ring by the host string and
+     * port they were created with, so use the same names as other clients sharing the cache.
+     *
+     * @param weightedServers      servers to shard across, and their (positive) relative weights
+     * @param connectionsPerServer number of connections to open to each server
+     */
+    public static Memcake create(Map<InetSocketAddress, Integer> weightedServers,
+                                 int connectionsPerServer,
                                  Duration defaultTimeout,
                                  Function<InetSocketAddress, CompletableFuture<Connection>> connector) {
-        if (servers.size() != 1) {
-            throw new IllegalArgumentException("in this cas of memcake, only one server is supported. Sorry.");
+        if (weightedServers.isEmpty()) {
+            throw new IllegalArgumentException("at least one server is required");
+        }
+        List<InetSocketAddress> addresses = new ArrayList<>(weightedServers.keySet());
+        List<Integer> weights = new ArrayList<>(weightedServers.values());
+        Ketama ring = new Ketama(addresses, weights);
+        Metrics metrics = Metrics.create();
+        ServerPool[] pools = new ServerPool[addresses.size()];
+        for (int i = 0; i < pools.length; i++) {
+            pools[i] = new ServerPool(connector, addresses.get(i), connectionsPerServer, metrics);
         }
-        return new Memcake(connector, servers.iterator().next(), defaultTimeout);
+        return new Memcake(pools, ring, defaultTimeout, metrics);
+    }
+
+    public static Memcake create(InetSocketAddress address,
+                                 int maxInFlightPerConnection,
+                                 Duration defaultTimeout) {
+        return create(address, maxInFlightPerConnection, 1, defaultTimeout);
     }
 
+    /**
+     * Timeouts are tracked on a {@link HashedWheelTimer} created for, and closed along with,
+     * this client.
+     */
     public static Memcake create(InetSocketAddress address,
                                  int maxInFlightPerConnection,
+                                 int connectionsPerServer,
                                  Duration defaultTimeout) {
-        return create(Collections.singleton(address), defaultTimeout, (addr) -> {
+        HashedWheelTimer timer = HashedWheelTimer.create();
+        Memcake mc = create(address, maxInFlightPerConnection, connectionsPerServer, defaultTimeout, timer);
+        mc.ownTimer = timer;
+        return mc;
+    }
+
+    /**
+     * @param timer tracks request timeouts, it may be shared between clients and is not closed
+     *              when this client is. Closing it times out every request still waiting on it
+     */
+    public static Memcake create(InetSocketAddress address,
+                                 int maxInFlightPerConnection,
+                                 int connectionsPerServer,
+                                 Duration defaultTimeout,
+                                 HashedWheelTimer timer) {
+        return create(Collections.singleton(address), connectionsPerServer, defaultTimeout, (addr) -> {
             try {
-                return Connection.open(addr, maxInFlightPerConnection, AsynchronousSocketChannel.open(), cron);
+                return Connection.open(addr, maxInFlightPerConnection, AsynchronousSocketChannel.open(), timer);
             } catch (IOException e) {
                 throw new IllegalStateException(e);
             }
         });
     }
 
-    private void connect() {
-        switch (state.get()) {
-            case DISCONNECTED:
-                if (state.compareAndSet(ClientState.DISCONNECTED, ClientState.CONNECTING)) {
-                    // we won the connect race!
-                    CompletableFuture<Connection> f = connector.apply(addr);
-                    f.whenComplete((c, e) -> {
-                        if (e != null) {
-                            state.set(ClientState.DISCONNECTED);
-                            connect();
-                        }
-                        else {
-                            conn.set(c);
-                            c.addNetworkFailureListener(() -> {
-                                if (conn.compareAndSet(c, null)) {
-                                    c.close();
-                                    state.set(ClientState.DISCONNECTED);
-                                    connect();
-                                }
-                            });
-                            state.set(ClientState.CONNECTED);
-                            for (Consumer<Connection> consumer : reconnectQueue) {
-                                consumer.accept(c);
-                            }
-                        }
-                    });
-                }
-                break;
-            case CLOSED:
-                throw new IllegalStateException("Memcake has been closed, it may no longer be used.");
-            default:
-                break;
-        }
+    /**
+     * @param transport connects to the server, such as a
+     *                  {@link org.skife.memcake.connection.SelectorTransport}. It may be
+     *                  shared between clients and is not closed when this client is
+     */
+    public static Memcake create(InetSocketAddress address,
+                                 int maxInFlightPerConnection,
+                                 int connectionsPerServer,
+                                 Duration defaultTimeout,
+                                 HashedWheelTimer timer,
+                                 Transport transport) {
+        return create(Collections.singleton(address), connectionsPerServer, defaultTimeout, (addr) ->
+            Connection.open(addr, maxInFlightPerConnection, transport, timer));
+    }
+
+    /**
+     * Create a client for a memcached on this host listening on a unix domain socket, which
+     * needs Java 16 or later.
+     *
+     * @param socket    path of the socket memcached was started with, via {@code -s}
+     * @param transport connects to the server, must be a
+     *                  {@link org.skife.memcake.connection.SelectorTransport}. It may be shared
+     *                  between clients and is not closed when this client is
+     * @see UnixDomainSockets
+     */
+    public static Memcake create(Path socket,
+                                 int maxInFlightPerConnection,
+                                 int connectionsPerServer,
+                                 Duration defaultTimeout,
+                                 HashedWheelTimer timer,
+                                 Transport transport) {
+        SocketAddress address = UnixDomainSockets.address(socket);
+        // only names the server, as libmemcached does a socket: by its path and port 0
+        InetSocketAddress name = InetSocketAddress.createUnresolved(socket.toString(), 0);
+        return create(Collections.singleton(name), connectionsPerServer, defaultTimeout, (addr) ->
+            Connection.open(address, maxInFlightPerConnection, transport, timer));
     }
 
     @Override
     public void close() throws Exception {
-        switch (state.get()) {
-            case CLOSED:
-                break;
-            case CONNECTED:
-                conn.get().close();
-                this.state.set(ClientState.DISCONNECTED);
-                break;
-            case CONNECTING:
-                break;
-            case DISCONNECTED:
-                break;
+        for (ServerPool server : servers) {
+            server.close();
+        }
+        HashedWheelTimer timer = ownTimer;
+        if (timer != null) {
+            timer.close();
+        }
+        ObjectName name = mbean;
+        if (name != null) {
+            mbean = null;
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
         }
     }
 
-    public <T> CompletableFuture<T> call(byte[] key, Function<Connection, CompletableFuture<T>> f) {
-        switch (state.get()) {
-            case CLOSED:
-                throw new IllegalStateException("The memcake has been closed.");
-            case CONNECTED:
-                return f.apply(conn.get());
-            case DISCONNECTED:
-            case CONNECTING:
-                CompletableFuture<T> nf = new CompletableFuture<T>();
-                reconnectQueue.add((c) -> f.apply(c).whenComplete((r, e) -> {
+    /**
+     * Answer gets from {@code cache} when possible. Values read, and values set, through this
+     * client are cached, and any other write through this client invalidates the key. Every hit
+     * returns the one cached {@link Value}, so callers must not modify its bytes. Should be set up
+     * before the client is used.
+     *
+     * @return this client
+     */
+    public Memcake withNearCache(NearCache cache) {
+        this.nearCache = cache;
+        return this;
+    }
+
+    /**
+     * Send a single get for each key no matter how many callers want it at once: a get of a key
+     * which already has a get in flight waits for that one's result rather than going to the
+     * server itself. Callers share the one {@link Value}, so must not modify its bytes, and the
+     * timeout of the get which went to the server. Writes through this client are not coalesced
+     * with, so a get made once a write has completed always sees it. Should be set up before the
+     * client is used.
+     *
+     * @return this client
+     */
+    public Memcake withCoalescedGets() {
+        this.flights = new ConcurrentHashMap<>();
+        return this;
+    }
+
+    /**
+     * Complete the futures of calls on this client as {@code strategy} says, rather than on the
+     * I/O threads which read their responses. Should be set up before the client is used.
+     *
+     * @return this client
+     */
+    public Memcake withCompletionStrategy(CompletionStrategy strategy) {
+        for (ServerPool server : servers) {
+            server.setCompletionStrategy(strategy);
+        }
+        return this;
+    }
+
+    /**
+     * Number of gets which were answered by a get already in flight, rather than going to the
+     * server, since gets were coalesced.
+     */
+    public long getCoalescedGets() {
+        return coalesced.sum();
+    }
+
+    /**
+     * Latencies by operation, hits, misses, and the like, across every connection this client
+     * has opened.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Publish {@link #getMetrics()} on the platform MBean server, as
+     * {@code org.skife.memcake:type=Memcake,name=<name>}, until this client is closed.
+     *
+     * @return this client
+     * @throws IllegalStateException if the name is taken, or the MBean cannot be registered
+     */
+    public Memcake withMBean(String name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName on = new ObjectName("org.skife.memcake:type=Memcake,name=" + ObjectName.quote(name));
+            server.registerMBean(metrics, on);
+            this.mbean = on;
+        } catch (JMException e) {
+            throw new IllegalStateException("unable to register metrics as " + name, e);
+        }
+        return this;
+    }
+
+    Duration defaultTimeout() {
+        return timeout;
+    }
+
+    /**
+     * A get, answered by the near cache if there is one and it has the key, or by a get already
+     * in flight when gets are coalesced.
+     */
+    CompletableFuture<Optional<Value>> get(byte[] key, Duration timeout) {
+        NearCache cache = nearCache;
+        ConcurrentHashMap<Key, CompletableFuture<Optional<Value>>> flights = this.flights;
+        if (cache == null && flights == null) {
+            return call(key, (c) -> c.get(key, timeout));
+        }
+        Key k = Key.of(key);
+        if (cache != null) {
+            Value cached = cache.get(k);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(Optional.of(cached));
+            }
+        }
+        if (flights == null) {
+            return fetch(cache, k, timeout);
+        }
+
+        CompletableFuture<Optional<Value>> flight = flights.get(k);
+        if (flight == null) {
+            CompletableFuture<Optional<Value>> mine = new CompletableFuture<>();
+            flight = flights.putIfAbsent(k, mine);
+            if (flight == null) {
+                fetch(cache, k, timeout).whenComplete((ov, e) -> {
+                    flights.remove(k, mine);
                     if (e != null) {
-                        nf.completeExceptionally(e);
+                        mine.completeExceptionally(e);
                     }
                     else {
-                        nf.complete(r);
+                        mine.complete(ov);
                     }
-                }));
-                return nf;
-            default:
-                throw new IllegalStateException("unknown connection state: " + state);
+                });
+                flight = mine;
+            }
+            else {
+                coalesced.increment();
+            }
+        }
+        else {
+            coalesced.increment();
+        }
+        // each caller gets its own future, so one cancelling or completing it leaves the rest be
+        return flight.thenApply(Function.identity());
+    }
+
+    private CompletableFuture<Optional<Value>> fetch(NearCache cache, Key k, Duration timeout) {
+        byte[] key = k.getBytes();
+        if (cache == null) {
+            return call(key, (c) -> c.get(key, timeout));
         }
+        long stamp = cache.stamp();
+        return call(key, (c) -> c.get(key, timeout)).thenApply((ov) -> {
+            ov.ifPresent((v) -> cache.put(k, v, stamp, 0));
+            return ov;
+        });
+    }
+
+    /**
+     * Forget anything known about {@code key}, so later gets go to the server.
+     *
+     * @return the near cache's invalidation stamp, or 0 if there is no near cache
+     */
+    private static long forget(NearCache cache,
+                               ConcurrentHashMap<Key, CompletableFuture<Optional<Value>>> flights,
+                               Key key) {
+        if (flights != null) {
+            flights.remove(key);
+        }
+        return cache == null ? 0 : cache.invalidate(key);
+    }
+
+    /**
+     * Run a write of {@code key}, invalidating it in the near cache before the write is sent
+     * and again before the result is seen, so no read which overlapped the write is cached.
+     * Gets of the key in flight are likewise no longer joined by later gets.
+     */
+    <T> CompletableFuture<T> write(byte[] key, Function<Connection, CompletableFuture<T>> f) {
+        NearCache cache = nearCache;
+        ConcurrentHashMap<Key, CompletableFuture<Optional<Value>>> flights = this.flights;
+        if (cache == null && flights == null) {
+            return call(key, f);
+        }
+        Key k = Key.of(key);
+        forget(cache, flights, k);
+        return call(key, f).whenComplete((r, e) -> forget(cache, flights, k));
+    }
+
+    /**
+     * A set, whose value is cached once stored.
+     */
+    CompletableFuture<Version> set(byte[] key, int flags, int expires, byte[] value, Version cas, Duration timeout) {
+        NearCache cache = nearCache;
+        ConcurrentHashMap<Key, CompletableFuture<Optional<Value>>> flights = this.flights;
+        if (cache == null && flights == null) {
+            return call(key, (c) -> c.set(key, flags, expires, value, cas, timeout));
+        }
+        Key k = Key.of(key);
+        forget(cache, flights, k);
+        return call(key, (c) -> c.set(key, flags, expires, value, cas, timeout)).whenComplete((version, e) -> {
+            long stamp = forget(cache, flights, k);
+            if (cache != null && e == null) {
+                // the caller may reuse its array once the set is done
+                cache.put(k, Value.of(version, flags, Arrays.copyOf(value, value.length)), stamp, expires);
+            }
+        });
+    }
+
+    /**
+     * Run a keyless write (flush), clearing the near cache before and after.
+     */
+    <T> CompletableFuture<T> writeAll(Function<Connection, CompletableFuture<T>> f) {
+        NearCache cache = nearCache;
+        ConcurrentHashMap<Key, CompletableFuture<Optional<Value>>> flights = this.flights;
+        if (cache == null && flights == null) {
+            return call(null, f);
+        }
+        forgetAll(cache, flights);
+        return call(null, f).whenComplete((r, e) -> forgetAll(cache, flights));
+    }
+
+    private static void forgetAll(NearCache cache, ConcurrentHashMap<Key, CompletableFuture<Optional<Value>>> flights) {
+        if (flights != null) {
+            flights.clear();
+        }
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    <V> CompletableFuture<Map<Key, V>> writeMulti(Collection<Key> keys,
+                                                   BiFunction<Connection, Collection<Key>, CompletableFuture<Map<Key, V>>> f) {
+        NearCache cache = nearCache;
+        ConcurrentHashMap<Key, CompletableFuture<Optional<Value>>> flights = this.flights;
+        if (cache == null && flights == null) {
+            return callMulti(keys, f);
+        }
+        for (Key key : keys) {
+            forget(cache, flights, key);
+        }
+        return callMulti(keys, f).whenComplete((r, e) -> {
+            for (Key key : keys) {
+                forget(cache, flights, key);
+            }
+        });
+    }
+
+    /**
+     * Run {@code f} against a connection to the server which owns {@code key}. Calls without
+     * a key (flush, noop, stat, version) are run against every server, and complete with the
+     * result from the first server once all of them have succeeded. Quiet commands do not
+     * need anything sent after them, each connection follows its trailing quiet commands with
+     * a noop of its own.
+     */
+    public <T> CompletableFuture<T> call(byte[] key, Function<Connection, CompletableFuture<T>> f) {
+        if (servers.length == 1) {
+            return servers[0].call(f);
+        }
+        if (key != null) {
+            return servers[ring.serverFor(key)].call(f);
+        }
+        CompletableFuture<?>[] all = new CompletableFuture<?>[servers.length];
+        for (int i = 0; i < servers.length; i++) {
+            all[i] = servers[i].call(f);
+        }
+        @SuppressWarnings("unchecked")
+        CompletableFuture<T> first = (CompletableFuture<T>) all[0];
+        return CompletableFuture.allOf(all).thenCompose((v) -> first);
+    }
+
+    /**
+     * Run {@code f} against each server owning any of {@code keys}, with the keys it owns, and
+     * merge the resulting maps.
+     */
+    <V> CompletableFuture<Map<Key, V>> callMulti(Collection<Key> keys,
+                                                  BiFunction<Connection, Collection<Key>, CompletableFuture<Map<Key, V>>> f) {
+        if (servers.length == 1) {
+            return servers[0].call((c) -> f.apply(c, keys));
+        }
+        Map<Integer, List<Key>> byServer = new HashMap<>();
+        for (Key key : keys) {
+            byServer.computeIfAbsent(ring.serverFor(key.getBytes()), (i) -> new ArrayList<>()).add(key);
+        }
+        List<CompletableFuture<Map<Key, V>>> parts = new ArrayList<>(byServer.size());
+        for (Map.Entry<Integer, List<Key>> e : byServer.entrySet()) {
+            parts.add(servers[e.getKey()].call((c) -> f.apply(c, e.getValue())));
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[parts.size()])).thenApply((v) -> {
+            Map<Key, V> merged = new HashMap<>();
+            for (CompletableFuture<Map<Key, V>> part : parts) {
+                merged.putAll(part.join());
+            }
+            return merged;
+        });
     }
 
     // public API
@@ -161,6 +506,33 @@ public class Memcake implements AutoCloseable {
         return set(key.getBytes(StandardCharsets.UTF_8), value);
     }
 
+    /**
+     * Set {@code value} as encoded by {@code transcoder}, which also decides the flags.
+     */
+    public <T> SetOp set(byte[] key, T value, Transcoder<T> transcoder) {
+        Value encoded = transcoder.encode(value);
+        return set(key, encoded.getValue()).flags(encoded.getFlags());
+    }
+
+    public <T> SetOp set(String key, T value, Transcoder<T> transcoder) {
+        return set(key.getBytes(StandardCharsets.UTF_8), value, transcoder);
+    }
+
+    /**
+     * Store many entries with a setq for each, followed by one noop, per server.
+     */
+    public SetMultiOp setMulti(Map<Key, byte[]> values) {
+        return new SetMultiOp(this, values, timeout);
+    }
+
+    /**
+     * A sink which stores every entry it is given, with no more than {@code maxOutstanding}
+     * requested from upstream but not yet stored.
+     */
+    public SetSubscriber streamSets(int maxOutstanding) {
+        return new SetSubscriber(this, maxOutstanding, timeout);
+    }
+
     public GetOp get(String key) {
         return get(key.getBytes(StandardCharsets.UTF_8));
     }
@@ -169,6 +541,19 @@ public class Memcake implements AutoCloseable {
         return new GetOp(this, key, timeout);
     }
 
+    public GetMultiOp getMulti(Collection<byte[]> keys) {
+        return new GetMultiOp(this, keys, timeout);
+    }
+
+    /**
+     * A processor which gets every key it is given, with no more than {@code maxOutstanding}
+     * requested from upstream but not yet published. Keep it within the connections' limit on
+     * requests in flight.
+     */
+    public GetProcessor streamGets(int maxOutstanding) {
+        return new GetProcessor(this, maxOutstanding, timeout);
+    }
+
     public GetWithKeyOp getk(byte[] key) {
         return new GetWithKeyOp(this, key, timeout);
     }
@@ -265,6 +650,13 @@ public class Memcake implements AutoCloseable {
         return delete(key.getBytes(StandardCharsets.UTF_8));
     }
 
+    /**
+     * Delete many keys with a deleteq for each, followed by one noop, per server.
+     */
+    public DeleteMultiOp deleteMulti(Collection<byte[]> keys) {
+        return new DeleteMultiOp(this, keys, timeout);
+    }
+
     public DeleteQuietOp deleteq(byte[] key) {
         return new DeleteQuietOp(this, key, timeout);
     }
@@ -356,8 +748,4 @@ public class Memcake implements AutoCloseable {
     public VersionOp version() {
         return new VersionOp(this, timeout);
     }
-
-    private enum ClientState {
-        CONNECTED, CONNECTING, DISCONNECTED, CLOSED
-    }
 }
@@ -0,0 +1,432 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake;
+
+import org.skife.memcake.connection.Key;
+import org.skife.memcake.connection.Value;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In process cache of recently read values, consulted by {@link Memcake} gets before going to
+ * the server. See {@link Memcake#withNearCache(NearCache)}.
+ * <p>
+ * The cache is bounded either by number of entries or by bytes of keys and values, and decides
+ * what to keep with W-TinyLFU: new entries go into a small LRU window, and when something has to
+ * go, the entry leaving the window only displaces the main region's least recently used entry
+ * if a frequency sketch says it has been wanted more often. A burst of one-off reads therefore
+ * cannot flush out the hot keys.
+ * <p>
+ * Entries live no longer than the cache's max TTL, or than the expiry given when the value was
+ * set through the same client. Writes through the client invalidate the key, but writes from
+ * elsewhere are only seen once the entry expires, so the max TTL is how stale a read may be.
+ * <p>
+ * Cached values are handed out as they are, without copying, to every reader of the key, so
+ * they must be treated as immutable.
+ * <p>
+ * Lookups, fills and invalidations are lock free. Changes to the eviction policy are made under
+ * a lock: writes queue theirs for whichever thread next holds it to apply, and reads skip
+ * recording themselves rather than wait for it when it is busy.
+ */
+public final class NearCache {
+    // memcached treats expiries past thirty days as absolute unix times
+    private static final long RELATIVE_EXPIRY_LIMIT = TimeUnit.DAYS.toSeconds(30);
+    private static final int STAMP_STRIPES = 1024;
+    // a rough guess at the size of an entry, for sizing the sketch of a cache bounded by bytes
+    private static final int ASSUMED_ENTRY_BYTES = 1024;
+
+    private final ConcurrentHashMap<Key, Node> data = new ConcurrentHashMap<>();
+    private final ReentrantLock policy = new ReentrantLock();
+    private final boolean weighByBytes;
+    private final long maximum;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+    private final long maxTtlNanos;
+
+    // guarded by policy
+    private final FrequencySketch sketch;
+    private final Queue window = new Queue();
+    private final Queue probation = new Queue();
+    private final Queue protectedQueue = new Queue();
+    private long weight = 0;
+
+    // policy changes for entries added to or removed from data, applied under policy in order
+    private final ConcurrentLinkedQueue<Runnable> writes = new ConcurrentLinkedQueue<>();
+
+    // last invalidation of any key hashing to each stripe, to stop a read which was already in
+    // flight when a key was written from caching what it read
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicLongArray stamps = new AtomicLongArray(STAMP_STRIPES);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private NearCache(boolean weighByBytes, long maximum, Duration maxTtl) {
+        if (maximum < 1) {
+            throw new IllegalArgumentException("maximum must be positive");
+        }
+        if (maxTtl.isNegative() || maxTtl.isZero()) {
+            throw new IllegalArgumentException("maxTtl must be positive");
+        }
+        this.weighByBytes = weighByBytes;
+        this.maximum = maximum;
+        this.windowMaximum = Math.max(1, maximum / 100);
+        this.protectedMaximum = (long) ((maximum - windowMaximum) * 0.8);
+        this.maxTtlNanos = maxTtl.toNanos();
+        this.sketch = new FrequencySketch(weighByBytes ? maximum / ASSUMED_ENTRY_BYTES : maximum);
+    }
+
+    /**
+     * @param maxEntries most entries to hold
+     * @param maxTtl     longest to hold any entry, which bounds how stale reads can be
+     */
+    public static NearCache ofEntries(long maxEntries, Duration maxTtl) {
+        return new NearCache(false, maxEntries, maxTtl);
+    }
+
+    /**
+     * @param maxBytes most bytes of keys and values to hold
+     * @param maxTtl   longest to hold any entry, which bounds how stale reads can be
+     */
+    public static NearCache ofBytes(long maxBytes, Duration maxTtl) {
+        return new NearCache(true, maxBytes, maxTtl);
+    }
+
+    /**
+     * @return the cached value, or null
+     */
+    Value get(Key key) {
+        Node node = data.get(key);
+        if (node == null) {
+            misses.increment();
+            return null;
+        }
+        if (node.expiresAt - System.nanoTime() <= 0) {
+            misses.increment();
+            if (data.remove(key, node)) {
+                afterWrite(() -> unlink(node));
+            }
+            return null;
+        }
+        hits.increment();
+        if (policy.tryLock()) {
+            try {
+                applyWrites();
+                onAccess(node);
+            } finally {
+                policy.unlock();
+            }
+            drainWrites();
+        }
+        return node.value;
+    }
+
+    /**
+     * @return a stamp to hand to {@link #put(Key, Value, long, long)} for a value read from now on
+     */
+    long stamp() {
+        return clock.get();
+    }
+
+    /**
+     * Cache a value, unless the key has been invalidated since {@code stamp} was taken.
+     *
+     * @param expires the memcached expiry the value was stored with, 0 if not known
+     */
+    void put(Key key, Value value, long stamp, long expires) {
+        long ttl = ttlNanos(expires);
+        if (ttl <= 0) {
+            return;
+        }
+        long w = weighByBytes ? key.getBytes().length + value.getValue().length : 1;
+        if (w > maximum) {
+            return;
+        }
+        if (stamps.get(stripe(key)) > stamp) {
+            return;
+        }
+        Node node = new Node(key, value, w, System.nanoTime() + ttl);
+        Node old = data.put(key, node);
+        // an invalidation which raced us either sees the node and removes it, or bumped the
+        // stamp before we look again
+        if (stamps.get(stripe(key)) > stamp) {
+            data.remove(key, node);
+        }
+        afterWrite(() -> {
+            if (old != null) {
+                unlink(old);
+            }
+            if (data.get(key) != node) {
+                // replaced or removed before getting here, whoever did so unlinks it later
+                return;
+            }
+            sketch.increment(key.hashCode());
+            window.add(node);
+            node.queue = window;
+            weight += node.weight;
+            evict();
+        });
+    }
+
+    /**
+     * Drop the key, and stop reads already in flight from caching it.
+     *
+     * @return a stamp for caching a value known to be current from now on
+     */
+    long invalidate(Key key) {
+        long stamp = clock.incrementAndGet();
+        stamps.accumulateAndGet(stripe(key), stamp, Math::max);
+        Node node = data.remove(key);
+        if (node != null) {
+            afterWrite(() -> unlink(node));
+        }
+        return stamp;
+    }
+
+    void invalidateAll() {
+        long stamp = clock.incrementAndGet();
+        for (int i = 0; i < STAMP_STRIPES; i++) {
+            stamps.accumulateAndGet(i, stamp, Math::max);
+        }
+        for (Node node : data.values()) {
+            if (data.remove(node.key, node)) {
+                afterWrite(() -> unlink(node));
+            }
+        }
+    }
+
+    private void afterWrite(Runnable change) {
+        writes.add(change);
+        drainWrites();
+    }
+
+    /**
+     * Apply queued policy changes if the lock is free. Whoever holds it looks at the queue
+     * again after letting go, so a change queued while it was busy is not left behind.
+     */
+    private void drainWrites() {
+        while (!writes.isEmpty() && policy.tryLock()) {
+            try {
+                applyWrites();
+            } finally {
+                policy.unlock();
+            }
+        }
+    }
+
+    private void applyWrites() {
+        Runnable change;
+        while ((change = writes.poll()) != null) {
+            change.run();
+        }
+    }
+
+    private long ttlNanos(long expires) {
+        if (expires == 0) {
+            return maxTtlNanos;
+        }
+        long seconds = expires <= RELATIVE_EXPIRY_LIMIT
+                       ? expires
+                       : expires - System.currentTimeMillis() / 1000;
+        return Math.min(maxTtlNanos, TimeUnit.SECONDS.toNanos(seconds));
+    }
+
+    private static int stripe(Key key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (STAMP_STRIPES - 1);
+    }
+
+    private void onAccess(Node node) {
+        if (node.queue == null) {
+            // removed while we were looking at it
+            return;
+        }
+        sketch.increment(node.key.hashCode());
+        if (node.queue == probation) {
+            // wanted again, so promote it to the protected part of the main region
+            probation.remove(node);
+            protectedQueue.add(node);
+            node.queue = protectedQueue;
+            while (protectedQueue.weight > protectedMaximum && protectedQueue.head != null) {
+                Node demoted = protectedQueue.head;
+                protectedQueue.remove(demoted);
+                probation.add(demoted);
+                demoted.queue = probation;
+            }
+        }
+        else {
+            node.queue.moveToTail(node);
+        }
+    }
+
+    /**
+     * Move entries out of the window into the main region, and evict whichever of them and
+     * the main region's eldest entries TinyLFU thinks are least likely to be wanted again.
+     */
+    private void evict() {
+        while (window.weight > windowMaximum && window.head != null) {
+            Node candidate = window.head;
+            window.remove(candidate);
+            probation.add(candidate);
+            candidate.queue = probation;
+            while (weight > maximum) {
+                Node victim = probation.head != candidate ? probation.head : protectedQueue.head;
+                if (victim == null) {
+                    evict(candidate);
+                    break;
+                }
+                if (sketch.frequency(candidate.key.hashCode()) > sketch.frequency(victim.key.hashCode())) {
+                    evict(victim);
+                }
+                else {
+                    evict(candidate);
+                    break;
+                }
+            }
+        }
+        while (weight > maximum && window.head != null) {
+            evict(window.head);
+        }
+    }
+
+    private void evict(Node node) {
+        if (data.remove(node.key, node)) {
+            evictions.increment();
+        }
+        unlink(node);
+    }
+
+    private void unlink(Node node) {
+        if (node.queue != null) {
+            node.queue.remove(node);
+            node.queue = null;
+            weight -= node.weight;
+        }
+    }
+
+    /**
+     * Number of gets answered from the cache.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Number of gets which had to go to the server.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Number of entries dropped to make room for others.
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long size() {
+        return data.size();
+    }
+
+    /**
+     * Total weight of the entries held, in entries or bytes depending on how the cache is bounded.
+     */
+    public long weightedSize() {
+        long w;
+        policy.lock();
+        try {
+            applyWrites();
+            w = weight;
+        } finally {
+            policy.unlock();
+        }
+        drainWrites();
+        return w;
+    }
+
+    private static final class Node {
+        private final Key key;
+        private final Value value;
+        private final long weight;
+        private final long expiresAt;
+
+        // guarded by the policy lock
+        private Queue queue;
+        private Node prev;
+        private Node next;
+
+        Node(Key key, Value value, long weight, long expiresAt) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Doubly linked LRU list, eldest at the head.
+     */
+    private static final class Queue {
+        private Node head;
+        private Node tail;
+        private long weight;
+
+        void add(Node node) {
+            node.prev = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            }
+            else {
+                tail.next = node;
+            }
+            tail = node;
+            weight += node.weight;
+        }
+
+        void remove(Node node) {
+            if (node.prev == null) {
+                head = node.next;
+            }
+            else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.prev;
+            }
+            else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            weight -= node.weight;
+        }
+
+        void moveToTail(Node node) {
+            if (tail != node) {
+                remove(node);
+                add(node);
+            }
+        }
+    }
+}
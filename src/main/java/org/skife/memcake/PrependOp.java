@@ -43,6 +43,6 @@ public class PrependOp {
     }
 
     public CompletableFuture<Version> execute() {
-        return memcake.call(key, (c) -> c.prepend(key, value, version, timeout));
+        return memcake.write(key, (c) -> c.prepend(key, value, version, timeout));
     }
 }
@@ -43,6 +43,6 @@ public class PrependQuietOp {
     }
 
     public CompletableFuture<Void> execute() {
-        return memcake.call(key, (c) -> c.prependq(key, value, cas, timeout));
+        return memcake.write(key, (c) -> c.prependq(key, value, cas, timeout));
     }
 }
@@ -56,6 +56,6 @@ public class ReplaceOp {
     }
 
     public CompletableFuture<Version> execute() {
-        return memcake.call(key, (c) -> c.replace(key, flags, expires, value, cas, timeout));
+        return memcake.write(key, (c) -> c.replace(key, flags, expires, value, cas, timeout));
     }
 }
@@ -56,6 +56,6 @@ public class ReplaceQuietOp {
     }
 
     public CompletableFuture<Void> execute() {
-        return memcake.call(key, (c) -> c.replaceq(key, flags, expires, value, cas, timeout));
+        return memcake.write(key, (c) -> c.replaceq(key, flags, expires, value, cas, timeout));
     }
 }
@@ -0,0 +1,86 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake;
+
+import org.skife.memcake.connection.CompletionStrategy;
+import org.skife.memcake.connection.Connection;
+import org.skife.memcake.connection.Metrics;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+/**
+ * Fixed set of connections to one server. Each call goes to the less loaded of two
+ * randomly chosen connections (power of two choices), measured by requests in flight,
+ * which spreads a busy client across sockets without a global scan per call.
+ * <p>
+ * Quiet commands only complete once a later non-quiet command on the same connection
+ * is answered, and the next call may well go to another connection, so each connection
+ * follows trailing quiet commands with a noop of its own. See
+ * {@link Connection#setAnchorQuiets(boolean)}.
+ */
+class ServerPool {
+    private final ConnectionSlot[] slots;
+
+    ServerPool(Function<InetSocketAddress, CompletableFuture<Connection>> connector,
+               InetSocketAddress address,
+               int connections,
+               Metrics metrics) {
+        if (connections < 1) {
+            throw new IllegalArgumentException("connections per server must be at least 1");
+        }
+        this.slots = new ConnectionSlot[connections];
+        for (int i = 0; i < connections; i++) {
+            slots[i] = new ConnectionSlot(connector, address, metrics);
+        }
+        for (ConnectionSlot slot : slots) {
+            slot.connect();
+        }
+    }
+
+    <T> CompletableFuture<T> call(Function<Connection, CompletableFuture<T>> f) {
+        return select().call(f);
+    }
+
+    ConnectionSlot select() {
+        if (slots.length == 1) {
+            return slots[0];
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int a = random.nextInt(slots.length);
+        int b = random.nextInt(slots.length - 1);
+        if (b >= a) {
+            b++;
+        }
+        return slots[a].outstanding() <= slots[b].outstanding() ? slots[a] : slots[b];
+    }
+
+    int size() {
+        return slots.length;
+    }
+
+    void setCompletionStrategy(CompletionStrategy strategy) {
+        for (ConnectionSlot slot : slots) {
+            slot.setCompletionStrategy(strategy);
+        }
+    }
+
+    void close() {
+        for (ConnectionSlot slot : slots) {
+            slot.close();
+        }
+    }
+}
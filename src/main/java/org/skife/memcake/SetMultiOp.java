@@ -0,0 +1,71 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake;
+
+import org.skife.memcake.connection.Key;
+import org.skife.memcake.connection.StatusException;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+public class SetMultiOp {
+    private final Memcake memcake;
+    private final Map<Key, byte[]> values;
+    private int expires = 0;
+    private int flags = 0;
+    private Duration timeout;
+
+    SetMultiOp(Memcake memcake, Map<Key, byte[]> values, Duration timeout) {
+        this.memcake = memcake;
+        this.values = new LinkedHashMap<>(values);
+        this.timeout = timeout;
+    }
+
+    public SetMultiOp expires(int expires) {
+        this.expires = expires;
+        return this;
+    }
+
+    public SetMultiOp flags(int flags) {
+        this.flags = flags;
+        return this;
+    }
+
+    public SetMultiOp timeout(Duration timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    /**
+     * @return the entries which could not be stored, by key. Empty if all of them were
+     */
+    public CompletableFuture<Map<Key, StatusException>> execute() {
+        return memcake.writeMulti(values.keySet(),
+                                 (c, keys) -> c.setMulti(subset(keys), flags, expires, timeout));
+    }
+
+    private Map<Key, byte[]> subset(Collection<Key> keys) {
+        if (keys.size() == values.size()) {
+            return values;
+        }
+        Map<Key, byte[]> subset = new LinkedHashMap<>();
+        for (Key key : keys) {
+            subset.put(key, values.get(key));
+        }
+        return subset;
+    }
+}
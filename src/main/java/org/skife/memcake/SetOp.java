@@ -56,6 +56,6 @@ public class SetOp {
     }
 
     public CompletableFuture<Version> execute() {
-        return memcake.call(key, (c) -> c.set(key, flags, expires, value, version, timeout));
+        return memcake.set(key, flags, expires, value, version, timeout);
     }
 }
@@ -0,0 +1,233 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake;
+
+import org.skife.memcake.connection.Key;
+import org.skife.memcake.connection.StatusException;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores a stream of entries with quiet sets, pipelined in chunks just as
+ * {@link Memcake#setMulti(Map)} does, with at most a fixed number of entries outstanding at
+ * once. Entries are only requested from upstream as earlier chunks are answered, so memory
+ * use is bounded no matter how many entries go through.
+ * <p>
+ * A chunk goes out as soon as it is full, or straight away while no other chunk is waiting on
+ * the server, otherwise once the one before it is answered. An entry therefore waits no longer
+ * than a round trip for others to share its chunk, however slowly upstream produces them.
+ * Chunks may go out on different connections, so one sharing a key with a chunk still waiting
+ * on the server is held back until that one is answered, and the later value always wins.
+ * <p>
+ * Entries the server refuses do not stop the stream, they are gathered up in
+ * {@link #completion()}. A failed chunk, such as one which timed out, cancels upstream and
+ * fails the completion.
+ *
+ * @see Memcake#streamSets(int)
+ */
+public final class SetSubscriber implements Flow.Subscriber<Map.Entry<Key, byte[]>> {
+    private final Memcake memcake;
+    private final int maxOutstanding;
+    private final int chunkSize;
+    private final Duration timeout;
+    private int flags = 0;
+    private int expires = 0;
+
+    private final CompletableFuture<Map<Key, StatusException>> completion = new CompletableFuture<>();
+    private final Map<Key, StatusException> refused = new ConcurrentHashMap<>();
+    private volatile Flow.Subscription upstream;
+    // entries requested from upstream which have not arrived yet
+    private final AtomicLong unarrived = new AtomicLong();
+    // chunks sent which have not been answered, plus one until upstream completes
+    private final AtomicInteger outstanding = new AtomicInteger(1);
+
+    // the latest chunk sent with each key, until it is answered
+    private final Map<Key, CompletableFuture<?>> latest = new ConcurrentHashMap<>();
+
+    // guarded by this, as chunks are sent both by upstream and as earlier ones are answered
+    private Map<Key, byte[]> chunk = new LinkedHashMap<>();
+    private int chunkEntries = 0;
+    private int unanswered = 0;
+
+    SetSubscriber(Memcake memcake, int maxOutstanding, Duration timeout) {
+        if (maxOutstanding < 1) {
+            throw new IllegalArgumentException("at least one set must be allowed to be outstanding");
+        }
+        this.memcake = memcake;
+        this.maxOutstanding = maxOutstanding;
+        // a few chunks in flight at once, so the connection is never idle waiting on one
+        this.chunkSize = Math.max(1, maxOutstanding / 4);
+        this.timeout = timeout;
+    }
+
+    /**
+     * Should be set before subscribing.
+     */
+    public SetSubscriber flags(int flags) {
+        this.flags = flags;
+        return this;
+    }
+
+    /**
+     * Should be set before subscribing.
+     */
+    public SetSubscriber expires(int expires) {
+        this.expires = expires;
+        return this;
+    }
+
+    /**
+     * Completes once every entry has been stored, with the entries which could not be stored,
+     * by key. Empty if all of them were.
+     */
+    public CompletableFuture<Map<Key, StatusException>> completion() {
+        return completion;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (upstream != null) {
+            subscription.cancel();
+            return;
+        }
+        upstream = subscription;
+        request(maxOutstanding);
+    }
+
+    @Override
+    public synchronized void onNext(Map.Entry<Key, byte[]> entry) {
+        if (completion.isDone()) {
+            return;
+        }
+        chunk.put(entry.getKey(), entry.getValue());
+        chunkEntries++;
+        // nothing more will arrive until a chunk is answered, or nothing is coming back to
+        // flush it, so don't hold on to this one
+        if (unarrived.decrementAndGet() == 0 || chunkEntries >= chunkSize || unanswered == 0) {
+            send();
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        completion.completeExceptionally(throwable);
+    }
+
+    @Override
+    public synchronized void onComplete() {
+        send();
+        finished();
+    }
+
+    private synchronized void send() {
+        if (chunkEntries == 0) {
+            return;
+        }
+        Map<Key, byte[]> values = chunk;
+        int entries = chunkEntries;
+        chunk = new LinkedHashMap<>();
+        chunkEntries = 0;
+        outstanding.incrementAndGet();
+        unanswered++;
+
+        CompletableFuture<Map<Key, StatusException>> answered = new CompletableFuture<>();
+        Set<CompletableFuture<?>> earlier = new HashSet<>();
+        for (Key key : values.keySet()) {
+            CompletableFuture<?> before = latest.put(key, answered);
+            if (before != null) {
+                earlier.add(before);
+            }
+        }
+        answered.whenComplete((failures, e) -> {
+            for (Key key : values.keySet()) {
+                latest.remove(key, answered);
+            }
+            if (e != null) {
+                upstream.cancel();
+                completion.completeExceptionally(e);
+                return;
+            }
+            refused.putAll(failures);
+            answered();
+            request(entries);
+            finished();
+        });
+
+        if (earlier.isEmpty()) {
+            store(values, answered);
+        }
+        else {
+            CompletableFuture.allOf(earlier.toArray(new CompletableFuture<?>[earlier.size()]))
+                             .whenComplete((v, e) -> {
+                                 if (e != null) {
+                                     answered.completeExceptionally(e);
+                                 }
+                                 else {
+                                     store(values, answered);
+                                 }
+                             });
+        }
+    }
+
+    private void store(Map<Key, byte[]> values, CompletableFuture<Map<Key, StatusException>> answered) {
+        CompletableFuture<Map<Key, StatusException>> stored;
+        try {
+            stored = memcake.setMulti(values).flags(flags).expires(expires).timeout(timeout).execute();
+        } catch (RuntimeException e) {
+            // the client has been closed
+            answered.completeExceptionally(e);
+            return;
+        }
+        stored.whenComplete((failures, e) -> {
+            if (e != null) {
+                answered.completeExceptionally(e);
+            }
+            else {
+                answered.complete(failures);
+            }
+        });
+    }
+
+    /**
+     * A chunk has been answered, send whatever has gathered in the meantime.
+     */
+    private synchronized void answered() {
+        unanswered--;
+        if (!completion.isDone()) {
+            send();
+        }
+    }
+
+    private synchronized void request(long n) {
+        if (!completion.isDone()) {
+            unarrived.addAndGet(n);
+            upstream.request(n);
+        }
+    }
+
+    private void finished() {
+        if (outstanding.decrementAndGet() == 0) {
+            completion.complete(Collections.unmodifiableMap(refused));
+        }
+    }
+}
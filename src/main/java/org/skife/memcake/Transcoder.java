@@ -0,0 +1,37 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake;
+
+import org.skife.memcake.connection.Value;
+
+/**
+ * Converts between objects and the bytes and flags memcached stores for them. Built in
+ * transcoders are available from {@link Transcoders}.
+ * <p>
+ * Transcoders mark what they store in the flags, so a transcoder which owns a value's flags
+ * should not be combined with {@link SetOp#flags(int)}.
+ */
+public interface Transcoder<T> {
+
+    /**
+     * @return the bytes and flags to store for {@code value}. The version of the returned
+     * value is ignored
+     */
+    Value encode(T value);
+
+    /**
+     * @throws IllegalStateException if the value was not stored by a compatible transcoder
+     */
+    T decode(Value value);
+}
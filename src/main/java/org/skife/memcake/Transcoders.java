@@ -0,0 +1,226 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake;
+
+import org.skife.memcake.connection.Value;
+import org.skife.memcake.connection.Version;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Function;
+
+/**
+ * Built in {@link Transcoder}s.
+ * <p>
+ * Flags are laid out with the low byte for how a value was stored ({@link #SERIALIZED},
+ * {@link #COMPRESSED}) and the next byte for the type of a number or boolean. Numbers and
+ * booleans are stored as their decimal text, so memcached's increment and decrement work on
+ * values stored with {@link #longs()}, and plain text counters (flags of zero) can be read
+ * back with it.
+ */
+public final class Transcoders {
+    /**
+     * Flag marking a value stored with Java serialization.
+     */
+    public static final int SERIALIZED = 1;
+
+    /**
+     * Reserved flag marking a value which was deflated, see {@link #compressing(Transcoder, int)}.
+     */
+    public static final int COMPRESSED = 1 << 1;
+
+    static final int TYPE_MASK = 0xff00;
+    static final int TYPE_BOOLEAN = 1 << 8;
+    static final int TYPE_INT = 2 << 8;
+    static final int TYPE_LONG = 3 << 8;
+    static final int TYPE_FLOAT = 6 << 8;
+    static final int TYPE_DOUBLE = 7 << 8;
+
+    private static final int STORAGE_FLAGS = TYPE_MASK | SERIALIZED | COMPRESSED;
+
+    private static final Transcoder<byte[]> BYTES = new Transcoder<byte[]>() {
+        @Override
+        public Value encode(byte[] value) {
+            return Value.of(Version.NONE, 0, value);
+        }
+
+        @Override
+        public byte[] decode(Value value) {
+            return value.getValue();
+        }
+    };
+
+    private static final Transcoder<String> STRING = new Transcoder<String>() {
+        @Override
+        public Value encode(String value) {
+            return Value.of(Version.NONE, 0, value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public String decode(Value value) {
+            return new String(value.getValue(), StandardCharsets.UTF_8);
+        }
+    };
+
+    private static final Transcoder<Boolean> BOOLEANS = text(TYPE_BOOLEAN, Transcoders::parseBoolean);
+    private static final Transcoder<Integer> INTS = text(TYPE_INT, Integer::valueOf);
+    private static final Transcoder<Long> LONGS = text(TYPE_LONG, Long::valueOf);
+    private static final Transcoder<Float> FLOATS = text(TYPE_FLOAT, Float::valueOf);
+    private static final Transcoder<Double> DOUBLES = text(TYPE_DOUBLE, Double::valueOf);
+
+    private Transcoders() {
+    }
+
+    /**
+     * Raw bytes, with flags of zero. Reads any value as it was stored.
+     */
+    public static Transcoder<byte[]> bytes() {
+        return BYTES;
+    }
+
+    /**
+     * UTF-8 text, with flags of zero. Reads any value as it was stored.
+     */
+    public static Transcoder<String> string() {
+        return STRING;
+    }
+
+    public static Transcoder<Boolean> booleans() {
+        return BOOLEANS;
+    }
+
+    public static Transcoder<Integer> ints() {
+        return INTS;
+    }
+
+    public static Transcoder<Long> longs() {
+        return LONGS;
+    }
+
+    public static Transcoder<Float> floats() {
+        return FLOATS;
+    }
+
+    public static Transcoder<Double> doubles() {
+        return DOUBLES;
+    }
+
+    /**
+     * Java serialization. Only read values written by trusted code with this: deserializing
+     * attacker controlled bytes can run arbitrary code.
+     *
+     * @param type the type values are cast to when read
+     */
+    public static <T extends Serializable> Transcoder<T> serializable(Class<T> type) {
+        return new Transcoder<T>() {
+            @Override
+            public Value encode(T value) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                    out.writeObject(value);
+                } catch (IOException e) {
+                    throw new IllegalArgumentException("unable to serialize " + value.getClass().getName(), e);
+                }
+                return Value.of(Version.NONE, SERIALIZED, bytes.toByteArray());
+            }
+
+            @Override
+            public T decode(Value value) {
+                checkFlags(value, SERIALIZED, "serialized");
+                try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(value.getValue()))) {
+                    return type.cast(in.readObject());
+                } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                    throw new IllegalStateException("unable to deserialize a " + type.getName(), e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Deflate values encoded by {@code transcoder} which are at least {@code threshold} bytes,
+     * marking them with {@link #COMPRESSED}, and inflate them again when read. Values which do
+     * not shrink are stored as they are. The deflaters, inflaters, and scratch buffers used are
+     * pooled.
+     */
+    public static <T> Transcoder<T> compressing(Transcoder<T> transcoder, int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must not be negative");
+        }
+        return new CompressingTranscoder<>(transcoder, threshold);
+    }
+
+    private static <T> Transcoder<T> text(int type, Function<String, T> parse) {
+        return new Transcoder<T>() {
+            @Override
+            public Value encode(T value) {
+                return Value.of(Version.NONE, type, value.toString().getBytes(StandardCharsets.US_ASCII));
+            }
+
+            @Override
+            public T decode(Value value) {
+                if ((value.getFlags() & STORAGE_FLAGS) != 0) {
+                    checkFlags(value, type, "a " + typeName(type));
+                }
+                // memcached pads counters which shrink with trailing spaces
+                String text = new String(value.getValue(), StandardCharsets.US_ASCII).trim();
+                try {
+                    return parse.apply(text);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalStateException("'" + text + "' is not a " + typeName(type), e);
+                }
+            }
+        };
+    }
+
+    private static Boolean parseBoolean(String text) {
+        if ("true".equals(text)) {
+            return Boolean.TRUE;
+        }
+        if ("false".equals(text)) {
+            return Boolean.FALSE;
+        }
+        throw new IllegalArgumentException(text);
+    }
+
+    private static void checkFlags(Value value, int expected, String what) {
+        int flags = value.getFlags() & STORAGE_FLAGS;
+        if ((flags & COMPRESSED) != 0) {
+            throw new IllegalStateException("value is compressed, read it with Transcoders.compressing(...)");
+        }
+        if (flags != expected) {
+            throw new IllegalStateException("value was not stored as " + what + ", flags are 0x"
+                                            + Integer.toHexString(value.getFlags()));
+        }
+    }
+
+    private static String typeName(int type) {
+        switch (type) {
+            case TYPE_BOOLEAN:
+                return "boolean";
+            case TYPE_INT:
+                return "int";
+            case TYPE_LONG:
+                return "long";
+            case TYPE_FLOAT:
+                return "float";
+            default:
+                return "double";
+        }
+    }
+}
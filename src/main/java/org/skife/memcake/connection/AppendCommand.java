@@ -13,7 +13,6 @@
  */
 package org.skife.memcake.connection;
 
-import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.util.concurrent.CompletableFuture;
 
@@ -38,24 +37,18 @@ class AppendCommand extends Command {
 
 
     @Override
-    void writeBody(ByteBuffer buffer) {
-        buffer.put(key);
-        buffer.put(value);
+    byte[] value() {
+        return value;
     }
 
     @Override
-    int bodyLength() {
-        return value.length;
+    byte[] key() {
+        return key;
     }
 
     @Override
-    char keyLength() {
-        return (char) key.length;
-    }
-
-    @Override
-    Responder createResponder(int opaque) {
-        return Responder.versionResponder(result, opaque);
+    Responder createResponder() {
+        return Responder.versionResponder(result);
     }
 
     @Override
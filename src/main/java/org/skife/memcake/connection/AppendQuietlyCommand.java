@@ -13,7 +13,6 @@
  */
 package org.skife.memcake.connection;
 
-import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.util.concurrent.CompletableFuture;
 
@@ -36,8 +35,8 @@ class AppendQuietlyCommand extends Command {
     }
 
     @Override
-    Responder createResponder(int opaque) {
-        return Responder.voidResponder(this, result, opaque);
+    Responder createResponder() {
+        return Responder.voidResponder(this, result);
     }
 
     @Override
@@ -46,23 +45,22 @@ class AppendQuietlyCommand extends Command {
     }
 
     @Override
-    void writeBody(ByteBuffer buffer) {
-        buffer.put(key);
-        buffer.put(value);
+    byte[] value() {
+        return value;
     }
 
     @Override
-    int bodyLength() {
-        return value.length;
+    byte[] key() {
+        return key;
     }
 
     @Override
-    char keyLength() {
-        return (char) key.length;
+    long cas() {
+        return cas.token();
     }
 
     @Override
-    long cas() {
-        return cas.token();
+    boolean isQuiet() {
+        return true;
     }
 }
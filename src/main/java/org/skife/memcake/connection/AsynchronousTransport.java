@@ -0,0 +1,132 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.connection;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects with {@link AsynchronousSocketChannel}s. Reads and writes complete on the threads
+ * of the channel group, which on Linux is an epoll loop handing completions to a pool.
+ */
+public class AsynchronousTransport implements Transport {
+    private final AsynchronousChannelGroup group;
+
+    private AsynchronousTransport(AsynchronousChannelGroup group) {
+        this.group = group;
+    }
+
+    /**
+     * Open channels in the default channel group.
+     */
+    public static AsynchronousTransport create() {
+        return new AsynchronousTransport(null);
+    }
+
+    /**
+     * @param group group to open channels in, it is not shut down by this transport
+     */
+    public static AsynchronousTransport create(AsynchronousChannelGroup group) {
+        return new AsynchronousTransport(group);
+    }
+
+    @Override
+    public CompletableFuture<TransportChannel> connect(SocketAddress address) {
+        if (UnixDomainSockets.isUnixDomain(address)) {
+            CompletableFuture<TransportChannel> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalArgumentException(
+                "asynchronous channels cannot connect to unix domain sockets, use a SelectorTransport"));
+            return failed;
+        }
+        AsynchronousSocketChannel channel;
+        try {
+            channel = AsynchronousSocketChannel.open(group);
+        } catch (IOException e) {
+            CompletableFuture<TransportChannel> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        return connect(channel, address);
+    }
+
+    /**
+     * Connect a channel opened by somebody else. Nagle is turned off, as otherwise a quiet command
+     * followed by a get waits on the server's delayed ack.
+     */
+    static CompletableFuture<TransportChannel> connect(AsynchronousSocketChannel channel, SocketAddress address) {
+        final CompletableFuture<TransportChannel> cf = new CompletableFuture<>();
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        } catch (IOException e) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // close quietly
+            }
+            cf.completeExceptionally(e);
+            return cf;
+        }
+        channel.connect(address, channel, new CompletionHandler<Void, AsynchronousSocketChannel>() {
+            @Override
+            public void completed(Void result, AsynchronousSocketChannel channel) {
+                cf.complete(new Channel(channel));
+            }
+
+            @Override
+            public void failed(Throwable exc, AsynchronousSocketChannel channel) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // close quietly
+                }
+                cf.completeExceptionally(exc);
+            }
+        });
+        return cf;
+    }
+
+    private static final class Channel implements TransportChannel {
+        private final AsynchronousSocketChannel channel;
+
+        Channel(AsynchronousSocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public <A> void read(ByteBuffer dst, A attachment, CompletionHandler<Integer, ? super A> handler) {
+            channel.read(dst, attachment, handler);
+        }
+
+        @Override
+        public <A> void write(ByteBuffer[] srcs,
+                              int offset,
+                              int length,
+                              A attachment,
+                              CompletionHandler<Long, ? super A> handler) {
+            channel.write(srcs, offset, length, 0, TimeUnit.MILLISECONDS, attachment, handler);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.connection;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * A run of quiet commands written back to back and anchored by a noop, answered as one request.
+ * <p>
+ * The entries get consecutive opaques of their own, just ahead of the noop, so the server's
+ * answers to them can be told apart without giving each an in flight slot, timeout, and future.
+ * Only the noop goes in the in flight table. The connection hands whatever the server says
+ * about an entry to {@link #entryAnswered(int, Response)}, and the noop's response to the
+ * responder, by which point the server has processed every entry.
+ * <p>
+ * Entries are answered on the read loop, one at a time, so subclasses can collect results in
+ * plain collections and publish them from the responder.
+ */
+abstract class BatchCommand extends Command {
+
+    private final List<? extends Command> entries;
+
+    // opaques of the first and last entries, assigned by the write loop
+    volatile int firstOpaque;
+    volatile int lastOpaque;
+    // entries the server said something about, only touched by the read loop
+    int answered;
+
+    BatchCommand(List<? extends Command> entries, Duration timeout) {
+        super(timeout);
+        this.entries = entries;
+    }
+
+    List<? extends Command> entries() {
+        return entries;
+    }
+
+    /**
+     * The server said something about entry {@code index}: a hit for a get, an error for
+     * most anything else.
+     */
+    abstract void entryAnswered(int index, Response response);
+
+    @Override
+    final byte opcode() {
+        return Opcodes.noop;
+    }
+}
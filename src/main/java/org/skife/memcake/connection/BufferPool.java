@@ -0,0 +1,160 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.connection;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size classed pool of reusable buffers used for encoding requests and reading response bodies.
+ * <p>
+ * Buffers are handed out in power of two size classes from {@link #MIN_POOLED_SIZE} to
+ * {@link #MAX_POOLED_SIZE}. Requests larger than that are allocated on demand and never retained.
+ * The total capacity of idle buffers held by the pool is bounded by the cap given at creation,
+ * buffers released past that cap are dropped for the garbage collector.
+ * <p>
+ * A pool is safe to share between any number of connections.
+ */
+public class BufferPool {
+    static final int MIN_POOLED_SIZE = 64;
+    static final int MAX_POOLED_SIZE = 1024 * 1024;
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_POOLED_SIZE);
+    private static final int MAX_SHIFT = Integer.numberOfTrailingZeros(MAX_POOLED_SIZE);
+
+    private final Queue<ByteBuffer>[] classes;
+    private final boolean direct;
+    private final long maxPooledBytes;
+    private final AtomicLong pooledBytes = new AtomicLong(0);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder discards = new LongAdder();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private BufferPool(boolean direct, long maxPooledBytes) {
+        this.direct = direct;
+        this.maxPooledBytes = maxPooledBytes;
+        this.classes = new Queue[MAX_SHIFT - MIN_SHIFT + 1];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    /**
+     * @param direct         if true buffers are allocated off heap via {@link ByteBuffer#allocateDirect(int)}
+     * @param maxPooledBytes upper bound on the total capacity of idle buffers the pool will retain
+     */
+    public static BufferPool create(boolean direct, long maxPooledBytes) {
+        if (maxPooledBytes < 0) {
+            throw new IllegalArgumentException("maxPooledBytes must not be negative");
+        }
+        return new BufferPool(direct, maxPooledBytes);
+    }
+
+    /**
+     * Obtain a buffer with position zero and limit set to exactly {@code size}. The capacity
+     * may be larger. It should be handed back via {@link #release(ByteBuffer)} when no
+     * longer referenced.
+     */
+    ByteBuffer acquire(int size) {
+        if (size > MAX_POOLED_SIZE) {
+            misses.increment();
+            return allocate(size);
+        }
+        int sizeClass = sizeClass(size);
+        ByteBuffer buffer = classes[sizeClass].poll();
+        if (buffer == null) {
+            misses.increment();
+            buffer = allocate(1 << (sizeClass + MIN_SHIFT));
+        }
+        else {
+            hits.increment();
+            pooledBytes.addAndGet(-buffer.capacity());
+        }
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Return a buffer obtained from {@link #acquire(int)} to the pool. The caller must not
+     * touch the buffer again afterwards.
+     */
+    void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (capacity > MAX_POOLED_SIZE
+            || capacity < MIN_POOLED_SIZE
+            || Integer.bitCount(capacity) != 1
+            || buffer.isDirect() != direct) {
+            // not one of ours
+            return;
+        }
+        if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+            pooledBytes.addAndGet(-capacity);
+            discards.increment();
+            return;
+        }
+        buffer.clear();
+        classes[sizeClass(capacity)].offer(buffer);
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= MIN_POOLED_SIZE) {
+            return 0;
+        }
+        return (32 - Integer.numberOfLeadingZeros(size - 1)) - MIN_SHIFT;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public long getMaxPooledBytes() {
+        return maxPooledBytes;
+    }
+
+    /**
+     * Total capacity of the idle buffers currently held by the pool.
+     */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * Number of acquisitions satisfied by a pooled buffer.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Number of acquisitions which needed a fresh allocation.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Number of released buffers dropped because the pool was at its cap.
+     */
+    public long getDiscards() {
+        return discards.sum();
+    }
+}
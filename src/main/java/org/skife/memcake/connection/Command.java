@@ -14,8 +14,8 @@
 package org.skife.memcake.connection;
 
 import java.nio.ByteBuffer;
-import java.nio.channels.CompletionHandler;
 import java.time.Duration;
+import java.util.List;
 
 abstract class Command {
 
@@ -25,65 +25,71 @@ abstract class Command {
         this.timeout = timeout;
     }
 
-    abstract Responder createResponder(int opaque);
+    abstract Responder createResponder();
 
     byte extraLength() {
         return 0;
     }
 
-    char keyLength() {
-        return 0;
+    /**
+     * Values up to this size are copied in behind the header, larger ones are handed to the
+     * channel as-is so big sets are never copied on the client.
+     */
+    static final int MAX_INLINE_VALUE = 512;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    byte[] key() {
+        return EMPTY;
     }
 
-    int bodyLength() {
-        return 0;
+    byte[] value() {
+        return EMPTY;
     }
 
     long cas() {
         return 0;
     }
 
-    void writeBody(ByteBuffer buffer) {
+    void writeExtras(ByteBuffer buffer) {
     }
 
-    final void write(Connection conn, Integer opaque) {
+    /**
+     * Encode this command as a request packet, appending the buffers to write, in order, to
+     * {@code packet}. The header, extras, and key (at most 250 bytes) go in a buffer leased from
+     * {@code pool}, which is returned so it can be released once written. Values larger than
+     * {@link #MAX_INLINE_VALUE} are wrapped rather than copied.
+     */
+    final ByteBuffer encode(int opaque, BufferPool pool, List<ByteBuffer> packet) {
         byte extraLength = extraLength();
-        char keyLength = keyLength();
-        int bodyLength = bodyLength();
+        byte[] key = key();
+        byte[] value = value();
+        char keyLength = (char) key.length;
+        boolean inline = value.length <= MAX_INLINE_VALUE;
 
-        ByteBuffer buffer = ByteBuffer.allocate(24 + extraLength + keyLength + bodyLength);
+        ByteBuffer buffer = pool.acquire(24 + extraLength + keyLength + (inline ? value.length : 0));
         buffer.put((byte) 0x80); // client magic number
         buffer.put(opcode());
         buffer.putChar(keyLength);
         buffer.put(extraLength); // extra length
         buffer.put((byte) 0x00); // data type
         buffer.putChar((char) 0x00); // vbucket
-        buffer.putInt(extraLength + keyLength + bodyLength); // totalBody
+        buffer.putInt(extraLength + keyLength + value.length); // totalBody
         buffer.putInt(opaque);
         buffer.putLong(cas());
 
-        writeBody(buffer);
+        writeExtras(buffer);
+        buffer.put(key);
+        if (inline) {
+            buffer.put(value);
+        }
 
         buffer.flip();
-        Command.writeBuffer(conn, buffer);
-    }
-
-    private static void writeBuffer(final Connection conn, final ByteBuffer buffer) {
-        conn.getChannel().write(buffer, buffer, new CompletionHandler<Integer, ByteBuffer>() {
-            @Override
-            public void completed(Integer result, ByteBuffer attachment) {
-                if (attachment.remaining() != 0) {
-                    writeBuffer(conn, buffer);
-                    return;
-                }
-                conn.finishWrite();
-            }
-
-            @Override
-            public void failed(Throwable exc, ByteBuffer attachment) {
-                conn.networkFailure(exc);
-            }
-        });
+        packet.add(buffer);
+        if (!inline) {
+            packet.add(ByteBuffer.wrap(value));
+        }
+        return buffer;
     }
 
     Duration getTimeout() {
@@ -0,0 +1,88 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.connection;
+
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Where the futures a connection returns are completed, and so where callbacks attached to
+ * them run.
+ * <p>
+ * Responses are decoded on the transport's I/O threads, and by default their futures are
+ * completed right there, so a slow callback holds up every response behind it on the
+ * connection (and, with a {@link SelectorTransport}, every other connection on its loop). The
+ * other strategies decode on the I/O thread as always, then hand completion to an executor.
+ * Pooled and streamed values are unaffected, they are still filled in before the hand off.
+ * <p>
+ * Futures failed outside of reading, by a timeout or network failure, are handed off the same
+ * way. Should the executor reject a completion it is run on the calling thread instead, rather
+ * than leaving the future hanging.
+ */
+public final class CompletionStrategy {
+    private static final CompletionStrategy INLINE = new CompletionStrategy(null, false);
+
+    private final Executor executor;
+    private final boolean batched;
+
+    private CompletionStrategy(Executor executor, boolean batched) {
+        this.executor = executor;
+        this.batched = batched;
+    }
+
+    /**
+     * Complete futures on whichever thread settles them, usually an I/O thread. Cheapest, as
+     * long as callbacks are quick and never block.
+     */
+    public static CompletionStrategy inline() {
+        return INLINE;
+    }
+
+    /**
+     * Complete each future in a task of its own on {@code executor}. Futures are only completed
+     * in the order their responses arrived if the executor runs tasks one at a time.
+     */
+    public static CompletionStrategy executor(Executor executor) {
+        return new CompletionStrategy(Objects.requireNonNull(executor, "executor"), false);
+    }
+
+    /**
+     * Complete every future settled while decoding one read in a single task on
+     * {@code executor}, in the order their responses arrived. Deep pipelines pay for one hand
+     * off per read rather than per response.
+     */
+    public static CompletionStrategy batched(Executor executor) {
+        return new CompletionStrategy(Objects.requireNonNull(executor, "executor"), true);
+    }
+
+    boolean isInline() {
+        return executor == null;
+    }
+
+    boolean isBatched() {
+        return batched;
+    }
+
+    /**
+     * Run {@code completion} on the executor, or right here if it will not take it.
+     */
+    void execute(Runnable completion) {
+        try {
+            executor.execute(completion);
+        } catch (RejectedExecutionException e) {
+            completion.run();
+        }
+    }
+}
@@ -13,170 +13,485 @@
  */
 package org.skife.memcake.connection;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousByteChannel;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.BlockingDeque;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class Connection implements AutoCloseable {
 
+    /**
+     * The most requests a connection may have in flight, as its opaques are tracked in a ring
+     * which must stay larger than that. Opening a connection with a higher limit fails.
+     */
+    public static final int MAX_REQUESTS_IN_FLIGHT = InFlightTable.MAX_CAPACITY / 2;
+
+    // upper bounds on how much a single gathering write will drain from queuedRequests.
+    // the command cap matches the usual IOV_MAX, past which the kernel splits writes anyway.
+    static final int MAX_BATCH_COMMANDS = 1024;
+    static final int MAX_BATCH_BYTES = 256 * 1024;
+
+    // bounds for the adaptive receive buffer. It will still grow past the max to fit
+    // a single response which is larger than that.
+    static final int MIN_READ_BUFFER = 16 * 1024;
+    static final int MAX_READ_BUFFER = 256 * 1024;
+    private static final int SHRINK_AFTER_SMALL_READS = 16;
+
+    // shared by connections opened without an explicit pool
+    private static final BufferPool DEFAULT_BUFFER_POOL = BufferPool.create(false, 32 * 1024 * 1024);
+
     // size is limited by maxRequestsInFlight
     private final BlockingDeque<Pair<Long, Command>> queuedRequests = new LinkedBlockingDeque<>();
-    private final ConcurrentMap<Integer, Responder> waiting = new ConcurrentHashMap<>();
 
-    // opaque -> Response mapping for responses which have not been responded to yet.
-    // Will generally cycle quickly, the only time it should accumulate is when a big
-    // pipeline of quiet gets (or such) were fired off and we're waiting on their
-    // anchor to land.
+    // requests which have been written and are waiting on a response, by opaque.
     // made visible-ish for white box testing purposes only
-    final ConcurrentMap<Integer, Response> scoreboard = new ConcurrentHashMap<>();
+    final InFlightTable inFlight;
 
-    // list of opaques for quiet operations which have been written but which have not had
-    // a non-quiet command follow yet. Queue will be dumped into quietProxies once such
-    // a command is sent.
-    //
-    // made visible-ish for white box testing purposes only
-    //
-    // size is limited by maxRequestsInFlight
-    final BlockingQueue<Integer> queuedQuiets = new LinkedBlockingQueue<>();
+    // batches in flight, by the opaque of their first entry. Entries don't go in the in flight
+    // table, so responses to them are matched up here instead.
+    final ConcurrentSkipListMap<Integer, BatchCommand> batches = new ConcurrentSkipListMap<>();
 
-    // tracks the collection of of quiet command opaques which were sent after the last non-quiet
-    // command, and before the key here. Basically, when we see the opaque for any of these
-    // keys come back, we know the commands from the opaques attached have all been processed
-    // so if we didn't get a response, well, make sense of it based on the type of quiet :-)
-    // made visible-ish for white box testing purposes only
-    final ConcurrentMap<Integer, Collection<Integer>> quietProxies = new ConcurrentHashMap<>();
+    // only touched by the write loop, which the writing flag keeps to one thread at a time.
+    // quietOpaques holds the quiet commands written since the last non-quiet one, which
+    // takes them over as the command whose response tells us they are finished.
+    private int nextOpaque = Integer.MIN_VALUE;
+    private int[] quietOpaques = new int[16];
+    private int quietCount = 0;
+    private Duration lastQuietTimeout;
 
-    private final AtomicInteger opaques = new AtomicInteger(Integer.MIN_VALUE);
     private final AtomicInteger requestsInFlightCount = new AtomicInteger(0);
+
+    // requests waiting, in arrival order, for a permit to go in flight. Only used when
+    // maxWaitingRequests is positive, otherwise requests past the limit are failed at once.
+    // Waiters which time out stay queued until admitWaiting() reaches and drops them, so
+    // waitingCount, of waiters not yet claimed, is kept by whoever claims one.
+    private final ConcurrentLinkedQueue<Waiter> waiting = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger waitingCount = new AtomicInteger(0);
     private final AtomicBoolean open = new AtomicBoolean(true);
     private final AtomicBoolean failed = new AtomicBoolean(false);
     private final AtomicBoolean writing = new AtomicBoolean(false);
     private final List<Runnable> networkFailureListeners = new CopyOnWriteArrayList<>();
 
-    private final AsynchronousByteChannel channel;
-    private final ScheduledExecutorService timeoutExecutor;
+    private final TransportChannel channel;
+    private final TimeoutScheduler timeouts;
     private final int maxRequestsInFlight;
+    private final int maxWaitingRequests;
+    private final BufferPool bufferPool;
+    private volatile Metrics metrics = Metrics.create();
+    private volatile CompletionStrategy completions = CompletionStrategy.inline();
+    private volatile boolean anchorQuiets = false;
+
+    // only touched by the read loop, which has at most one read outstanding
+    private final Response response = new Response(this);
+    private ByteBuffer readBuffer;
+    private int smallReads = 0;
+    // the get whose value is being streamed out of the receive buffer, if any, and how
+    // much of the value is still to come. Nothing else is decoded until it is done, so
+    // the response's header stays put in the meantime.
+    private boolean streaming = false;
+    private StreamingGetCommand streamingTo;
+    private int streamRemaining = 0;
+    // the thread decoding a read while it is, and the completions batched up until it is done
+    private volatile Thread decoding;
+    private final List<Runnable> decoded = new ArrayList<>();
+    private CompletionStrategy decodedBy;
 
-    Connection(AsynchronousByteChannel channel,
-               ScheduledExecutorService timeoutExecutor,
-               int maxRequestsInFlight) {
+    Connection(TransportChannel channel,
+               TimeoutScheduler timeouts,
+               int maxRequestsInFlight,
+               int maxWaitingRequests,
+               BufferPool bufferPool) {
         this.channel = channel;
-        this.timeoutExecutor = timeoutExecutor;
+        this.timeouts = timeouts;
         this.maxRequestsInFlight = maxRequestsInFlight;
+        this.maxWaitingRequests = maxWaitingRequests;
+        this.bufferPool = bufferPool;
+        this.inFlight = new InFlightTable(maxRequestsInFlight);
+        this.readBuffer = bufferPool.acquire(MIN_READ_BUFFER);
+        this.readBuffer.limit(readBuffer.capacity());
     }
 
     public static CompletableFuture<Connection> open(SocketAddress memcachedServerAddress,
                                                      int maxRequestsInFlight,
                                                      AsynchronousSocketChannel channel,
                                                      ScheduledExecutorService timeoutExecutor) throws IOException {
-        final CompletableFuture<Connection> cf = new CompletableFuture<>();
-        channel.connect(memcachedServerAddress, channel, new CompletionHandler<Void, AsynchronousSocketChannel>() {
-            @Override
-            public void completed(Void result, AsynchronousSocketChannel channel) {
-                final Connection conn = new Connection(channel, timeoutExecutor, maxRequestsInFlight);
-                conn.nextResponse(ByteBuffer.allocate(24));
-                cf.complete(conn);
-            }
+        return open(memcachedServerAddress, maxRequestsInFlight, channel, timeoutExecutor, DEFAULT_BUFFER_POOL);
+    }
 
-            @Override
-            public void failed(Throwable exc, AsynchronousSocketChannel attachment) {
-                cf.completeExceptionally(exc);
-            }
+    /**
+     * Open a connection which times out requests on {@code timer}. Unlike a scheduled
+     * executor, the timer drops each timeout as soon as its response arrives rather than
+     * holding on to it until the deadline.
+     */
+    public static CompletableFuture<Connection> open(SocketAddress memcachedServerAddress,
+                                                     int maxRequestsInFlight,
+                                                     AsynchronousSocketChannel channel,
+                                                     HashedWheelTimer timer) throws IOException {
+        return open(memcachedServerAddress, maxRequestsInFlight, channel, timer, DEFAULT_BUFFER_POOL);
+    }
+
+    public static CompletableFuture<Connection> open(SocketAddress memcachedServerAddress,
+                                                     int maxRequestsInFlight,
+                                                     AsynchronousSocketChannel channel,
+                                                     HashedWheelTimer timer,
+                                                     BufferPool bufferPool) throws IOException {
+        checkLimits(maxRequestsInFlight, 0);
+        return open(AsynchronousTransport.connect(channel, memcachedServerAddress),
+                    maxRequestsInFlight,
+                    0,
+                    timer::schedule,
+                    bufferPool);
+    }
+
+    /**
+     * Open a connection over {@code transport}, which times out requests on {@code timer}.
+     */
+    public static CompletableFuture<Connection> open(SocketAddress memcachedServerAddress,
+                                                     int maxRequestsInFlight,
+                                                     Transport transport,
+                                                     HashedWheelTimer timer) {
+        return open(memcachedServerAddress, maxRequestsInFlight, 0, transport, timer, DEFAULT_BUFFER_POOL);
+    }
+
+    /**
+     * Open a connection over {@code transport}, holding up to {@code maxWaitingRequests} past
+     * {@code maxRequestsInFlight} until they can go, as with
+     * {@link #open(SocketAddress, int, int, AsynchronousSocketChannel, HashedWheelTimer, BufferPool)}.
+     */
+    public static CompletableFuture<Connection> open(SocketAddress memcachedServerAddress,
+                                                     int maxRequestsInFlight,
+                                                     int maxWaitingRequests,
+                                                     Transport transport,
+                                                     HashedWheelTimer timer,
+                                                     BufferPool bufferPool) {
+        checkLimits(maxRequestsInFlight, maxWaitingRequests);
+        return open(transport.connect(memcachedServerAddress),
+                    maxRequestsInFlight,
+                    maxWaitingRequests,
+                    timer::schedule,
+                    bufferPool);
+    }
+
+    /**
+     * Open a connection which, rather than failing requests past {@code maxRequestsInFlight},
+     * holds up to {@code maxWaitingRequests} more in a first come first served queue until a
+     * request in flight completes. A request's timeout starts when it is made, so time spent
+     * waiting counts against it, and it fails with a timeout if it never gets a turn. Requests
+     * beyond the queue's bound are failed at once.
+     */
+    public static CompletableFuture<Connection> open(SocketAddress memcachedServerAddress,
+                                                     int maxRequestsInFlight,
+                                                     int maxWaitingRequests,
+                                                     AsynchronousSocketChannel channel,
+                                                     HashedWheelTimer timer,
+                                                     BufferPool bufferPool) throws IOException {
+        checkLimits(maxRequestsInFlight, maxWaitingRequests);
+        return open(AsynchronousTransport.connect(channel, memcachedServerAddress),
+                    maxRequestsInFlight,
+                    maxWaitingRequests,
+                    timer::schedule,
+                    bufferPool);
+    }
+
+    /**
+     * Open a connection which leases its request and response buffers from {@code bufferPool}.
+     * The pool may be shared by any number of connections.
+     */
+    public static CompletableFuture<Connection> open(SocketAddress memcachedServerAddress,
+                                                     int maxRequestsInFlight,
+                                                     AsynchronousSocketChannel channel,
+                                                     ScheduledExecutorService timeoutExecutor,
+                                                     BufferPool bufferPool) throws IOException {
+        checkLimits(maxRequestsInFlight, 0);
+        return open(AsynchronousTransport.connect(channel, memcachedServerAddress),
+                    maxRequestsInFlight,
+                    0,
+                    TimeoutScheduler.of(timeoutExecutor),
+                    bufferPool);
+    }
+
+    private static void checkLimits(int maxRequestsInFlight, int maxWaitingRequests) {
+        if (maxRequestsInFlight > MAX_REQUESTS_IN_FLIGHT) {
+            throw new IllegalArgumentException("maxRequestsInFlight must be at most " + MAX_REQUESTS_IN_FLIGHT);
+        }
+        if (maxWaitingRequests < 0) {
+            throw new IllegalArgumentException("maxWaitingRequests must not be negative");
+        }
+    }
+
+    private static CompletableFuture<Connection> open(CompletableFuture<TransportChannel> connecting,
+                                                      int maxRequestsInFlight,
+                                                      int maxWaitingRequests,
+                                                      TimeoutScheduler timeouts,
+                                                      BufferPool bufferPool) {
+        return connecting.thenApply((channel) -> {
+            final Connection conn = new Connection(channel,
+                                                   timeouts,
+                                                   maxRequestsInFlight,
+                                                   maxWaitingRequests,
+                                                   bufferPool);
+            conn.nextResponse();
+            return conn;
         });
-        return cf;
     }
 
     /**
      * The main write loop used to ensure only one write is happening at a time.
      * <p>
-     * Mutually recursive with finishWrite via {@link Command#write(Connection, Integer)}
+     * Drains as many queued commands as fit within {@link #MAX_BATCH_COMMANDS} and
+     * {@link #MAX_BATCH_BYTES} and puts them on the wire with a single gathering write,
+     * so a deep pipeline costs a handful of writes rather than one per command.
+     * <p>
+     * Large values are handed to the channel as they are rather than copied, only the
+     * header buffers leased from the pool are released once the batch is written.
+     * <p>
+     * Mutually recursive with finishWrite via {@link #writeBatch(ByteBuffer[], ByteBuffer[], int)}
      */
     private void maybeWrite() {
         if (writing.compareAndSet(false, true)) {
-            // write next outbound command
+            // write next batch of outbound commands
             // we rely on writeFinished() being called to unset this flag
-            final Pair<Long, Command> cp = queuedRequests.poll();
-            if (cp == null) {
+            final List<ByteBuffer> batch = new ArrayList<>();
+            final List<ByteBuffer> leased = new ArrayList<>();
+            long batchBytes = 0;
+            while (leased.size() < MAX_BATCH_COMMANDS && batchBytes < MAX_BATCH_BYTES) {
+                final Pair<Long, Command> cp = queuedRequests.poll();
+                if (cp == null) {
+                    break;
+                }
+                int first = batch.size();
+                if (!dispatch(cp, true, batch, leased)) {
+                    continue;
+                }
+                for (int i = first; i < batch.size(); i++) {
+                    batchBytes += batch.get(i).remaining();
+                }
+            }
+            if (anchorQuiets && quietCount > 0 && queuedRequests.isEmpty()) {
+                // nothing behind the trailing quiet commands to say when they are finished
+                NoOpCommand anchor = new NoOpCommand(new CompletableFuture<>(), lastQuietTimeout);
+                dispatch(Pair.of(System.nanoTime(), anchor), false, batch, leased);
+            }
+
+            if (batch.isEmpty()) {
                 writing.set(false);
+                // a command may have been queued after our poll but before we released
+                // the flag, in which case its maybeWrite() lost the race and returned.
+                if (!queuedRequests.isEmpty()) {
+                    maybeWrite();
+                }
                 return;
             }
-            Command c = cp.right();
-            int opaque = opaques.getAndIncrement();
-            Responder responder = c.createResponder(opaque);
-            waiting.put(opaque, responder);
-
-            if (c.isQuiet()) {
-                queuedQuiets.add(opaque);
-                // TODO enqueue it somehow for later non-quiet
+            writeBatch(batch.toArray(new ByteBuffer[batch.size()]),
+                       leased.toArray(new ByteBuffer[leased.size()]),
+                       0);
+        }
+    }
+
+    /**
+     * Assign an opaque to a command, do the quiet bookkeeping, and schedule its timeout.
+     *
+     * @param holdsPermit true if the command was queued with a permit, to be given back once it is finished
+     * @param batch       the encoded command's buffers are appended here, ready to be written
+     * @param leased      buffers leased from the pool to encode the command are appended here
+     * @return false if the command could not be sent, and has been failed
+     */
+    private boolean dispatch(Pair<Long, Command> cp,
+                             boolean holdsPermit,
+                             List<ByteBuffer> batch,
+                             List<ByteBuffer> leased) {
+        Command c = cp.right();
+        Responder responder = c instanceof BatchCommand
+                              ? batchResponder((BatchCommand) c)
+                              : c.createResponder();
+        responder.holdsPermit = holdsPermit;
+        if (!c.isQuiet() && quietCount > 0) {
+            responder.quiets = Arrays.copyOf(quietOpaques, quietCount);
+        }
+
+        // a batch's entries take the opaques just ahead of its anchor
+        int entryCount = 0;
+        int firstEntry = nextOpaque;
+        if (c instanceof BatchCommand) {
+            entryCount = ((BatchCommand) c).entries().size();
+            if ((long) firstEntry + entryCount + inFlight.capacity() > Integer.MAX_VALUE) {
+                // keep the batch's opaques in one ascending run
+                firstEntry = Integer.MIN_VALUE;
             }
-            else {
-                List<Integer> quiets = new ArrayList<>();
-                queuedQuiets.drainTo(quiets);
-                quietProxies.put(opaque, quiets);
+        }
+
+        long now = System.nanoTime();
+        long queueTime = now - cp.left();
+        responder.opcode = entryCount > 0 ? ((BatchCommand) c).entries().get(0).opcode() : c.opcode();
+        responder.queuedAt = cp.left();
+        responder.sentAt = now;
+        if (entryCount > 0) {
+            responder.batch = (BatchCommand) c;
+        }
+
+        int opaque;
+        try {
+            opaque = inFlight.add(firstEntry + entryCount, responder);
+        } catch (IllegalStateException e) {
+            metrics.failed();
+            fail(responder, e);
+            return false;
+        }
+        nextOpaque = opaque + 1;
+
+        if (entryCount > 0) {
+            BatchCommand bc = (BatchCommand) c;
+            bc.firstOpaque = firstEntry;
+            bc.lastOpaque = firstEntry + entryCount - 1;
+            batches.put(firstEntry, bc);
+        }
+
+        if (!c.isQuiet()) {
+            quietCount = 0;
+        }
+        else {
+            if (quietCount == quietOpaques.length) {
+                quietOpaques = Arrays.copyOf(quietOpaques, quietCount * 2);
             }
+            quietOpaques[quietCount++] = opaque;
+            lastQuietTimeout = c.getTimeout();
+        }
 
-            c.write(this, opaque);
-            long timeoutNanos = c.getTimeout().toNanos();
-            long queueTime = System.nanoTime() - cp.left();
-            // c.getTimeoutUnit().convert(System.nanoTime() - cp.left(), TimeUnit.NANOSECONDS);
+        long timeoutNanos = c.getTimeout().toNanos();
 
-            timeoutExecutor.schedule(() -> {
-                Responder r = waiting.remove(opaque);
-                scoreboard.remove(opaque); // possible race between response coming in and timeout hitting
-                r.failure(new TimeoutException("timed out after " + c.getTimeout()));
-            }, timeoutNanos - queueTime, TimeUnit.NANOSECONDS);
+        try {
+            responder.timeout = timeouts.schedule(() -> {
+                // lost the race if the response beat us here
+                if (inFlight.remove(responder)) {
+                    metrics.timedOut();
+                    fail(responder, new TimeoutException("timed out after " + c.getTimeout()));
+                }
+            }, timeoutNanos - queueTime);
+        } catch (RuntimeException e) {
+            // timer was shut down (or rejected it), without a timeout we cannot send it
+            if (inFlight.remove(responder)) {
+                metrics.failed();
+                fail(responder, e);
+            }
+            return false;
         }
+        metrics.sent(responder);
+
+        if (entryCount > 0) {
+            List<? extends Command> entries = ((BatchCommand) c).entries();
+            for (int i = 0; i < entryCount; i++) {
+                leased.add(entries.get(i).encode(firstEntry + i, bufferPool, batch));
+            }
+        }
+        leased.add(c.encode(opaque, bufferPool, batch));
+        return true;
     }
 
     /**
-     * Called by commands when the finish writing themselves out, this is the recur bit of the
+     * The batch's own responder, which also stops matching responses to its entries once
+     * the batch is finished.
+     */
+    private Responder batchResponder(BatchCommand bc) {
+        Responder anchor = bc.createResponder();
+        return new Responder((e) -> {
+            batches.remove(bc.firstOpaque, bc);
+            anchor.failure(e);
+        }, (r) -> {
+            batches.remove(bc.firstOpaque, bc);
+            anchor.completed(r);
+        });
+    }
+
+    private void writeBatch(final ByteBuffer[] buffers, final ByteBuffer[] leased, final int offset) {
+        channel.write(buffers, offset, buffers.length - offset, buffers,
+                      new CompletionHandler<Long, ByteBuffer[]>() {
+                          @Override
+                          public void completed(Long bytesWritten, ByteBuffer[] attachment) {
+                              metrics.wrote(bytesWritten);
+                              int next = offset;
+                              while (next < attachment.length && !attachment[next].hasRemaining()) {
+                                  next++;
+                              }
+                              if (next < attachment.length) {
+                                  writeBatch(attachment, leased, next);
+                                  return;
+                              }
+                              for (ByteBuffer buffer : leased) {
+                                  bufferPool.release(buffer);
+                              }
+                              finishWrite();
+                          }
+
+                          @Override
+                          public void failed(Throwable exc, ByteBuffer[] attachment) {
+                              networkFailure(exc);
+                          }
+                      });
+    }
+
+    /**
+     * Called when a batch has been completely written, this is the recur bit of the
      * main write loop, paired with maybeWrite()
      */
-    void finishWrite() {
+    private void finishWrite() {
         writing.set(false);
         maybeWrite();
     }
 
     /**
      * Main read loop.
+     * <p>
+     * Reads as much as the socket has into the receive buffer, decodes every complete
+     * response in it, and carries any partial response over to the next read.
      */
-    void nextResponse(ByteBuffer headerBuffer) {
+    private void nextResponse() {
         if (open.get()) {
-            channel.read(headerBuffer, headerBuffer, new CompletionHandler<Integer, ByteBuffer>() {
+            channel.read(readBuffer, readBuffer, new CompletionHandler<Integer, ByteBuffer>() {
                 @Override
                 public void completed(Integer bytesRead, ByteBuffer buffer) {
-                    if (buffer.remaining() != 0) {
-                        nextResponse(buffer);
+                    if (bytesRead < 0) {
+                        networkFailure(new EOFException("connection closed by server"));
                         return;
                     }
+                    metrics.read(bytesRead);
+                    boolean filled = !buffer.hasRemaining();
                     buffer.flip();
-                    // creating the response parses out the buffer
-                    // readBody may queue additional read operations.
-                    // when any reads queued by readBody() complete, it
-                    // invokes nextReponse again.
-                    new Response(Connection.this, buffer).readBody();
+                    // may have handed the buffer to a pooled value, and moved on to another
+                    ByteBuffer current;
+                    decoding = Thread.currentThread();
+                    try {
+                        current = decodeResponses(buffer);
+                    } finally {
+                        decoding = null;
+                        completeDecoded();
+                    }
+                    current.compact();
+                    resizeReadBuffer(bytesRead, filled);
+                    nextResponse();
                 }
 
                 @Override
@@ -187,31 +502,295 @@ public class Connection implements AutoCloseable {
         }
     }
 
+    /**
+     * Hand off the completions batched up while decoding a read, in one task.
+     */
+    private void completeDecoded() {
+        if (decoded.isEmpty()) {
+            return;
+        }
+        Runnable[] batch = decoded.toArray(new Runnable[decoded.size()]);
+        decoded.clear();
+        decodedBy.execute(() -> {
+            for (Runnable completion : batch) {
+                completion.run();
+            }
+        });
+    }
+
+    /**
+     * Parse every complete response in the buffer, leaving it positioned at the start of the
+     * first incomplete one (if any).
+     * <p>
+     * A value wanted as a pooled buffer which takes up at least half of the receive buffer is
+     * not copied at all. The receive buffer itself is handed over, and whatever follows the
+     * value is moved to a fresh one, which becomes the receive buffer.
+     *
+     * @return the receive buffer, which is not {@code buffer} if it was handed over
+     */
+    ByteBuffer decodeResponses(ByteBuffer buffer) {
+        if (streaming) {
+            continueStream(buffer);
+            if (streaming) {
+                return buffer;
+            }
+        }
+        int limit = buffer.limit();
+        while (buffer.remaining() >= 24) {
+            int totalBodyLength = buffer.getInt(buffer.position() + 8);
+            StreamingGetCommand sink = streamTarget(buffer, buffer.position());
+            if (sink != null) {
+                if (!startStream(buffer, sink)) {
+                    break;
+                }
+                if (streaming) {
+                    // the rest of the value is still to be read
+                    break;
+                }
+                continue;
+            }
+            if (buffer.remaining() - 24 < totalBodyLength) {
+                break;
+            }
+            response.readHeader(buffer);
+            int bodyEnd = buffer.position() + totalBodyLength;
+            int valueStart = buffer.position() + response.getExtrasLength() + response.getKeyLength();
+            ByteBuffer body = buffer;
+            if (bodyEnd - valueStart >= buffer.capacity() / 2
+                && response.getStatus() == 0
+                && response.getOpcode() == Opcodes.get
+                && wantsPooledValue(response.getOpaque())) {
+                ByteBuffer value = buffer.duplicate();
+                value.limit(bodyEnd).position(valueStart);
+                response.setValueBuffer(value.slice().asReadOnlyBuffer(), buffer);
+
+                // must be moved before the value is delivered, the recipient may release it
+                ByteBuffer rest = buffer.duplicate();
+                rest.limit(limit).position(bodyEnd);
+                ByteBuffer fresh = bufferPool.acquire(Math.max(MIN_READ_BUFFER, rest.remaining()));
+                fresh.limit(fresh.capacity());
+                fresh.put(rest);
+                fresh.flip();
+                readBuffer = fresh;
+                buffer = fresh;
+                limit = fresh.limit();
+                bodyEnd = 0;
+            }
+            body.limit(body.position() + totalBodyLength);
+            response.parseBody(body);
+            buffer.limit(limit);
+            buffer.position(bodyEnd);
+        }
+        return buffer;
+    }
+
+    /**
+     * @return the streaming get waiting on the successful get response whose header starts at
+     * {@code offset}, or null if it is any other kind of response
+     */
+    private StreamingGetCommand streamTarget(ByteBuffer buffer, int offset) {
+        if (buffer.get(offset + 1) != Opcodes.get || buffer.getChar(offset + 6) != 0) {
+            return null;
+        }
+        Responder r = inFlight.get(buffer.getInt(offset + 12));
+        return r == null ? null : r.streamTo;
+    }
+
+    /**
+     * Begin streaming a get's value, once its header, extras, and key are in the buffer.
+     *
+     * @return false if more needs to be read before the value starts
+     */
+    private boolean startStream(ByteBuffer buffer, StreamingGetCommand sink) {
+        int p = buffer.position();
+        int preamble = 24 + buffer.get(p + 4) + buffer.getChar(p + 2);
+        if (buffer.remaining() < preamble) {
+            return false;
+        }
+        response.readHeader(buffer);
+        response.setFlags(buffer.getInt());
+        buffer.position(buffer.position() + response.getKeyLength());
+
+        streaming = true;
+        streamingTo = sink;
+        streamRemaining = response.getTotalBodyLength() - response.getExtrasLength() - response.getKeyLength();
+        continueStream(buffer);
+        return true;
+    }
+
+    /**
+     * Hand as much of the streaming value as is in the buffer to the sink, and complete the
+     * get once it has all gone by.
+     */
+    private void continueStream(ByteBuffer buffer) {
+        int n = Math.min(streamRemaining, buffer.remaining());
+        ByteBuffer chunk = buffer.duplicate();
+        chunk.limit(chunk.position() + n);
+        streamingTo.write(chunk);
+        buffer.position(buffer.position() + n);
+        streamRemaining -= n;
+        if (streamRemaining == 0) {
+            streaming = false;
+            streamingTo = null;
+            receive(response);
+        }
+    }
+
+    /**
+     * True if the request waiting on {@code opaque} takes its value as a pooled buffer. Only
+     * called from the read loop.
+     */
+    boolean wantsPooledValue(int opaque) {
+        Responder r = inFlight.get(opaque);
+        return r != null && r.pooledValue;
+    }
+
+    BufferPool bufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Adapt the receive buffer between reads. It doubles (up to {@link #MAX_READ_BUFFER}) when
+     * a read fills it, grows to fit a response which is larger than it, and halves back toward
+     * {@link #MIN_READ_BUFFER} after a run of reads which barely used it.
+     * <p>
+     * The buffer is in write mode, holding any partial response, when this is called.
+     */
+    private void resizeReadBuffer(int bytesRead, boolean filled) {
+        final int capacity = readBuffer.capacity();
+        int target = capacity;
+        if (filled) {
+            smallReads = 0;
+            if (capacity < MAX_READ_BUFFER) {
+                target = capacity * 2;
+            }
+        }
+        else if (bytesRead < capacity / 4 && capacity > MIN_READ_BUFFER) {
+            if (++smallReads >= SHRINK_AFTER_SMALL_READS) {
+                smallReads = 0;
+                target = Math.max(MIN_READ_BUFFER, capacity / 2);
+            }
+        }
+        else {
+            smallReads = 0;
+        }
+
+        final int pending = readBuffer.position();
+        if (pending >= 24 && streamTarget(readBuffer, 0) == null) {
+            // make sure the partial response can be read in its entirety
+            target = Math.max(target, 24 + readBuffer.getInt(8));
+        }
+        target = Math.max(target, pending);
+
+        if (target != capacity) {
+            ByteBuffer resized = bufferPool.acquire(target);
+            resized.limit(resized.capacity());
+            readBuffer.flip();
+            resized.put(readBuffer);
+            bufferPool.release(readBuffer);
+            readBuffer = resized;
+        }
+    }
+
     /**
      * Invoked if any networking operations hit an error.
      */
     void networkFailure(Throwable exc) {
         if (failed.compareAndSet(false, true)) {
             close();
-            waiting.forEach((_opaque, responder) -> responder.failure(exc));
-            waiting.clear();
+            inFlight.drain((responder) -> {
+                responder.cancelTimeout();
+                metrics.failed();
+                fail(responder, exc);
+            });
+            batches.clear();
+            failQueued(exc);
+            failWaiting(exc);
             for (Runnable listener : networkFailureListeners) {
                 listener.run();
             }
         }
     }
 
+    /**
+     * Fail commands which were accepted but never written. Their timeouts are only scheduled
+     * once written, so nothing else would ever complete them.
+     */
+    private void failQueued(Throwable exc) {
+        Pair<Long, Command> cp;
+        while ((cp = queuedRequests.poll()) != null) {
+            metrics.failed();
+            cp.right().createResponder().failure(exc);
+            release();
+        }
+    }
+
+    private void failWaiting(Throwable exc) {
+        Waiter w;
+        while ((w = waiting.poll()) != null) {
+            if (w.claim()) {
+                waitingCount.decrementAndGet();
+                metrics.failed();
+                w.result.completeExceptionally(exc);
+            }
+        }
+    }
+
     public boolean isOpen() {
         return open.get();
     }
 
+    /**
+     * Record into {@code metrics}, rather than this connection's own, from here on. Metrics may
+     * be shared by any number of connections.
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Complete the futures of requests made from here on as {@code strategy} says, rather than
+     * inline. Requests already made keep the strategy they were made with.
+     */
+    public void setCompletionStrategy(CompletionStrategy strategy) {
+        this.completions = Objects.requireNonNull(strategy, "strategy");
+    }
+
+    public CompletionStrategy getCompletionStrategy() {
+        return completions;
+    }
+
+    /**
+     * Number of requests accepted by this connection which have not yet completed.
+     */
+    public int getRequestsInFlight() {
+        return requestsInFlightCount.get();
+    }
+
+    /**
+     * Number of requests waiting for their turn to go in flight.
+     */
+    public int getRequestsWaiting() {
+        return waitingCount.get();
+    }
+
+    /**
+     * Quiet commands only complete once a later non-quiet command on the same connection
+     * has been answered. When set, whenever the write loop runs out of commands with quiet
+     * ones trailing, it follows them with a noop of its own, so they complete without anyone
+     * else having to send something after them on this connection.
+     */
+    public void setAnchorQuiets(boolean anchorQuiets) {
+        this.anchorQuiets = anchorQuiets;
+    }
+
     public void close() {
         if (open.compareAndSet(true, false)) {
-            try {
-                quit(Duration.ofSeconds(30)).get();
-            } catch (Exception e) {
-                // close quietly
-            }
+            failWaiting(new IllegalStateException("Connection is closed and no longer usable"));
             try {
                 channel.close();
             } catch (IOException e) {
@@ -224,93 +803,359 @@ public class Connection implements AutoCloseable {
         if (!open.get()) {
             return Optional.of(new IllegalStateException("Connection is closed and no longer usable"));
         }
-        if (requestsInFlightCount.get() >= maxRequestsInFlight) {
-            return Optional.of(new IllegalStateException("Maximum concurrent requests already reached"));
-        }
         return Optional.empty();
     }
 
-    AsynchronousByteChannel getChannel() {
-        return channel;
+    /**
+     * Take a permit to put a request in flight, if one is free.
+     */
+    private boolean tryAcquire() {
+        int n;
+        do {
+            n = requestsInFlightCount.get();
+            if (n >= maxRequestsInFlight) {
+                return false;
+            }
+        } while (!requestsInFlightCount.compareAndSet(n, n + 1));
+        return true;
+    }
+
+    private void release() {
+        requestsInFlightCount.decrementAndGet();
+        if (!waiting.isEmpty()) {
+            admitWaiting();
+        }
+    }
+
+    /**
+     * Hand free permits to waiting requests, oldest first. Called whenever a permit is
+     * released or a request starts waiting, so a permit freed while a request was on its way
+     * into the queue is not missed.
+     */
+    private void admitWaiting() {
+        while (!waiting.isEmpty() && tryAcquire()) {
+            Waiter w = waiting.poll();
+            if (w == null || !w.claim()) {
+                // timed out, or failed, and left for us to drop. Give the permit to the next one
+                requestsInFlightCount.decrementAndGet();
+                continue;
+            }
+            waitingCount.decrementAndGet();
+            w.timeout.cancel();
+            submit(w.command, w.queuedAt);
+        }
+    }
+
+    /**
+     * Queue a request which holds a permit to be written. The permit is given back once the
+     * request is finished, see {@link #finish(Responder, Response)}.
+     */
+    private void submit(Command command, long queuedAt) {
+        queuedRequests.add(Pair.of(queuedAt, command));
+        if (!open.get()) {
+            // closed while we were enqueueing, the write loop may never come back for it
+            failQueued(new IllegalStateException("Connection is closed and no longer usable"));
+            return;
+        }
+        maybeWrite();
+    }
+
+    private <T> void await(Command command, CompletableFuture<T> result, long queuedAt) {
+        if (waitingCount.incrementAndGet() > maxWaitingRequests) {
+            waitingCount.decrementAndGet();
+            metrics.failed();
+            result.completeExceptionally(new IllegalStateException("Maximum concurrent requests already reached"));
+            return;
+        }
+        Waiter w = new Waiter(command, result, queuedAt);
+        try {
+            w.timeout = timeouts.schedule(() -> {
+                // left in the queue, removing it from the middle would be a walk of the queue
+                if (w.claim()) {
+                    waitingCount.decrementAndGet();
+                    metrics.timedOut();
+                    result.completeExceptionally(new TimeoutException("timed out after " + command.getTimeout()
+                                                                      + " waiting to be sent"));
+                }
+            }, command.getTimeout().toNanos());
+        } catch (RuntimeException e) {
+            waitingCount.decrementAndGet();
+            metrics.failed();
+            result.completeExceptionally(e);
+            return;
+        }
+        waiting.add(w);
+        if (!open.get()) {
+            failWaiting(new IllegalStateException("Connection is closed and no longer usable"));
+            return;
+        }
+        admitWaiting();
     }
 
     /**
      * Fully parsed response has been received, let's trigger listeners, etc.
      */
     void receive(Response response) {
-        Responder sc = waiting.get(response.getOpaque());
-        if (sc != null) {
-            // only store on scoreboard if *something* is waiting for it
-            scoreboard.put(response.getOpaque(), response);
-            Integer opaque = sc.completed(scoreboard);
-            scoreboard.remove(opaque);
-            if (response.getOpcode() == Opcodes.stat) {
-                // stat is a pain, multiple reponses come back for single opaque
-                // so we need to special case it. BLARGH
-                if (response.getKey() == null || response.getKey().length == 0) {
-                    // there are more responses coming for this stat, DO NOT remove the waiting
-                    waiting.remove(opaque);
-                }
+        Responder responder = inFlight.get(response.getOpaque());
+        if (responder == null) {
+            Map.Entry<Integer, BatchCommand> batch = batches.floorEntry(response.getOpaque());
+            if (batch != null && response.getOpaque() <= batch.getValue().lastOpaque) {
+                batch.getValue().answered++;
+                batch.getValue().entryAnswered(response.getOpaque() - batch.getKey(), response);
             }
-            else {
-                waiting.remove(opaque);
+            // otherwise timed out, nobody is waiting on it any longer
+            else if (response.getLeasedBuffer() != null) {
+                bufferPool.release(response.getLeasedBuffer());
             }
+            return;
         }
-        Collection<Integer> quiets = quietProxies.remove(response.getOpaque());
-        if (quiets != null) {
-            for (Integer quiet : quiets) {
-                Responder r = waiting.remove(quiet);
+
+        // quiet commands sent before this one have been processed by the server, so settle
+        // them first; anyone woken by this response should see them complete already.
+        long now = System.nanoTime();
+        int[] quiets = responder.quiets;
+        if (quiets.length > 0) {
+            responder.quiets = Responder.NO_QUIETS;
+            for (int quiet : quiets) {
+                Responder r = inFlight.remove(quiet);
                 if (r != null) {
-                    r.completed(scoreboard);
+                    r.cancelTimeout();
+                    answered(r, null, now);
+                    finish(r, null);
                 }
-                scoreboard.remove(quiet);
             }
         }
+
+        if (response.getOpcode() == Opcodes.stat && response.getKey() != null && response.getKey().length != 0) {
+            // stat is a pain, multiple reponses come back for single opaque, and only the
+            // last one (with no key) finishes it. BLARGH
+            responder.completed(response);
+        }
+        else if (inFlight.remove(responder)) {
+            responder.cancelTimeout();
+            answered(responder, response, now);
+            finish(responder, response);
+        }
+        metrics.completed(System.nanoTime() - now);
+    }
+
+    /**
+     * Complete a responder which has been taken out of the in flight table, giving back its
+     * permit. The permit is given back here rather than by a dependent of the request's future,
+     * and requests waiting for it are only admitted once the future is complete, so a thread
+     * blocked on it is woken before anything else runs.
+     */
+    private void finish(Responder responder, Response response) {
+        if (responder.holdsPermit) {
+            requestsInFlightCount.decrementAndGet();
+        }
+        responder.completed(response);
+        if (responder.holdsPermit && !waiting.isEmpty()) {
+            admitWaiting();
+        }
+    }
+
+    private void fail(Responder responder, Throwable t) {
+        if (responder.holdsPermit) {
+            requestsInFlightCount.decrementAndGet();
+        }
+        responder.failure(t);
+        if (responder.holdsPermit && !waiting.isEmpty()) {
+            admitWaiting();
+        }
+    }
+
+    private void answered(Responder responder, Response response, long now) {
+        BatchCommand batch = responder.batch;
+        if (batch != null) {
+            metrics.batchAnswered(responder, batch.entries().size(), batch.answered, now);
+        }
+        else {
+            metrics.answered(responder, response, now);
+        }
     }
 
     private <T> CompletableFuture<T> enqueue(Command command, CompletableFuture<T> result) {
         Optional<Exception> oe = checkState();
         if (oe.isPresent()) {
+            metrics.failed();
             result.completeExceptionally(oe.get());
             return result;
         }
-        requestsInFlightCount.incrementAndGet();
-        result.whenComplete((r, e) -> requestsInFlightCount.decrementAndGet());
-        queuedRequests.add(Pair.of(System.nanoTime(), command));
-        maybeWrite();
-        return result;
+        // before it can possibly be answered
+        CompletableFuture<T> handed = handOff(result);
+        long now = System.nanoTime();
+        // don't jump ahead of requests which are already waiting for a permit
+        if ((maxWaitingRequests == 0 || waiting.isEmpty()) && tryAcquire()) {
+            submit(command, now);
+        }
+        else if (maxWaitingRequests > 0) {
+            await(command, result, now);
+        }
+        else {
+            metrics.failed();
+            result.completeExceptionally(new IllegalStateException("Maximum concurrent requests already reached"));
+        }
+        return handed;
+    }
+
+    /**
+     * @return the future to give the caller in place of {@code result}, which is completed as
+     * the completion strategy says once {@code result} is
+     */
+    private <T> CompletableFuture<T> handOff(CompletableFuture<T> result) {
+        CompletionStrategy strategy = completions;
+        if (strategy.isInline()) {
+            return result;
+        }
+        CompletableFuture<T> handed = new ResponseFuture<>();
+        result.whenComplete((value, error) -> {
+            Runnable completion = () -> {
+                if (error != null) {
+                    handed.completeExceptionally(error);
+                }
+                else {
+                    handed.complete(value);
+                }
+            };
+            if (strategy.isBatched() && decoding == Thread.currentThread()) {
+                decoded.add(completion);
+                decodedBy = strategy;
+            }
+            else {
+                strategy.execute(completion);
+            }
+        });
+        return handed;
+    }
+
+    /**
+     * A request waiting for a permit. Whichever of admitWaiting() and the timeout claims it
+     * first decides its fate.
+     */
+    private static final class Waiter {
+        private final Command command;
+        private final CompletableFuture<?> result;
+        private final long queuedAt;
+        private final AtomicBoolean claimed = new AtomicBoolean(false);
+        private volatile TimeoutScheduler.Timeout timeout;
+
+        Waiter(Command command, CompletableFuture<?> result, long queuedAt) {
+            this.command = command;
+            this.result = result;
+            this.queuedAt = queuedAt;
+        }
+
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
     }
 
     /* the main api of this thing, as used by users */
 
     //
     public CompletableFuture<Optional<Value>> get(byte[] key, Duration timeout) {
-        CompletableFuture<Optional<Value>> r = new CompletableFuture<>();
+        CompletableFuture<Optional<Value>> r = new ResponseFuture<>();
         return enqueue(new GetCommand(r, key, timeout), r);
     }
 
+    /**
+     * Get a value without copying it into a {@code byte[]}. It is delivered in a buffer leased
+     * from this connection's pool, which must be released once the caller is done with it.
+     */
+    public CompletableFuture<Optional<PooledValue>> getPooled(byte[] key, Duration timeout) {
+        CompletableFuture<Optional<PooledValue>> r = new ResponseFuture<>();
+        return enqueue(new GetPooledCommand(r, key, bufferPool, timeout), r);
+    }
+
+    /**
+     * Get a value, writing it to {@code sink} piece by piece as it is read from the socket
+     * rather than gathering it up in memory first. Memory used is bounded by the receive buffer,
+     * not the size of the value.
+     * <p>
+     * The sink is written to from this connection's read loop, so must be a blocking channel,
+     * such as a {@link java.nio.channels.FileChannel}, and should be quick about it. The sink
+     * is not closed. If writing to it fails, the rest of the value is skipped and the
+     * result fails with the error.
+     */
+    public CompletableFuture<Optional<StreamedValue>> streamTo(byte[] key, WritableByteChannel sink, Duration timeout) {
+        if (sink instanceof SelectableChannel && !((SelectableChannel) sink).isBlocking()) {
+            throw new IllegalArgumentException("sink must be in blocking mode");
+        }
+        CompletableFuture<Optional<StreamedValue>> r = new ResponseFuture<>();
+        return enqueue(new StreamingGetCommand(r, key, sink, timeout), r);
+    }
+
     public CompletableFuture<Optional<Value>> getk(byte[] key, Duration timeout) {
-        CompletableFuture<Optional<Value>> r = new CompletableFuture<>();
+        CompletableFuture<Optional<Value>> r = new ResponseFuture<>();
         return enqueue(new GetKCommand(r, key, timeout), r);
     }
 
     public CompletableFuture<Optional<Value>> getkq(byte[] key, Duration timeout) {
-        CompletableFuture<Optional<Value>> r = new CompletableFuture<>();
+        CompletableFuture<Optional<Value>> r = new ResponseFuture<>();
         return enqueue(new GetKQuietCommand(r, key, timeout), r);
     }
 
     public CompletableFuture<Optional<Value>> getq(byte[] key, Duration timeout) {
-        CompletableFuture<Optional<Value>> r = new CompletableFuture<>();
+        CompletableFuture<Optional<Value>> r = new ResponseFuture<>();
         return enqueue(new GetQuietlyCommand(r, key, timeout), r);
     }
 
+    /**
+     * Get many keys in one round trip, as a getkq for each key followed by a noop. The whole
+     * batch is a single request, with a single timeout, and only the keys which were found are
+     * in the result.
+     */
+    public CompletableFuture<Map<Key, Value>> getMulti(Collection<Key> keys, Duration timeout) {
+        CompletableFuture<Map<Key, Value>> r = new ResponseFuture<>();
+        if (keys.isEmpty()) {
+            r.complete(Collections.emptyMap());
+            return r;
+        }
+        return enqueue(GetMultiCommand.create(r, new LinkedHashSet<>(keys), timeout), r);
+    }
+
+    /**
+     * Set many keys in one round trip, as a setq for each entry followed by a noop. The whole
+     * batch is a single request, with a single timeout.
+     *
+     * @return the entries which the server refused, by key, with why. Empty if all were stored
+     */
+    public CompletableFuture<Map<Key, StatusException>> setMulti(Map<Key, byte[]> values,
+                                                                 int flags,
+                                                                 int expires,
+                                                                 Duration timeout) {
+        CompletableFuture<Map<Key, StatusException>> r = new ResponseFuture<>();
+        if (values.isEmpty()) {
+            r.complete(Collections.emptyMap());
+            return r;
+        }
+        return enqueue(QuietMultiCommand.set(r, values, flags, expires, timeout), r);
+    }
+
+    /**
+     * Delete many keys in one round trip, as a deleteq for each key followed by a noop. The
+     * whole batch is a single request, with a single timeout.
+     *
+     * @return the keys which could not be deleted, by key, with why. Keys which did not exist
+     * are included, with a status of 1 (not found)
+     */
+    public CompletableFuture<Map<Key, StatusException>> deleteMulti(Collection<Key> keys, Duration timeout) {
+        CompletableFuture<Map<Key, StatusException>> r = new ResponseFuture<>();
+        if (keys.isEmpty()) {
+            r.complete(Collections.emptyMap());
+            return r;
+        }
+        return enqueue(QuietMultiCommand.delete(r, new LinkedHashSet<>(keys), timeout), r);
+    }
+
     public CompletableFuture<Void> setq(byte[] key,
                                         int flags,
                                         int expires,
                                         byte[] value,
                                         Version cas,
                                         Duration timeout) {
-        CompletableFuture<Void> r = new CompletableFuture<>();
+        CompletableFuture<Void> r = new ResponseFuture<>();
         return enqueue(new SetQuietCommand(r, key, flags, expires, value, cas, timeout), r);
     }
 
@@ -321,17 +1166,17 @@ public class Connection implements AutoCloseable {
                                           byte[] value,
                                           Version cas,
                                           Duration timeout) {
-        CompletableFuture<Version> r = new CompletableFuture<>();
+        CompletableFuture<Version> r = new ResponseFuture<>();
         return enqueue(new SetCommand(r, key, flags, expires, value, cas, timeout), r);
     }
 
     public CompletableFuture<Version> add(byte[] key, int flags, int expires, byte[] value, Duration timeout) {
-        CompletableFuture<Version> r = new CompletableFuture<>();
+        CompletableFuture<Version> r = new ResponseFuture<>();
         return enqueue(new AddCommand(r, key, flags, expires, value, timeout), r);
     }
 
     public CompletableFuture<Void> addq(byte[] key, int flags, int expires, byte[] value, Duration timeout) {
-        CompletableFuture<Void> r = new CompletableFuture<>();
+        CompletableFuture<Void> r = new ResponseFuture<>();
         return enqueue(new AddQuietCommand(r, key, flags, expires, value, timeout), r);
     }
 
@@ -341,7 +1186,7 @@ public class Connection implements AutoCloseable {
                                               byte[] value,
                                               Version cas,
                                               Duration timeout) {
-        CompletableFuture<Version> r = new CompletableFuture<>();
+        CompletableFuture<Version> r = new ResponseFuture<>();
         return enqueue(new ReplaceCommand(r, key, flags, expires, value, cas, timeout), r);
     }
 
@@ -352,27 +1197,27 @@ public class Connection implements AutoCloseable {
                                             byte[] value,
                                             Version cas,
                                             Duration timeout) {
-        CompletableFuture<Void> r = new CompletableFuture<>();
+        CompletableFuture<Void> r = new ResponseFuture<>();
         return enqueue(new ReplaceQuietCommand(r, key, flags, expires, value, cas, timeout), r);
     }
 
     public CompletableFuture<Void> flush(int expires, Duration timeout) {
-        CompletableFuture<Void> r = new CompletableFuture<>();
+        CompletableFuture<Void> r = new ResponseFuture<>();
         return enqueue(new FlushCommand(r, expires, timeout), r);
     }
 
     public CompletableFuture<Void> flushq(int expires, Duration timeout) {
-        CompletableFuture<Void> r = new CompletableFuture<>();
+        CompletableFuture<Void> r = new ResponseFuture<>();
         return enqueue(new FlushQuietlyCommand(r, expires, timeout), r);
     }
 
     public CompletableFuture<Void> delete(byte[] key, Version cas, Duration timeout) {
-        CompletableFuture<Void> r = new CompletableFuture<>();
+        CompletableFuture<Void> r = new ResponseFuture<>();
         return enqueue(new DeleteCommand(r, key, cas, timeout), r);
     }
 
     public CompletableFuture<Void> deleteq(byte[] key, Version cas, Duration timeout) {
-        CompletableFuture<Void> r = new CompletableFuture<>();
+        CompletableFuture<Void> r = new ResponseFuture<>();
         return enqueue(new DeleteQuietlyCommand(r, key, cas, timeout), r);
     }
 
@@ -382,7 +1227,7 @@ public class Connection implements AutoCloseable {
                                                 int expiration,
                                                 Version cas,
                                                 Duration timeout) {
-        CompletableFuture<Counter> r = new CompletableFuture<>();
+        CompletableFuture<Counter> r = new ResponseFuture<>();
         return enqueue(new IncrementCommand(r, key, delta, initial, expiration, cas, timeout), r);
     }
 
@@ -392,7 +1237,7 @@ public class Connection implements AutoCloseable {
                                               int expiration,
                                               Version cas,
                                               Duration timeout) {
-        CompletableFuture<Void> r = new CompletableFuture<>();
+        CompletableFuture<Void> r = new ResponseFuture<>();
         return enqueue(new IncrementQuietlyCommand(r, key, delta, initial, expiration, cas, timeout), r);
     }
 
@@ -402,7 +1247,7 @@ public class Connection implements AutoCloseable {
                                               int expiration,
                                               Version cas,
                                               Duration timeout) {
-        CompletableFuture<Void> r = new CompletableFuture<>();
+        CompletableFuture<Void> r = new ResponseFuture<>();
         return enqueue(new DecrementQuietlyCommand(r, key, delta, initial, expiration, cas, timeout), r);
     }
 
@@ -412,61 +1257,74 @@ public class Connection implements AutoCloseable {
                                                 int expiration,
                                                 Version cas,
                                                 Duration timeout) {
-        CompletableFuture<Counter> r = new CompletableFuture<>();
+        CompletableFuture<Counter> r = new ResponseFuture<>();
         return enqueue(new DecrementCommand(r, key, delta, initial, expiration, cas, timeout), r);
     }
 
     public CompletableFuture<Void> quit(Duration timeout) {
-        CompletableFuture<Void> r = new CompletableFuture<>();
+        CompletableFuture<Void> r = new ResponseFuture<>();
         return enqueue(new QuitCommand(r, this, timeout), r);
     }
 
     public CompletableFuture<Void> noop(Duration timeout) {
-        CompletableFuture<Void> r = new CompletableFuture<>();
+        CompletableFuture<Void> r = new ResponseFuture<>();
         return enqueue(new NoOpCommand(r, timeout), r);
     }
 
     public CompletableFuture<String> version(Duration timeout) {
-        CompletableFuture<String> r = new CompletableFuture<>();
+        CompletableFuture<String> r = new ResponseFuture<>();
         return enqueue(new VersionCommand(r, timeout), r);
     }
 
     public CompletableFuture<Version> append(byte[] key, byte[] value, Version cas, Duration timeout) {
-        CompletableFuture<Version> r = new CompletableFuture<>();
+        CompletableFuture<Version> r = new ResponseFuture<>();
         return enqueue(new AppendCommand(r, key, value, cas, timeout), r);
     }
 
     public CompletableFuture<Void> appendq(byte[] key, byte[] value, Version cas, Duration timeout) {
-        CompletableFuture<Void> r = new CompletableFuture<>();
+        CompletableFuture<Void> r = new ResponseFuture<>();
         return enqueue(new AppendQuietlyCommand(r, key, value, cas, timeout), r);
     }
 
     public CompletableFuture<Version> prepend(byte[] key, byte[] value, Version cas, Duration timeout) {
-        CompletableFuture<Version> r = new CompletableFuture<>();
+        CompletableFuture<Version> r = new ResponseFuture<>();
         return enqueue(new PrependCommand(r, key, value, cas, timeout), r);
     }
 
     public CompletableFuture<Void> prependq(byte[] key, byte[] value, Version cas, Duration timeout) {
-        CompletableFuture<Void> r = new CompletableFuture<>();
+        CompletableFuture<Void> r = new ResponseFuture<>();
         return enqueue(new PrependQuietlyCommand(r, key, value, cas, timeout), r);
     }
 
     public CompletableFuture<Map<String, String>> stat(Duration timeout) {
-        CompletableFuture<Map<String, String>> r = new CompletableFuture<>();
+        CompletableFuture<Map<String, String>> r = new ResponseFuture<>();
         return enqueue(new StatCommand(r, Optional.empty(), timeout), r);
     }
 
     public CompletableFuture<Map<String, String>> stat(String key, Duration timeout) {
-        CompletableFuture<Map<String, String>> r = new CompletableFuture<>();
+        CompletableFuture<Map<String, String>> r = new ResponseFuture<>();
         return enqueue(new StatCommand(r, Optional.of(key), timeout), r);
     }
 
     public CompletableFuture<Void> quitq(Duration timeout) {
-        CompletableFuture<Void> r = new CompletableFuture<>();
+        CompletableFuture<Void> r = new ResponseFuture<>();
         return enqueue(new QuitQuietlyCommand(r, timeout), r);
     }
 
+    /**
+     * Run {@code callback}, once, when the connection fails. If it has already failed, which
+     * can happen before whoever opened it gets the chance to listen, it is run right away.
+     */
     public void addNetworkFailureListener(Runnable callback) {
-        networkFailureListeners.add(callback);
+        AtomicBoolean ran = new AtomicBoolean(false);
+        Runnable once = () -> {
+            if (ran.compareAndSet(false, true)) {
+                callback.run();
+            }
+        };
+        networkFailureListeners.add(once);
+        if (failed.get()) {
+            once.run();
+        }
     }
 }
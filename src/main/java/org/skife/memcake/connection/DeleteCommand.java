@@ -13,7 +13,6 @@
  */
 package org.skife.memcake.connection;
 
-import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.util.concurrent.CompletableFuture;
 
@@ -34,18 +33,13 @@ class DeleteCommand extends Command {
     }
 
     @Override
-    Responder createResponder(int opaque) {
-        return Responder.voidResponder(this, result, opaque);
+    Responder createResponder() {
+        return Responder.voidResponder(this, result);
     }
 
     @Override
-    char keyLength() {
-        return (char) key.length;
-    }
-
-    @Override
-    void writeBody(ByteBuffer buffer) {
-        buffer.put(key);
+    byte[] key() {
+        return key;
     }
 
     @Override
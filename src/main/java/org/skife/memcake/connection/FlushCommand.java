@@ -29,8 +29,8 @@ class FlushCommand extends Command {
     }
 
     @Override
-    public Responder createResponder(int opaque) {
-        return Responder.voidResponder(this, result, opaque);
+    public Responder createResponder() {
+        return Responder.voidResponder(this, result);
     }
 
     @Override
@@ -39,7 +39,7 @@ class FlushCommand extends Command {
     }
 
     @Override
-    void writeBody(ByteBuffer buffer) {
+    void writeExtras(ByteBuffer buffer) {
         if (expires > 0) {
             buffer.putInt(expires);
         }
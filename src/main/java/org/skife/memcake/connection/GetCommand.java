@@ -30,10 +30,8 @@ class GetCommand extends Command {
     }
 
     @Override
-    public Responder createResponder(int opaque) {
-        return new Responder(opaque, result::completeExceptionally, (s) -> {
-            Response r = s.get(opaque);
-
+    public Responder createResponder() {
+        return new Responder(result::completeExceptionally, (r) -> {
             if ((r == null) && (opcode() == Opcodes.getq || opcode() == Opcodes.getkq)) {
                 // this was a getq and we didn't get a response, but
                 // a future nonquiet query led us here.
@@ -58,13 +56,8 @@ class GetCommand extends Command {
     }
 
     @Override
-    char keyLength() {
-        return (char) key.length;
-    }
-
-    @Override
-    void writeBody(ByteBuffer buffer) {
-        buffer.put(key);
+    byte[] key() {
+        return key;
     }
 
     protected byte opcode() {
@@ -78,9 +71,25 @@ class GetCommand extends Command {
             bodyBuffer.get(key);
             response.setKey(key);
         }
-        byte[] value = new byte[response.getTotalBodyLength() - response.getKeyLength() - response.getExtrasLength()];
-        bodyBuffer.get(value);
-        response.setValue(value);
+        int valueLength = response.getTotalBodyLength() - response.getKeyLength() - response.getExtrasLength();
+        if (response.getValueBuffer() != null) {
+            // the connection already handed over the buffer the value was read into
+            bodyBuffer.position(bodyBuffer.position() + valueLength);
+        }
+        else if (conn.wantsPooledValue(response.getOpaque())) {
+            ByteBuffer leased = conn.bufferPool().acquire(valueLength);
+            ByteBuffer value = bodyBuffer.slice();
+            value.limit(valueLength);
+            leased.put(value);
+            leased.flip();
+            bodyBuffer.position(bodyBuffer.position() + valueLength);
+            response.setValueBuffer(leased.asReadOnlyBuffer(), leased);
+        }
+        else {
+            byte[] value = new byte[valueLength];
+            bodyBuffer.get(value);
+            response.setValue(value);
+        }
         conn.receive(response);
     }
 }
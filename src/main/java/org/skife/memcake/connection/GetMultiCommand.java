@@ -0,0 +1,84 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.connection;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A getkq for each key, anchored by a noop. Only hits come back.
+ */
+class GetMultiCommand extends BatchCommand {
+    private final CompletableFuture<Map<Key, Value>> result;
+    private final List<Key> keys;
+
+    // only touched by the read loop
+    private final Map<Key, Value> hits = new HashMap<>();
+    private StatusException error;
+
+    private GetMultiCommand(CompletableFuture<Map<Key, Value>> result,
+                            List<Key> keys,
+                            List<Command> entries,
+                            Duration timeout) {
+        super(entries, timeout);
+        this.result = result;
+        this.keys = keys;
+    }
+
+    static GetMultiCommand create(CompletableFuture<Map<Key, Value>> result,
+                                  Collection<Key> keys,
+                                  Duration timeout) {
+        List<Key> ordered = new ArrayList<>(keys);
+        List<Command> entries = new ArrayList<>(ordered.size());
+        for (Key key : ordered) {
+            // answered through the batch, never through a responder of their own
+            entries.add(new GetKQuietCommand(null, key.getBytes(), timeout));
+        }
+        return new GetMultiCommand(result, ordered, entries, timeout);
+    }
+
+    @Override
+    void entryAnswered(int index, Response r) {
+        if (r.getStatus() == 0) {
+            hits.put(keys.get(index), new Value(new Version(r.getVersion()),
+                                                r.getFlags(),
+                                                Optional.ofNullable(r.getKey()),
+                                                r.getValue()));
+        }
+        else if (r.getStatus() != 1 && error == null) {
+            error = new StatusException(r.getStatus(), r.getError());
+        }
+    }
+
+    @Override
+    Responder createResponder() {
+        return new Responder(result::completeExceptionally, (r) -> {
+            if (r.getStatus() != 0) {
+                result.completeExceptionally(new StatusException(r.getStatus(), r.getError()));
+            }
+            else if (error != null) {
+                result.completeExceptionally(error);
+            }
+            else {
+                result.complete(hits);
+            }
+        });
+    }
+}
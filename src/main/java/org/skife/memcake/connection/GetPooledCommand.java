@@ -0,0 +1,72 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.connection;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A get whose value is delivered in a pooled buffer, see {@link PooledValue}.
+ */
+class GetPooledCommand extends Command {
+
+    private final CompletableFuture<Optional<PooledValue>> result;
+    private final byte[] key;
+    private final BufferPool pool;
+
+    GetPooledCommand(CompletableFuture<Optional<PooledValue>> result, byte[] key, BufferPool pool, Duration timeout) {
+        super(timeout);
+        this.result = result;
+        this.key = key;
+        this.pool = pool;
+    }
+
+    @Override
+    Responder createResponder() {
+        Responder responder = new Responder(result::completeExceptionally, (r) -> {
+            switch (r.getStatus()) {
+                case 0:
+                    PooledValue v = new PooledValue(new Version(r.getVersion()),
+                                                    r.getFlags(),
+                                                    Optional.ofNullable(r.getKey()),
+                                                    r.getValueBuffer(),
+                                                    r.getLeasedBuffer(),
+                                                    pool);
+                    if (!result.complete(Optional.of(v))) {
+                        // nobody left to release it
+                        v.release();
+                    }
+                    break;
+                case 1:
+                    result.complete(Optional.empty());
+                    break;
+                default:
+                    result.completeExceptionally(new StatusException(r.getStatus(), r.getError()));
+            }
+        });
+        responder.pooledValue = true;
+        return responder;
+    }
+
+    @Override
+    byte[] key() {
+        return key;
+    }
+
+    @Override
+    byte opcode() {
+        return Opcodes.get;
+    }
+}
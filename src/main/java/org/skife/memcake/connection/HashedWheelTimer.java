@@ -0,0 +1,282 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.connection;
+
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hashed timing wheel for request timeouts.
+ * <p>
+ * Scheduling and cancelling are constant time and lock free: both just hand the timeout to a
+ * single worker thread, which files it into (or unlinks it from) the bucket for its deadline
+ * once per tick. Timeouts fire up to one tick late, which is fine for timeouts of requests
+ * which take milliseconds and almost always complete before the deadline.
+ * <p>
+ * Timeout tasks run on the worker thread, so they should be quick. Each timer owns one
+ * thread, which is stopped by {@link #close()}. Timeouts still pending then fire early rather
+ * than never, so requests relying on them fail instead of waiting forever on a quiet server.
+ */
+public class HashedWheelTimer implements AutoCloseable {
+    private static final AtomicInteger instances = new AtomicInteger();
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<WheelTimeout> added = new ConcurrentLinkedQueue<>();
+    private final Queue<WheelTimeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pending = new AtomicLong();
+    private final long startTime = System.nanoTime();
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    // only touched by the worker
+    private long tick = 0;
+
+    private HashedWheelTimer(long tickNanos, int ticksPerWheel) {
+        this.tickNanos = tickNanos;
+        this.wheel = new Bucket[ticksPerWheel];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = ticksPerWheel - 1;
+        this.worker = new Thread(this::run, "memcake-timer-" + instances.incrementAndGet());
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * @param tick          resolution of the timer, timeouts fire up to this much late
+     * @param ticksPerWheel number of buckets, rounded up to a power of two. Timeouts further out
+     *                      than {@code tick * ticksPerWheel} take several laps of the wheel
+     */
+    public static HashedWheelTimer create(Duration tick, int ticksPerWheel) {
+        if (tick.isNegative() || tick.isZero()) {
+            throw new IllegalArgumentException("tick must be positive");
+        }
+        if (ticksPerWheel < 1 || ticksPerWheel > 1 << 30) {
+            throw new IllegalArgumentException("ticksPerWheel must be between 1 and 2^30");
+        }
+        int size = Integer.highestOneBit(ticksPerWheel);
+        if (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        return new HashedWheelTimer(tick.toNanos(), size);
+    }
+
+    /**
+     * A timer with 10ms ticks and a wheel covering a little over five seconds.
+     */
+    public static HashedWheelTimer create() {
+        return create(Duration.ofMillis(10), 512);
+    }
+
+    TimeoutScheduler.Timeout schedule(Runnable task, long delayNanos) {
+        if (!running) {
+            throw new IllegalStateException("timer has been closed");
+        }
+        WheelTimeout timeout = new WheelTimeout(this, task, System.nanoTime() - startTime + delayNanos);
+        pending.incrementAndGet();
+        added.add(timeout);
+        if (!running) {
+            // closed as we were adding it, the worker may already have gone by
+            expireAdded();
+        }
+        return timeout;
+    }
+
+    /**
+     * Number of timeouts which have been scheduled and have neither fired nor been cancelled.
+     */
+    public long getPendingTimeouts() {
+        return pending.get();
+    }
+
+    /**
+     * Stop the worker. Every timeout still pending fires as it stops, whatever its deadline,
+     * and any scheduled from here on is refused.
+     */
+    @Override
+    public void close() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void run() {
+        while (running) {
+            long deadline = (tick + 1) * tickNanos;
+            long sleepNanos = deadline - (System.nanoTime() - startTime);
+            if (sleepNanos > 0) {
+                try {
+                    Thread.sleep(TimeUnit.NANOSECONDS.toMillis(sleepNanos + 999_999));
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+            unlinkCancelled();
+            fileAdded();
+            wheel[(int) (tick & mask)].expire();
+            tick++;
+        }
+        for (Bucket bucket : wheel) {
+            bucket.expireAll();
+        }
+        expireAdded();
+    }
+
+    private void expireAdded() {
+        WheelTimeout timeout;
+        while ((timeout = added.poll()) != null) {
+            timeout.expire();
+        }
+    }
+
+    private void unlinkCancelled() {
+        WheelTimeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    private void fileAdded() {
+        // bounded so a flood of new timeouts cannot stall the wheel
+        for (int i = 0; i < 100_000; i++) {
+            WheelTimeout timeout = added.poll();
+            if (timeout == null) {
+                return;
+            }
+            if (timeout.state != WheelTimeout.ST_INIT) {
+                continue;
+            }
+            long due = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (due - tick) / wheel.length;
+            // never file into a bucket which has already gone by
+            long ticks = Math.max(due, tick);
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private static final class WheelTimeout implements TimeoutScheduler.Timeout {
+        private static final int ST_INIT = 0;
+        private static final int ST_CANCELLED = 1;
+        private static final int ST_EXPIRED = 2;
+        private static final AtomicIntegerFieldUpdater<WheelTimeout> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(WheelTimeout.class, "state");
+
+        private final HashedWheelTimer timer;
+        private final Runnable task;
+        private final long deadline;
+        private volatile int state = ST_INIT;
+
+        // owned by the worker
+        private long remainingRounds;
+        private Bucket bucket;
+        private WheelTimeout next;
+        private WheelTimeout prev;
+
+        WheelTimeout(HashedWheelTimer timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void cancel() {
+            if (STATE.compareAndSet(this, ST_INIT, ST_CANCELLED)) {
+                timer.pending.decrementAndGet();
+                timer.cancelled.add(this);
+            }
+        }
+
+        void expire() {
+            if (STATE.compareAndSet(this, ST_INIT, ST_EXPIRED)) {
+                timer.pending.decrementAndGet();
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    // the task owns its failures, don't let one take the wheel down with it
+                }
+            }
+        }
+    }
+
+    /**
+     * Doubly linked list of timeouts, only touched by the worker.
+     */
+    private static final class Bucket {
+        private WheelTimeout head;
+        private WheelTimeout tail;
+
+        void add(WheelTimeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            }
+            else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void expire() {
+            WheelTimeout timeout = head;
+            while (timeout != null) {
+                WheelTimeout next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    timeout.expire();
+                }
+                else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        void expireAll() {
+            WheelTimeout timeout;
+            while ((timeout = head) != null) {
+                remove(timeout);
+                timeout.expire();
+            }
+        }
+
+        void remove(WheelTimeout timeout) {
+            WheelTimeout next = timeout.next;
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if (next != null) {
+                next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                head = next;
+            }
+            if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+}
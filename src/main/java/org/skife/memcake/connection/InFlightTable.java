@@ -0,0 +1,116 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.connection;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Requests which have been written and are waiting on the server, in a power of two ring of
+ * slots indexed by {@code opaque & mask}.
+ * <p>
+ * Opaques are handed out sequentially by the write loop, which is the only thing to add
+ * entries. If the slot for the next opaque is still held by a slow request the write loop
+ * skips ahead to the next free one, so the ring only needs to be comfortably larger than
+ * the number of requests allowed in flight, which {@link Connection} caps at half of
+ * {@link #MAX_CAPACITY}. Responses, timeouts, and network failures race
+ * to remove entries, and whoever removes an entry is the one to complete it.
+ */
+class InFlightTable {
+    static final int MIN_CAPACITY = 64;
+    static final int MAX_CAPACITY = 1 << 20;
+
+    private final AtomicReferenceArray<Responder> slots;
+    private final int mask;
+    private final AtomicInteger size = new AtomicInteger();
+
+    InFlightTable(int maxRequestsInFlight) {
+        long wanted = Math.max(MIN_CAPACITY, Math.min(MAX_CAPACITY, 2L * maxRequestsInFlight));
+        int capacity = Integer.highestOneBit((int) wanted);
+        if (capacity < wanted) {
+            capacity <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Store {@code responder} under the first free opaque at or after {@code opaque}. Only
+     * called from the write loop.
+     *
+     * @return the opaque assigned to the responder
+     * @throws IllegalStateException if every slot is taken
+     */
+    int add(int opaque, Responder responder) {
+        for (int probes = 0; probes <= mask; probes++, opaque++) {
+            int slot = opaque & mask;
+            if (slots.get(slot) == null) {
+                responder.opaque = opaque;
+                size.incrementAndGet();
+                slots.set(slot, responder);
+                return opaque;
+            }
+        }
+        throw new IllegalStateException("no free slot for another request in flight");
+    }
+
+    /**
+     * @return the responder waiting on {@code opaque}, or null if nothing is
+     */
+    Responder get(int opaque) {
+        Responder r = slots.get(opaque & mask);
+        return r != null && r.opaque == opaque ? r : null;
+    }
+
+    /**
+     * @return true if this call removed the responder, and so should complete it
+     */
+    boolean remove(Responder responder) {
+        if (slots.compareAndSet(responder.opaque & mask, responder, null)) {
+            size.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the responder removed from {@code opaque}, or null if nothing was waiting on it
+     */
+    Responder remove(int opaque) {
+        Responder r = get(opaque);
+        return r != null && remove(r) ? r : null;
+    }
+
+    /**
+     * Remove every entry, handing each to {@code action}.
+     */
+    void drain(Consumer<Responder> action) {
+        for (int i = 0; i < slots.length(); i++) {
+            Responder r = slots.getAndSet(i, null);
+            if (r != null) {
+                size.decrementAndGet();
+                action.accept(r);
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    int capacity() {
+        return slots.length();
+    }
+}
@@ -43,18 +43,16 @@ class IncrementCommand extends Command {
     }
 
     @Override
-    Responder createResponder(int opaque) {
-        return new Responder(opaque, result::completeExceptionally, (s) -> {
-            Response r = s.get(opaque);
+    Responder createResponder() {
+        return new Responder(result::completeExceptionally, (r) -> {
             if (r.getStatus() == 0) {
                 // found
-                byte[] vbytes = r.getValue();
-                if (vbytes.length != 8) {
+                if (r.getValueLength() != 8) {
                     result.completeExceptionally(new IllegalStateException("counter value was not a long (8 bytes!)"));
                     return;
                 }
 
-                Counter c = new Counter(ByteBuffer.wrap(vbytes).getLong(), new Version(r.getVersion()));
+                Counter c = new Counter(r.getCounter(), new Version(r.getVersion()));
                 result.complete(c);
             }
             else {
@@ -69,16 +67,15 @@ class IncrementCommand extends Command {
     }
 
     @Override
-    char keyLength() {
-        return (char) key.length;
+    byte[] key() {
+        return key;
     }
 
     @Override
-    void writeBody(ByteBuffer buffer) {
+    void writeExtras(ByteBuffer buffer) {
         buffer.putLong(delta);
         buffer.putLong(initial);
         buffer.putInt(expiration);
-        buffer.put(key);
     }
 
     @Override
@@ -92,9 +89,9 @@ class IncrementCommand extends Command {
     }
 
     public static void parseBody(Response response, Connection conn, ByteBuffer bodyBuffer) {
-        byte[] value = new byte[response.getTotalBodyLength() - response.getKeyLength() - response.getExtrasLength()];
-        bodyBuffer.get(value);
-        response.setValue(value);
+        if (response.getValueLength() == 8) {
+            response.setCounter(bodyBuffer.getLong());
+        }
         conn.receive(response);
     }
 }
@@ -42,8 +42,8 @@ class IncrementQuietlyCommand extends Command {
     }
 
     @Override
-    Responder createResponder(int opaque) {
-        return Responder.voidResponder(this, result, opaque);
+    Responder createResponder() {
+        return Responder.voidResponder(this, result);
     }
 
     @Override
@@ -52,16 +52,15 @@ class IncrementQuietlyCommand extends Command {
     }
 
     @Override
-    char keyLength() {
-        return (char) key.length;
+    byte[] key() {
+        return key;
     }
 
     @Override
-    void writeBody(ByteBuffer buffer) {
+    void writeExtras(ByteBuffer buffer) {
         buffer.putLong(delta);
         buffer.putLong(initial);
         buffer.putInt(expiration);
-        buffer.put(key);
     }
 
     @Override
@@ -73,4 +72,9 @@ class IncrementQuietlyCommand extends Command {
     byte opcode() {
         return Opcodes.incrementq;
     }
+
+    @Override
+    boolean isQuiet() {
+        return true;
+    }
 }
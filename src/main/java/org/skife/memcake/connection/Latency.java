@@ -0,0 +1,77 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.connection;
+
+/**
+ * Snapshot of a latency distribution, in nanoseconds. Percentiles are the upper bound of the
+ * histogram bucket they fall in, so overstate the true value by at most 12.5%.
+ */
+public final class Latency {
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    Latency(long[] counts, long count, long sum, long max) {
+        this.counts = counts;
+        this.count = count;
+        this.sum = sum;
+        this.max = max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMeanNanos() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    public long getMaxNanos() {
+        return max;
+    }
+
+    /**
+     * @param percentile between 0 and 100, such as 99.9
+     */
+    public long getPercentileNanos(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(LatencyHistogram.upperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    public long getP50Nanos() {
+        return getPercentileNanos(50);
+    }
+
+    public long getP99Nanos() {
+        return getPercentileNanos(99);
+    }
+
+    public long getP999Nanos() {
+        return getPercentileNanos(99.9);
+    }
+}
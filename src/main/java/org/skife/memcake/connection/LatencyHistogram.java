@@ -0,0 +1,87 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.connection;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram of durations in nanoseconds, in log scaled buckets.
+ * <p>
+ * Each power of two is split into {@link #SUB_BUCKETS} linear buckets, so a recorded value is
+ * known to within 12.5%, and values under {@link #SUB_BUCKETS} nanos are exact. Recording is
+ * one bucket increment plus a sum, and a max which is only written when it grows. Values past
+ * about eighteen minutes all land in the last bucket.
+ */
+class LatencyHistogram {
+    static final int SUB_BUCKETS = 8;
+    private static final int SUB_BITS = 3;
+    private static final int MAX_MSB = 40;
+    static final int BUCKETS = (MAX_MSB - SUB_BITS + 1) * SUB_BUCKETS + SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucket(nanos));
+        sum.add(nanos);
+        long m = max.get();
+        while (nanos > m && !max.compareAndSet(m, nanos)) {
+            m = max.get();
+        }
+    }
+
+    /**
+     * A snapshot of the histogram. Recording carries on while it is taken, so the count and
+     * mean may be off by whatever was recorded meanwhile.
+     */
+    Latency snapshot() {
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        return new Latency(copy, count, sum.sum(), max.get());
+    }
+
+    static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(nanos);
+        if (msb > MAX_MSB) {
+            return BUCKETS - 1;
+        }
+        int shift = msb - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((nanos >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * @return the largest value which lands in {@code bucket}
+     */
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long sub = SUB_BUCKETS + bucket % SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
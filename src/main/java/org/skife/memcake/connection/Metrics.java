@@ -0,0 +1,216 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.connection;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies, by operation, and counters recorded by connections as they go.
+ * <p>
+ * Each connection records into its own instance unless given a shared one with
+ * {@link Connection#setMetrics(Metrics)}, which is how a client gathers up every connection
+ * it opens. Recording is lock free, and the histograms for an operation are only created the
+ * first time it is used.
+ * <p>
+ * Batches, such as a multiget, are recorded once, under the opcode of their entries. Their
+ * hits and misses are counted per entry.
+ */
+public final class Metrics implements MetricsMXBean {
+    private static final int KEY_NOT_FOUND = 0x0001;
+
+    private final AtomicReferenceArray<Operation> operations = new AtomicReferenceArray<>(256);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LatencyHistogram completions = new LatencyHistogram();
+
+    private Metrics() {
+    }
+
+    public static Metrics create() {
+        return new Metrics();
+    }
+
+    /**
+     * Gets which found their key, including the entries of multigets.
+     */
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Gets which did not find their key, including the entries of multigets.
+     */
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Requests which timed out, whether in flight or waiting for their turn.
+     */
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    /**
+     * Requests which failed other than by timing out: with an error status (other than a
+     * get's miss), a network failure, or the connection being closed.
+     */
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    /**
+     * Time the read loop spent completing the request(s) answered by each response, including
+     * any callbacks run inline on it. Under a {@link CompletionStrategy} other than inline this
+     * is just the cost of handing completions off.
+     */
+    @Override
+    public Latency getCompletionTime() {
+        return completions.snapshot();
+    }
+
+    /**
+     * @return latencies of every operation used so far, by operation name
+     */
+    @Override
+    public Map<String, OperationMetrics> getOperations() {
+        Map<String, OperationMetrics> snapshot = new TreeMap<>();
+        for (int i = 0; i < operations.length(); i++) {
+            Operation op = operations.get(i);
+            if (op != null) {
+                snapshot.put(op.name, op.snapshot());
+            }
+        }
+        return Collections.unmodifiableMap(snapshot);
+    }
+
+    /**
+     * @param operation binary protocol name of the operation, such as {@code get}
+     * @return latencies of the operation, or null if it has not been used
+     */
+    public OperationMetrics getOperation(String operation) {
+        return getOperations().get(operation);
+    }
+
+    void sent(Responder responder) {
+        operation(responder.opcode).queue.record(responder.sentAt - responder.queuedAt);
+    }
+
+    /**
+     * @param response null for a quiet command the server said nothing about
+     */
+    void answered(Responder responder, Response response, long now) {
+        latencies(responder, now);
+        int status = response == null ? 0 : response.getStatus();
+        if (Opcodes.isGet(responder.opcode)) {
+            if (response == null || status == KEY_NOT_FOUND) {
+                misses.increment();
+            }
+            else if (status == 0) {
+                hits.increment();
+            }
+            else {
+                errors.increment();
+            }
+        }
+        else if (status != 0) {
+            errors.increment();
+        }
+    }
+
+    /**
+     * A batch whose anchor has been answered, of which {@code answered} entries were answered
+     * along the way. Entries are quiet, so only hits are answered for a batch of gets.
+     */
+    void batchAnswered(Responder responder, int entries, int answered, long now) {
+        latencies(responder, now);
+        if (Opcodes.isGet(responder.opcode)) {
+            hits.add(answered);
+            misses.add(entries - answered);
+        }
+    }
+
+    void completed(long nanos) {
+        completions.record(nanos);
+    }
+
+    void timedOut() {
+        timeouts.increment();
+    }
+
+    void failed() {
+        errors.increment();
+    }
+
+    void read(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    void wrote(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    private void latencies(Responder responder, long now) {
+        Operation op = operation(responder.opcode);
+        op.wire.record(now - responder.sentAt);
+        op.total.record(now - responder.queuedAt);
+    }
+
+    private Operation operation(byte opcode) {
+        int i = opcode & 0xff;
+        Operation op = operations.get(i);
+        if (op == null) {
+            operations.compareAndSet(i, null, new Operation(Opcodes.name(opcode)));
+            op = operations.get(i);
+        }
+        return op;
+    }
+
+    private static final class Operation {
+        private final String name;
+        private final LatencyHistogram queue = new LatencyHistogram();
+        private final LatencyHistogram wire = new LatencyHistogram();
+        private final LatencyHistogram total = new LatencyHistogram();
+
+        Operation(String name) {
+            this.name = name;
+        }
+
+        OperationMetrics snapshot() {
+            return new OperationMetrics(name, queue.snapshot(), wire.snapshot(), total.snapshot());
+        }
+    }
+}
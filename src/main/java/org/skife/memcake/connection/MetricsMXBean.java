@@ -0,0 +1,37 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.connection;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link Metrics}.
+ */
+public interface MetricsMXBean {
+    long getHits();
+
+    long getMisses();
+
+    long getTimeouts();
+
+    long getErrors();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    Latency getCompletionTime();
+
+    Map<String, OperationMetrics> getOperations();
+}
@@ -25,8 +25,8 @@ class NoOpCommand extends Command {
     }
 
     @Override
-    Responder createResponder(int opaque) {
-        return Responder.voidResponder(this, result, opaque);
+    Responder createResponder() {
+        return Responder.voidResponder(this, result);
     }
 
     @Override
@@ -41,4 +41,19 @@ class Opcodes {
     static final byte flushq = 0x18;
     static final byte appendq = 0x19;
     static final byte prependq = 0x1a;
+
+    private static final String[] NAMES = {
+        "get", "set", "add", "replace", "delete", "increment", "decrement", "quit", "flush", "getq",
+        "noop", "version", "getk", "getkq", "append", "prepend", "stat", "setq", "addq", "replaceq",
+        "deleteq", "incrementq", "decrementq", "quitq", "flushq", "appendq", "prependq"
+    };
+
+    static String name(byte opcode) {
+        int i = opcode & 0xff;
+        return i < NAMES.length ? NAMES[i] : String.format("0x%02x", i);
+    }
+
+    static boolean isGet(byte opcode) {
+        return opcode == get || opcode == getq || opcode == getk || opcode == getkq;
+    }
 }
@@ -0,0 +1,60 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.connection;
+
+/**
+ * Snapshot of the latencies of one kind of operation.
+ */
+public final class OperationMetrics {
+    private final String operation;
+    private final Latency queueTime;
+    private final Latency wireTime;
+    private final Latency totalTime;
+
+    OperationMetrics(String operation, Latency queueTime, Latency wireTime, Latency totalTime) {
+        this.operation = operation;
+        this.queueTime = queueTime;
+        this.wireTime = wireTime;
+        this.totalTime = totalTime;
+    }
+
+    /**
+     * The binary protocol name of the operation, such as {@code get} or {@code setq}.
+     */
+    public String getOperation() {
+        return operation;
+    }
+
+    /**
+     * From the request being made to it being written, including any time spent waiting for
+     * a turn to go in flight.
+     */
+    public Latency getQueueTime() {
+        return queueTime;
+    }
+
+    /**
+     * From the request being written to its response being read.
+     */
+    public Latency getWireTime() {
+        return wireTime;
+    }
+
+    /**
+     * From the request being made to its response being read.
+     */
+    public Latency getTotalTime() {
+        return totalTime;
+    }
+}
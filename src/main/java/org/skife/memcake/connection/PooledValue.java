@@ -0,0 +1,87 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.connection;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A value whose bytes are left in a buffer leased from the connection's {@link BufferPool}
+ * rather than copied into a {@code byte[]}, for callers which only pass the bytes along.
+ * <p>
+ * The buffer must be handed back with {@link #release()} (or {@link #close()}) once the caller
+ * is done with it, after which it is reused and must not be touched. A value which is never
+ * released is simply left to the garbage collector, so forgetting costs the pool a buffer,
+ * not correctness.
+ */
+public class PooledValue implements AutoCloseable {
+    private final Version cas;
+    private final int flags;
+    private final Optional<byte[]> key;
+    private final ByteBuffer value;
+    private final ByteBuffer leased;
+    private final BufferPool pool;
+    private final AtomicBoolean released = new AtomicBoolean(false);
+
+    PooledValue(Version cas, int flags, Optional<byte[]> key, ByteBuffer value, ByteBuffer leased, BufferPool pool) {
+        this.cas = cas;
+        this.flags = flags;
+        this.key = key;
+        this.value = value;
+        this.leased = leased;
+        this.pool = pool;
+    }
+
+    public Version getVersion() {
+        return cas;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public Optional<byte[]> getKey() {
+        return key;
+    }
+
+    /**
+     * @return a read only view of the value, positioned at its start. Each call returns a new
+     * view, so reading from one does not move the others
+     */
+    public ByteBuffer getBuffer() {
+        if (released.get()) {
+            throw new IllegalStateException("value has already been released");
+        }
+        return value.duplicate();
+    }
+
+    public int size() {
+        return value.remaining();
+    }
+
+    /**
+     * Hand the buffer back to the pool. Safe to call more than once.
+     */
+    public void release() {
+        if (released.compareAndSet(false, true)) {
+            pool.release(leased);
+        }
+    }
+
+    @Override
+    public void close() {
+        release();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.connection;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A quiet set or delete for each key, anchored by a noop. The server only answers the entries
+ * which failed, so the result is just those failures, by key.
+ */
+class QuietMultiCommand extends BatchCommand {
+    private final CompletableFuture<Map<Key, StatusException>> result;
+    private final List<Key> keys;
+
+    // only touched by the read loop
+    private final Map<Key, StatusException> failures = new HashMap<>();
+
+    private QuietMultiCommand(CompletableFuture<Map<Key, StatusException>> result,
+                              List<Key> keys,
+                              List<Command> entries,
+                              Duration timeout) {
+        super(entries, timeout);
+        this.result = result;
+        this.keys = keys;
+    }
+
+    static QuietMultiCommand set(CompletableFuture<Map<Key, StatusException>> result,
+                                 Map<Key, byte[]> values,
+                                 int flags,
+                                 int expires,
+                                 Duration timeout) {
+        List<Key> keys = new ArrayList<>(values.size());
+        List<Command> entries = new ArrayList<>(values.size());
+        for (Map.Entry<Key, byte[]> e : values.entrySet()) {
+            keys.add(e.getKey());
+            // answered through the batch, never through a responder of their own
+            entries.add(new SetQuietCommand(null,
+                                            e.getKey().getBytes(),
+                                            flags,
+                                            expires,
+                                            e.getValue(),
+                                            Version.NONE,
+                                            timeout));
+        }
+        return new QuietMultiCommand(result, keys, entries, timeout);
+    }
+
+    static QuietMultiCommand delete(CompletableFuture<Map<Key, StatusException>> result,
+                                    Collection<Key> keys,
+                                    Duration timeout) {
+        List<Key> ordered = new ArrayList<>(keys);
+        List<Command> entries = new ArrayList<>(ordered.size());
+        for (Key key : ordered) {
+            entries.add(new DeleteQuietlyCommand(null, key.getBytes(), Version.NONE, timeout));
+        }
+        return new QuietMultiCommand(result, ordered, entries, timeout);
+    }
+
+    @Override
+    void entryAnswered(int index, Response r) {
+        if (r.getStatus() != 0) {
+            failures.put(keys.get(index), new StatusException(r.getStatus(), r.getError()));
+        }
+    }
+
+    @Override
+    Responder createResponder() {
+        return new Responder(result::completeExceptionally, (r) -> {
+            if (r.getStatus() != 0) {
+                result.completeExceptionally(new StatusException(r.getStatus(), r.getError()));
+            }
+            else {
+                result.complete(failures);
+            }
+        });
+    }
+}
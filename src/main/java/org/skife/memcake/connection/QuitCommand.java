@@ -28,10 +28,11 @@ class QuitCommand extends Command {
     }
 
     @Override
-    Responder createResponder(int opaque) {
-        return new Responder(opaque, result::completeExceptionally, (s) -> {
-            result.complete(null);
+    Responder createResponder() {
+        return new Responder(result::completeExceptionally, (r) -> {
+            // closed first, so whoever is waiting on the quit sees the connection closed
             conn.close();
+            result.complete(null);
         });
     }
 
@@ -26,12 +26,17 @@ class QuitQuietlyCommand extends Command {
     }
 
     @Override
-    Responder createResponder(int opaque) {
-        return Responder.voidResponder(this, result, opaque);
+    Responder createResponder() {
+        return Responder.voidResponder(this, result);
     }
 
     @Override
     byte opcode() {
         return Opcodes.quitq;
     }
+
+    @Override
+    boolean isQuiet() {
+        return true;
+    }
 }
@@ -13,37 +13,62 @@
  */
 package org.skife.memcake.connection;
 
-import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 
 class Responder {
-    private final Consumer<Map<Integer, Response>> success;
+    static final int[] NO_QUIETS = new int[0];
+
+    private final Consumer<Response> success;
     private final Consumer<Throwable> failure;
-    private final int opaque;
 
-    Responder(int opaque,
-              Consumer<Throwable> failure,
-              Consumer<Map<Integer, Response>> success) {
+    // assigned by the write loop before the responder is published in the in flight table
+    int opaque;
+    // opaques of the quiet commands written after the previous non-quiet command, and
+    // before this one. They are finished once this one is answered.
+    int[] quiets = NO_QUIETS;
+    // scheduled once the request is in flight, cancelled by whoever completes it first
+    volatile TimeoutScheduler.Timeout timeout;
+    // set for commands which take a get's value as a pooled buffer rather than a byte[]
+    boolean pooledValue;
+    // set for gets which stream their value to a channel as it arrives
+    StreamingGetCommand streamTo;
+    // set for the anchor of a batch, whose entries it answers for
+    BatchCommand batch;
+    // set for requests holding one of the connection's permits, given back once finished
+    boolean holdsPermit;
+    // what it is and when it was made and written, for metrics. Assigned by the write loop
+    // along with the opaque
+    byte opcode;
+    long queuedAt;
+    long sentAt;
+
+    /**
+     * @param success receives the response, or null for a quiet command which the server
+     *                had nothing to say about
+     */
+    Responder(Consumer<Throwable> failure, Consumer<Response> success) {
         this.success = success;
         this.failure = failure;
-        this.opaque = opaque;
     }
 
-    int completed(Map<Integer, Response> state) {
-        success.accept(state);
-        return opaque;
+    void completed(Response response) {
+        success.accept(response);
     }
 
-    int failure(Throwable t) {
+    void failure(Throwable t) {
         failure.accept(t);
-        return opaque;
     }
 
-    static Responder voidResponder(Command c, CompletableFuture<Void> result, int opaque) {
-        return new Responder(opaque, result::completeExceptionally, (s) -> {
-            Response r = s.get(opaque);
+    void cancelTimeout() {
+        TimeoutScheduler.Timeout t = timeout;
+        if (t != null) {
+            t.cancel();
+        }
+    }
 
+    static Responder voidResponder(Command c, CompletableFuture<Void> result) {
+        return new Responder(result::completeExceptionally, (r) -> {
             if (c.isQuiet() && r == null) {
                 // probably quiet, voidResponder can only handle Void quiets
                 result.complete(null);
@@ -57,10 +82,8 @@ class Responder {
         });
     }
 
-    static Responder versionResponder(CompletableFuture<Version> result, int opaque) {
-        return new Responder(opaque, result::completeExceptionally, (s) -> {
-            Response r = s.get(opaque);
-
+    static Responder versionResponder(CompletableFuture<Version> result) {
+        return new Responder(result::completeExceptionally, (r) -> {
             if (r.getStatus() == 0) {
                 result.complete(new Version(r.getVersion()));
             }
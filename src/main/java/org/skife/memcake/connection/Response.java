@@ -14,37 +14,50 @@
 package org.skife.memcake.connection;
 
 import java.nio.ByteBuffer;
-import java.nio.channels.CompletionHandler;
 import java.nio.charset.StandardCharsets;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * The response being decoded. Each connection has one, which its read loop reuses for every
+ * response, so it is only valid until {@link Connection#receive(Response)} returns. Anything
+ * which needs to outlive that has to be copied out of it.
+ */
 class Response {
     private final Connection conn;
-    private final ByteBuffer headerBuffer;
 
     // header fields
-    private final byte magic;
-    private final byte opcode;
-    private final char keyLength;
-    private final byte extrasLength;
-    private final byte dataType;
-    private final int totalBodyLength;
-    private final int opaque;
-    private final long cas;
-    private final ByteBuffer bodyBuffer;
-    private final char status;
+    private byte magic;
+    private byte opcode;
+    private char keyLength;
+    private byte extrasLength;
+    private byte dataType;
+    private int totalBodyLength;
+    private int opaque;
+    private long cas;
+    private char status;
 
     // body fields
-    private final AtomicInteger flags = new AtomicInteger(0);
-    private final AtomicReference<byte[]> value = new AtomicReference<>();
-    private final AtomicReference<byte[]> key = new AtomicReference<>();
-    private final AtomicReference<String> error = new AtomicReference<>();
+    private int flags;
+    private byte[] value;
+    private byte[] key;
+    private long counter;
+
+    // error text is only decoded if somebody asks for it, a miss has one but rarely needs it
+    private ByteBuffer errorBody;
+    private String error;
+
+    // the value, when the waiting command asked for it as a pooled buffer, and the buffer
+    // leased from the pool which holds it
+    private ByteBuffer valueBuffer;
+    private ByteBuffer leasedBuffer;
 
-    Response(Connection conn, ByteBuffer buf) {
-        // read the header fields
+    Response(Connection conn) {
         this.conn = conn;
-        this.headerBuffer = buf;
+    }
+
+    /**
+     * Consumes the 24 byte header at the buffer's position, and forgets the previous response.
+     */
+    void readHeader(ByteBuffer buf) {
         this.magic = buf.get();
         this.opcode = buf.get();
         this.keyLength = buf.getChar();
@@ -55,8 +68,14 @@ class Response {
         this.opaque = buf.getInt();
         this.cas = buf.getLong();
 
-        // allocate buffer for reading the body
-        this.bodyBuffer = ByteBuffer.allocate(totalBodyLength);
+        this.flags = 0;
+        this.value = null;
+        this.key = null;
+        this.counter = 0;
+        this.errorBody = null;
+        this.error = null;
+        this.valueBuffer = null;
+        this.leasedBuffer = null;
     }
 
     int getOpaque() {
@@ -67,12 +86,24 @@ class Response {
         return cas;
     }
 
-    Integer getFlags() {
-        return flags.get();
+    int getFlags() {
+        return flags;
     }
 
     byte[] getValue() {
-        return value.get();
+        return value;
+    }
+
+    int getValueLength() {
+        return totalBodyLength - keyLength - extrasLength;
+    }
+
+    long getCounter() {
+        return counter;
+    }
+
+    void setCounter(long counter) {
+        this.counter = counter;
     }
 
     public char getStatus() {
@@ -84,11 +115,11 @@ class Response {
     }
 
     public void setKey(byte[] key) {
-        this.key.set(key);
+        this.key = key;
     }
 
     public void setFlags(int flags) {
-        this.flags.set(flags);
+        this.flags = flags;
     }
 
     public int getTotalBodyLength() {
@@ -100,93 +131,96 @@ class Response {
     }
 
     public void setValue(byte[] value) {
-        this.value.set(value);
+        this.value = value;
+    }
+
+    void setValueBuffer(ByteBuffer valueBuffer, ByteBuffer leasedBuffer) {
+        this.valueBuffer = valueBuffer;
+        this.leasedBuffer = leasedBuffer;
+    }
+
+    ByteBuffer getValueBuffer() {
+        return valueBuffer;
+    }
+
+    ByteBuffer getLeasedBuffer() {
+        return leasedBuffer;
     }
 
     public byte[] getKey() {
-        return key.get();
+        return key;
     }
 
     public String getError() {
-        return error.get();
+        if (error == null && errorBody != null) {
+            byte[] message = new byte[errorBody.remaining()];
+            errorBody.duplicate().get(message);
+            error = new String(message, StandardCharsets.US_ASCII);
+        }
+        return error;
     }
 
     public byte getOpcode() {
         return opcode;
     }
 
-    void readBody() {
-        conn.getChannel().read(bodyBuffer, bodyBuffer, new CompletionHandler<Integer, ByteBuffer>() {
-            @Override
-            public void completed(Integer bytesRead, ByteBuffer bodyBuffer) {
-                if (bodyBuffer.remaining() != 0) {
-                    readBody();
-                    return;
-                }
-
-                bodyBuffer.flip();
-
-                if (status == 0) {
-                    // completed, process the body per message type
-                    switch (opcode) {
-                        case Opcodes.stat:
-                            // stat is special, it needs to accumulate. What a pain.
-                            StatCommand.parseBody(Response.this, conn, bodyBuffer);
-                            break;
-                        case Opcodes.get:
-                        case Opcodes.getq:
-                        case Opcodes.getk:
-                        case Opcodes.getkq:
-                            GetCommand.parseBody(Response.this, conn, bodyBuffer);
-                            break;
-                        case Opcodes.increment:
-                        case Opcodes.decrement:
-                            IncrementCommand.parseBody(Response.this, conn, bodyBuffer);
-                            break;
-                        case Opcodes.version:
-                            VersionCommand.parseBody(Response.this, conn, bodyBuffer);
-                            break;
-                        case Opcodes.appendq:
-                        case Opcodes.prependq:
-                        case Opcodes.flush:
-                        case Opcodes.flushq:
-                        case Opcodes.noop:
-                        case Opcodes.set:
-                        case Opcodes.setq:
-                        case Opcodes.add:
-                        case Opcodes.addq:
-                        case Opcodes.delete:
-                        case Opcodes.deleteq:
-                        case Opcodes.replace:
-                        case Opcodes.replaceq:
-                        case Opcodes.incrementq:
-                        case Opcodes.decrementq:
-                        case Opcodes.quit:
-                        case Opcodes.append:
-                        case Opcodes.prepend:
-                            // these command never have bodies
-                            conn.receive(Response.this);
-                            break;
-                        default:
-                            throw new IllegalStateException("unknown opcode " + status);
-                    }
-                }
-                else {
-                    // error, body will be textual error description
-                    error.set(new String(bodyBuffer.array(), StandardCharsets.US_ASCII));
-                    conn.receive(Response.this);
-                }
-
-                // we finished reading body, so start next read loop
-                headerBuffer.clear();
-                conn.nextResponse(headerBuffer);
-            }
-
-            @Override
-            public void failed(Throwable exc, ByteBuffer attachment) {
-                conn.networkFailure(exc);
+    /**
+     * Parse the body and hand the completed response to the connection.
+     *
+     * @param bodyBuffer positioned at the start of the body, with exactly the body remaining.
+     *                   Parsers copy out anything they keep, the buffer is reused after this returns.
+     */
+    void parseBody(ByteBuffer bodyBuffer) {
+        if (status == 0) {
+            // completed, process the body per message type
+            switch (opcode) {
+                case Opcodes.stat:
+                    // stat is special, it needs to accumulate. What a pain.
+                    StatCommand.parseBody(this, conn, bodyBuffer);
+                    break;
+                case Opcodes.get:
+                case Opcodes.getq:
+                case Opcodes.getk:
+                case Opcodes.getkq:
+                    GetCommand.parseBody(this, conn, bodyBuffer);
+                    break;
+                case Opcodes.increment:
+                case Opcodes.decrement:
+                    IncrementCommand.parseBody(this, conn, bodyBuffer);
+                    break;
+                case Opcodes.version:
+                    VersionCommand.parseBody(this, conn, bodyBuffer);
+                    break;
+                case Opcodes.appendq:
+                case Opcodes.prependq:
+                case Opcodes.flush:
+                case Opcodes.flushq:
+                case Opcodes.noop:
+                case Opcodes.set:
+                case Opcodes.setq:
+                case Opcodes.add:
+                case Opcodes.addq:
+                case Opcodes.delete:
+                case Opcodes.deleteq:
+                case Opcodes.replace:
+                case Opcodes.replaceq:
+                case Opcodes.incrementq:
+                case Opcodes.decrementq:
+                case Opcodes.quit:
+                case Opcodes.append:
+                case Opcodes.prepend:
+                    // these command never have bodies
+                    conn.receive(this);
+                    break;
+                default:
+                    throw new IllegalStateException("unknown opcode " + status);
             }
-        });
+        }
+        else {
+            // error, body will be textual error description. Left where it is until asked for.
+            errorBody = bodyBuffer;
+            conn.receive(this);
+        }
     }
 
     private void consumeError(Connection conn, ByteBuffer bodyBuffer) {
@@ -0,0 +1,150 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.connection;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The future a connection returns for a request, which is cheap to block on.
+ * <p>
+ * Blocking on a plain {@link CompletableFuture} pushes a waiter node onto its dependents and
+ * goes through {@link java.util.concurrent.ForkJoinPool#managedBlock}. Blocking callers almost
+ * always have exactly one thread waiting on each request, so that thread simply parks, and is
+ * unparked by whoever completes the future. Parking works the same for platform and virtual
+ * threads, so a thread per request can share pipelined connections with async callers.
+ * <p>
+ * The connection attaches no dependents of its own, so completing the future does nothing
+ * before waking the waiter but run whatever the caller composed onto it.
+ * <p>
+ * Only one thread waits this way at a time, any others fall back to the usual waiting.
+ */
+class ResponseFuture<T> extends CompletableFuture<T> {
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<ResponseFuture, Thread> WAITER =
+        AtomicReferenceFieldUpdater.newUpdater(ResponseFuture.class, Thread.class, "waiter");
+
+    private volatile Thread waiter;
+
+    @Override
+    public boolean complete(T value) {
+        boolean completed = super.complete(value);
+        wake();
+        return completed;
+    }
+
+    @Override
+    public boolean completeExceptionally(Throwable ex) {
+        boolean completed = super.completeExceptionally(ex);
+        wake();
+        return completed;
+    }
+
+    @Override
+    public void obtrudeValue(T value) {
+        super.obtrudeValue(value);
+        wake();
+    }
+
+    @Override
+    public void obtrudeException(Throwable ex) {
+        super.obtrudeException(ex);
+        wake();
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        wake();
+        return cancelled;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        if (!isDone() && WAITER.compareAndSet(this, null, Thread.currentThread())) {
+            try {
+                while (!isDone()) {
+                    LockSupport.park(this);
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                }
+            } finally {
+                waiter = null;
+            }
+        }
+        return super.get();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!isDone() && WAITER.compareAndSet(this, null, Thread.currentThread())) {
+            try {
+                long deadline = System.nanoTime() + unit.toNanos(timeout);
+                while (!isDone()) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw new TimeoutException();
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                }
+            } finally {
+                waiter = null;
+            }
+        }
+        return super.get(timeout, unit);
+    }
+
+    /**
+     * Waits uninterruptibly, as {@link CompletableFuture#join()} does.
+     *
+     * @throws CompletionException  if the future failed
+     * @throws CancellationException if it was cancelled
+     */
+    @Override
+    public T join() {
+        if (!isDone() && WAITER.compareAndSet(this, null, Thread.currentThread())) {
+            boolean interrupted = false;
+            try {
+                while (!isDone()) {
+                    LockSupport.park(this);
+                    // parking returns straight away while the flag is set, so set it aside
+                    interrupted |= Thread.interrupted();
+                }
+            } finally {
+                waiter = null;
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        return super.join();
+    }
+
+    private void wake() {
+        Thread w = waiter;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+    }
+}
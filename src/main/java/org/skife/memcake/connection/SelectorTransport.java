@@ -0,0 +1,475 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.connection;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connects with non-blocking {@link SocketChannel}s, over TCP or, given an address from
+ * {@link UnixDomainSockets}, a unix domain socket. Each is owned by one of a fixed set of
+ * selector threads. A loop thread does its connections' reads and decoding inline, with no
+ * hand off per completion. Writes are tried on the calling thread first, and only left to the
+ * loop when the socket's send buffer is full.
+ * <p>
+ * Responses are completed on the loop threads, so callbacks attached to them hold up every
+ * other connection on the same loop. The threads are stopped by {@link #close()}.
+ */
+public class SelectorTransport implements Transport, AutoCloseable {
+    private static final AtomicInteger instances = new AtomicInteger();
+
+    // completions run inline on the writing thread up to this deep, past which they are left
+    // to the loop, so a steady stream of writes cannot recurse without bound
+    private static final int MAX_INLINE_WRITES = 16;
+    // how deep in inline completions the current thread is, a completion handed to the loop runs
+    // there while the writer may still be unwinding its own
+    private static final ThreadLocal<int[]> inlineWrites = ThreadLocal.withInitial(() -> new int[1]);
+
+    private final EventLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+
+    private SelectorTransport(int threads) throws IOException {
+        int instance = instances.incrementAndGet();
+        this.loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new EventLoop("memcake-selector-" + instance + "-" + i);
+        }
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    /**
+     * One loop thread per processor.
+     */
+    public static SelectorTransport create() {
+        return create(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads number of loop threads, connections are spread across them round robin
+     */
+    public static SelectorTransport create(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("at least one loop thread is required");
+        }
+        try {
+            return new SelectorTransport(threads);
+        } catch (IOException e) {
+            throw new IllegalStateException("unable to open selector", e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<TransportChannel> connect(SocketAddress address) {
+        EventLoop loop = loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+        CompletableFuture<TransportChannel> cf = new CompletableFuture<>();
+        if (!loop.running) {
+            cf.completeExceptionally(new IllegalStateException("transport is closed"));
+            return cf;
+        }
+        loop.execute(() -> loop.connect(address, cf));
+        return cf;
+    }
+
+    /**
+     * Stop the loop threads, closing every connection still open on them.
+     */
+    @Override
+    public void close() {
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    private static final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean awake = new AtomicBoolean(false);
+        private volatile boolean running = true;
+        // set once the loop thread has finished, after which tasks are run by whoever adds them
+        private volatile boolean stopped = false;
+
+        EventLoop(String name) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+        }
+
+        boolean inEventLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (stopped) {
+                // nobody is left to run it, and closed channels fail whatever is asked of them
+                runTasks();
+            }
+            else if (!inEventLoop() && awake.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    // channel tasks fail their own channel, nothing else is worth losing the loop over
+                }
+            }
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        void connect(SocketAddress address, CompletableFuture<TransportChannel> cf) {
+            if (!running) {
+                cf.completeExceptionally(new IllegalStateException("transport is closed"));
+                return;
+            }
+            SocketChannel socket = null;
+            try {
+                if (UnixDomainSockets.isUnixDomain(address)) {
+                    socket = UnixDomainSockets.open();
+                    socket.configureBlocking(false);
+                }
+                else {
+                    socket = SocketChannel.open();
+                    socket.configureBlocking(false);
+                    socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                }
+                Channel channel = new Channel(this, socket);
+                if (socket.connect(address)) {
+                    channel.key = socket.register(selector, 0, channel);
+                    cf.complete(channel);
+                }
+                else {
+                    channel.connecting = cf;
+                    channel.key = socket.register(selector, SelectionKey.OP_CONNECT, channel);
+                }
+            } catch (IOException | RuntimeException e) {
+                closeQuietly(socket);
+                cf.completeExceptionally(e);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    if (tasks.isEmpty()) {
+                        selector.select();
+                    }
+                    else {
+                        selector.selectNow();
+                    }
+                    awake.set(false);
+                    runTasks();
+
+                    Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                    while (selected.hasNext()) {
+                        SelectionKey key = selected.next();
+                        selected.remove();
+                        Channel channel = (Channel) key.attachment();
+                        try {
+                            int ready = key.readyOps();
+                            if ((ready & SelectionKey.OP_CONNECT) != 0) {
+                                channel.finishConnect();
+                            }
+                            if ((ready & SelectionKey.OP_WRITE) != 0) {
+                                channel.writable();
+                            }
+                            if ((ready & SelectionKey.OP_READ) != 0) {
+                                channel.readable();
+                            }
+                        } catch (CancelledKeyException e) {
+                            // closed while we were at it
+                            channel.closed();
+                        } catch (RuntimeException e) {
+                            // a handler blew up, give up on its channel rather than the whole loop
+                            channel.fail();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // the selector is broken, nothing more can be done with it
+            } finally {
+                // anything asked of this loop from now on fails instead of waiting on it forever
+                running = false;
+                for (SelectionKey key : selector.keys()) {
+                    ((Channel) key.attachment()).fail();
+                }
+                stopped = true;
+                // connects never started, and closes, fail or finish on their own
+                runTasks();
+                closeQuietly(selector);
+            }
+        }
+    }
+
+    private static final class Channel implements TransportChannel {
+        private final EventLoop loop;
+        private final SocketChannel socket;
+        private final AtomicBoolean open = new AtomicBoolean(true);
+        // set on the loop once registered
+        private SelectionKey key;
+        private CompletableFuture<TransportChannel> connecting;
+
+        // the one outstanding read, only touched by the loop
+        private ByteBuffer readBuffer;
+        private Object readAttachment;
+        private CompletionHandler<Integer, Object> readHandler;
+
+        // a write waiting for the socket to be writable, only touched by the loop
+        private Runnable blockedWrite;
+
+        Channel(EventLoop loop, SocketChannel socket) {
+            this.loop = loop;
+            this.socket = socket;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <A> void read(ByteBuffer dst, A attachment, CompletionHandler<Integer, ? super A> handler) {
+            if (loop.inEventLoop()) {
+                startRead(dst, attachment, (CompletionHandler<Integer, Object>) handler);
+            }
+            else if (!loop.running) {
+                handler.failed(new AsynchronousCloseException(), attachment);
+            }
+            else {
+                execute(() -> startRead(dst, attachment, (CompletionHandler<Integer, Object>) handler));
+            }
+        }
+
+        private void startRead(ByteBuffer dst, Object attachment, CompletionHandler<Integer, Object> handler) {
+            if (!open.get()) {
+                handler.failed(new AsynchronousCloseException(), attachment);
+                return;
+            }
+            readBuffer = dst;
+            readAttachment = attachment;
+            readHandler = handler;
+            // usually still interested from the last read, which saves a trip to the kernel
+            try {
+                if ((key.interestOps() & SelectionKey.OP_READ) == 0) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                }
+            } catch (CancelledKeyException e) {
+                closed();
+            }
+        }
+
+        void readable() {
+            if (readHandler == null) {
+                // nobody is reading, stop being told about it
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                return;
+            }
+            ByteBuffer dst = readBuffer;
+            Object attachment = readAttachment;
+            CompletionHandler<Integer, Object> handler = readHandler;
+            int n;
+            try {
+                n = socket.read(dst);
+            } catch (IOException e) {
+                readHandler = null;
+                handler.failed(e, attachment);
+                return;
+            }
+            if (n == 0) {
+                return;
+            }
+            readBuffer = null;
+            readAttachment = null;
+            readHandler = null;
+            handler.completed(n, attachment);
+        }
+
+        @Override
+        public <A> void write(ByteBuffer[] srcs,
+                              int offset,
+                              int length,
+                              A attachment,
+                              CompletionHandler<Long, ? super A> handler) {
+            long n;
+            try {
+                n = socket.write(srcs, offset, length);
+            } catch (ClosedChannelException e) {
+                handler.failed(new AsynchronousCloseException(), attachment);
+                return;
+            } catch (IOException e) {
+                handler.failed(e, attachment);
+                return;
+            }
+            int[] depth = inlineWrites.get();
+            if (n != 0 && depth[0] < MAX_INLINE_WRITES) {
+                depth[0]++;
+                try {
+                    handler.completed(n, attachment);
+                } finally {
+                    depth[0]--;
+                }
+            }
+            else if (!loop.running) {
+                handler.failed(new AsynchronousCloseException(), attachment);
+            }
+            else if (n == 0) {
+                // send buffer is full, try again once there is room
+                execute(() -> awaitWritable(() -> write(srcs, offset, length, attachment, handler), attachment, handler));
+            }
+            else {
+                execute(() -> handler.completed(n, attachment));
+            }
+        }
+
+        private <A> void awaitWritable(Runnable retry, A attachment, CompletionHandler<Long, ? super A> handler) {
+            if (!open.get()) {
+                handler.failed(new AsynchronousCloseException(), attachment);
+                return;
+            }
+            blockedWrite = () -> {
+                if (open.get()) {
+                    retry.run();
+                }
+                else {
+                    handler.failed(new AsynchronousCloseException(), attachment);
+                }
+            };
+            try {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            } catch (CancelledKeyException e) {
+                closed();
+            }
+        }
+
+        void writable() {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            Runnable write = blockedWrite;
+            blockedWrite = null;
+            if (write != null) {
+                write.run();
+            }
+        }
+
+        void finishConnect() {
+            CompletableFuture<TransportChannel> cf = connecting;
+            connecting = null;
+            try {
+                socket.finishConnect();
+                key.interestOps(0);
+                cf.complete(this);
+            } catch (IOException e) {
+                key.cancel();
+                closeQuietly(socket);
+                open.set(false);
+                cf.completeExceptionally(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (open.compareAndSet(true, false)) {
+                socket.close();
+                execute(this::closed);
+            }
+        }
+
+        /**
+         * Run a task for this channel on the loop, closing the channel should the task throw.
+         */
+        private void execute(Runnable task) {
+            loop.execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    fail();
+                }
+            });
+        }
+
+        /**
+         * Close the socket and fail whatever was outstanding, without letting a throwing
+         * handler get any further. Only called on the loop.
+         */
+        void fail() {
+            closeQuietly(socket);
+            try {
+                closed();
+            } catch (RuntimeException e) {
+                // the channel is closed either way
+            }
+        }
+
+        /**
+         * Fail whatever was outstanding when the channel was closed. Only called on the loop.
+         */
+        void closed() {
+            open.set(false);
+            if (key != null) {
+                key.cancel();
+            }
+            CompletableFuture<TransportChannel> cf = connecting;
+            connecting = null;
+            if (cf != null) {
+                cf.completeExceptionally(new AsynchronousCloseException());
+            }
+            CompletionHandler<Integer, Object> handler = readHandler;
+            Object attachment = readAttachment;
+            readBuffer = null;
+            readAttachment = null;
+            readHandler = null;
+            if (handler != null) {
+                handler.failed(new AsynchronousCloseException(), attachment);
+            }
+            Runnable write = blockedWrite;
+            blockedWrite = null;
+            if (write != null) {
+                write.run();
+            }
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            // close quietly
+        }
+    }
+}
@@ -42,8 +42,8 @@ class SetCommand extends Command {
     }
 
     @Override
-    public Responder createResponder(int opaque) {
-        return Responder.versionResponder(result, opaque);
+    public Responder createResponder() {
+        return Responder.versionResponder(result);
     }
 
     @Override
@@ -57,21 +57,19 @@ class SetCommand extends Command {
     }
 
     @Override
-    char keyLength() {
-        return (char) key.length;
+    byte[] key() {
+        return key;
     }
 
     @Override
-    int bodyLength() {
-        return value.length;
+    byte[] value() {
+        return value;
     }
 
     @Override
-    void writeBody(ByteBuffer buffer) {
+    void writeExtras(ByteBuffer buffer) {
         buffer.putInt(flags);
         buffer.putInt(expires);
-        buffer.put(key);
-        buffer.put(value);
     }
 
     @Override
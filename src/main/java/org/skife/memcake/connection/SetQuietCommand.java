@@ -47,8 +47,8 @@ class SetQuietCommand extends Command {
     }
 
     @Override
-    Responder createResponder(int opaque) {
-        return Responder.voidResponder(this, r, opaque);
+    Responder createResponder() {
+        return Responder.voidResponder(this, r);
     }
 
     @Override
@@ -62,21 +62,19 @@ class SetQuietCommand extends Command {
     }
 
     @Override
-    char keyLength() {
-        return (char) key.length;
+    byte[] key() {
+        return key;
     }
 
     @Override
-    int bodyLength() {
-        return value.length;
+    byte[] value() {
+        return value;
     }
 
     @Override
-    void writeBody(ByteBuffer buffer) {
+    void writeExtras(ByteBuffer buffer) {
         buffer.putInt(flags);
         buffer.putInt(expires);
-        buffer.put(key);
-        buffer.put(value);
     }
 
     @Override
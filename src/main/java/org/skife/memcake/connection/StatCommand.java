@@ -24,19 +24,18 @@ import java.util.concurrent.ConcurrentHashMap;
 class StatCommand extends Command {
 
     private final CompletableFuture<Map<String, String>> result;
-    private final Optional<String> key;
+    private final byte[] key;
 
     StatCommand(CompletableFuture<Map<String, String>> result, Optional<String> key, Duration timeout) {
         super(timeout);
         this.result = result;
-        this.key = key;
+        this.key = key.map((k) -> k.getBytes(StandardCharsets.UTF_8)).orElse(new byte[0]);
     }
 
     @Override
-    Responder createResponder(int opaque) {
+    Responder createResponder() {
         final Map<String, String> rs = new ConcurrentHashMap<>();
-        return new Responder(opaque, result::completeExceptionally, (s) -> {
-            Response r = s.get(opaque);
+        return new Responder(result::completeExceptionally, (r) -> {
             byte[] key = r.getKey();
             if (key != null && key.length != 0) {
                 // accumulate the value
@@ -50,15 +49,8 @@ class StatCommand extends Command {
     }
 
     @Override
-    char keyLength() {
-        return (char) key.orElse("").length();
-    }
-
-    @Override
-    void writeBody(ByteBuffer buffer) {
-        key.ifPresent((k) -> {
-            buffer.put(k.getBytes(StandardCharsets.UTF_8));
-        });
+    byte[] key() {
+        return key;
     }
 
     @Override
@@ -0,0 +1,44 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.connection;
+
+/**
+ * What is known about a value which was streamed to a channel rather than returned.
+ */
+public class StreamedValue {
+    private final Version cas;
+    private final int flags;
+    private final long length;
+
+    StreamedValue(Version cas, int flags, long length) {
+        this.cas = cas;
+        this.flags = flags;
+        this.length = length;
+    }
+
+    public Version getVersion() {
+        return cas;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * @return number of bytes written to the channel
+     */
+    public long getLength() {
+        return length;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.connection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A get whose value is written to a channel chunk by chunk, straight out of the receive buffer,
+ * as it comes off the socket. The connection calls {@link #write(ByteBuffer)} from its read loop
+ * for each chunk, then completes the command as usual once the whole value has gone by.
+ */
+class StreamingGetCommand extends Command {
+
+    private final CompletableFuture<Optional<StreamedValue>> result;
+    private final byte[] key;
+    private final WritableByteChannel sink;
+
+    // only touched by the read loop
+    private long written = 0;
+    private Exception failure;
+
+    StreamingGetCommand(CompletableFuture<Optional<StreamedValue>> result,
+                        byte[] key,
+                        WritableByteChannel sink,
+                        Duration timeout) {
+        super(timeout);
+        this.result = result;
+        this.key = key;
+        this.sink = sink;
+    }
+
+    /**
+     * Write the chunk to the sink. Once the sink has failed, or nobody is waiting on the
+     * result any longer, the rest of the value is skipped.
+     */
+    void write(ByteBuffer chunk) {
+        if (failure != null || result.isDone()) {
+            return;
+        }
+        try {
+            while (chunk.hasRemaining()) {
+                written += sink.write(chunk);
+            }
+        } catch (IOException | RuntimeException e) {
+            // a throwing sink must not escape into the read loop, or the connection stops reading
+            failure = e;
+        }
+    }
+
+    @Override
+    Responder createResponder() {
+        Responder responder = new Responder(result::completeExceptionally, (r) -> {
+            switch (r.getStatus()) {
+                case 0:
+                    if (failure != null) {
+                        result.completeExceptionally(failure);
+                    }
+                    else {
+                        result.complete(Optional.of(new StreamedValue(new Version(r.getVersion()),
+                                                                      r.getFlags(),
+                                                                      written)));
+                    }
+                    break;
+                case 1:
+                    result.complete(Optional.empty());
+                    break;
+                default:
+                    result.completeExceptionally(new StatusException(r.getStatus(), r.getError()));
+            }
+        });
+        responder.streamTo = this;
+        return responder;
+    }
+
+    @Override
+    byte[] key() {
+        return key;
+    }
+
+    @Override
+    byte opcode() {
+        return Opcodes.get;
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.connection;
+
+import java.net.SocketAddress;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * How connections reach a server. {@link AsynchronousTransport} uses NIO.2 asynchronous
+ * sockets, {@link SelectorTransport} runs its own selector threads, and either may be handed to
+ * {@link Connection#open(SocketAddress, int, Transport, HashedWheelTimer)}.
+ */
+public interface Transport {
+
+    /**
+     * @return a channel connected to {@code address}, or the reason it could not be
+     */
+    CompletableFuture<TransportChannel> connect(SocketAddress address);
+}
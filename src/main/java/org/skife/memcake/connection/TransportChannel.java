@@ -0,0 +1,42 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.connection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+
+/**
+ * A connected socket as a {@link Connection} uses it: one read and one write outstanding at a
+ * time, each completing to a handler. Handlers may be run on the thread which started the
+ * operation, or on one of the transport's own.
+ * <p>
+ * Once closed, any outstanding read or write fails with
+ * {@link java.nio.channels.AsynchronousCloseException}.
+ */
+public interface TransportChannel {
+
+    /**
+     * Read as much as is available, at least one byte, into {@code dst}. Completes with the
+     * number of bytes read, or -1 at end of stream.
+     */
+    <A> void read(ByteBuffer dst, A attachment, CompletionHandler<Integer, ? super A> handler);
+
+    /**
+     * Write some, at least one byte, of the buffers. Completes with the number of bytes written.
+     */
+    <A> void write(ByteBuffer[] srcs, int offset, int length, A attachment, CompletionHandler<Long, ? super A> handler);
+
+    void close() throws IOException;
+}
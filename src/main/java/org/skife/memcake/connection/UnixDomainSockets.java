@@ -0,0 +1,109 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.connection;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+
+/**
+ * Unix domain socket addresses, for a memcached on the same host started with
+ * {@code -s /path/to/socket}. Connections over them skip the TCP/IP stack entirely.
+ * <p>
+ * Socket channels learned to speak unix domain sockets in Java 16, while memcake still runs on
+ * Java 8, so this goes through reflection. Only a {@link SelectorTransport} can connect to
+ * these addresses.
+ */
+public final class UnixDomainSockets {
+    private static final ProtocolFamily UNIX;
+    private static final Class<?> ADDRESS;
+    private static final Method OF;
+    private static final Method OPEN;
+
+    static {
+        ProtocolFamily family = null;
+        Class<?> address = null;
+        Method of = null;
+        Method open = null;
+        try {
+            family = StandardProtocolFamily.valueOf("UNIX");
+            address = Class.forName("java.net.UnixDomainSocketAddress");
+            of = address.getMethod("of", Path.class);
+            open = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+        } catch (IllegalArgumentException | ReflectiveOperationException e) {
+            // before Java 16
+            family = null;
+        }
+        UNIX = family;
+        ADDRESS = address;
+        OF = of;
+        OPEN = open;
+    }
+
+    private UnixDomainSockets() {
+    }
+
+    /**
+     * True if this JVM can connect to unix domain sockets.
+     */
+    public static boolean isSupported() {
+        return UNIX != null;
+    }
+
+    /**
+     * @param path the socket memcached is listening on
+     * @return an address for {@link Connection#open(SocketAddress, int, Transport, HashedWheelTimer)}
+     * @throws UnsupportedOperationException before Java 16
+     */
+    public static SocketAddress address(Path path) {
+        checkSupported();
+        try {
+            return (SocketAddress) OF.invoke(null, path);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("unable to create unix domain socket address for " + path, e);
+        }
+    }
+
+    static boolean isUnixDomain(SocketAddress address) {
+        return ADDRESS != null && ADDRESS.isInstance(address);
+    }
+
+    /**
+     * @return an unconnected unix domain socket channel, in blocking mode
+     */
+    static SocketChannel open() throws IOException {
+        checkSupported();
+        try {
+            return (SocketChannel) OPEN.invoke(null, UNIX);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException("unable to open unix domain socket", e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("unable to open unix domain socket", e);
+        }
+    }
+
+    private static void checkSupported() {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("unix domain sockets need Java 16 or later");
+        }
+    }
+}
@@ -30,6 +30,14 @@ public class Value {
         this.value = value;
     }
 
+    /**
+     * A value as it would be read back after being set, without the key.
+     */
+    @SuppressFBWarnings(value = "EI_EXPOSE_REP2", justification = "values are not copied, by design")
+    public static Value of(Version cas, int flags, byte[] value) {
+        return new Value(cas, flags, Optional.empty(), value);
+    }
+
     public Version getVersion() {
         return cas;
     }
@@ -28,9 +28,8 @@ class VersionCommand extends Command {
     }
 
     @Override
-    Responder createResponder(int opaque) {
-        return new Responder(opaque, result::completeExceptionally, (s) -> {
-            Response r = s.get(opaque);
+    Responder createResponder() {
+        return new Responder(result::completeExceptionally, (r) -> {
             result.complete(new String(r.getValue(), StandardCharsets.US_ASCII));
         });
     }
@@ -0,0 +1,137 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.skife.memcake.connection.Key;
+import org.skife.memcake.connection.StatusException;
+import org.skife.memcake.connection.Value;
+import org.skife.memcake.connection.Version;
+import org.skife.memcake.testing.MemcachedRule;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class BlockingMemcakeTest {
+    private static final Duration TIMEOUT = Duration.ofSeconds(2);
+
+    @ClassRule
+    public static final MemcachedRule memcached = new MemcachedRule();
+
+    private Memcake mc;
+    private BlockingMemcake blocking;
+
+    @Before
+    public void setUp() throws Exception {
+        mc = Memcake.create(memcached.getAddress(), 1000, TIMEOUT);
+        blocking = BlockingMemcake.create(mc);
+        blocking.flush();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mc.close();
+    }
+
+    @Test
+    public void testReadAndWrite() throws Exception {
+        Version v = blocking.set("hello", "world");
+        Value value = blocking.get("hello").get();
+        assertThat(value.getValue()).isEqualTo(bytes("world"));
+        assertThat(value.getVersion()).isEqualTo(v);
+
+        blocking.cas(bytes("hello"), bytes("there"), v);
+        assertThat(blocking.get("hello").get().getValue()).isEqualTo(bytes("there"));
+
+        blocking.delete("hello");
+        assertThat(blocking.get("hello")).isEmpty();
+    }
+
+    @Test
+    public void testFailuresAsFromFutures() throws Exception {
+        blocking.add(bytes("taken"), bytes("1"), 0);
+        assertThatThrownBy(() -> blocking.add(bytes("taken"), bytes("2"), 0))
+            .isInstanceOf(ExecutionException.class)
+            .hasCauseInstanceOf(StatusException.class);
+        assertThatThrownBy(() -> blocking.replace(bytes("missing"), bytes("2"), 0))
+            .isInstanceOf(ExecutionException.class)
+            .hasCauseInstanceOf(StatusException.class);
+    }
+
+    @Test
+    public void testCountersAndMultiget() throws Exception {
+        assertThat(blocking.increment(bytes("counter"), 1, 10, 0).getValue()).isEqualTo(10);
+        assertThat(blocking.increment(bytes("counter"), 5, 10, 0).getValue()).isEqualTo(15);
+        assertThat(blocking.decrement(bytes("counter"), 3, 10, 0).getValue()).isEqualTo(12);
+
+        blocking.set("a", "1");
+        blocking.set("b", "2");
+        Map<Key, Value> found = blocking.getMulti(Arrays.asList(bytes("a"), bytes("b"), bytes("c")));
+        assertThat(found).containsOnlyKeys(Key.of(bytes("a")), Key.of(bytes("b")));
+    }
+
+    @Test
+    public void testTranscoded() throws Exception {
+        blocking.set("number", 42L, Transcoders.longs());
+        assertThat(blocking.get("number", Transcoders.longs())).contains(42L);
+        assertThat(blocking.get("nothing", Transcoders.longs())).isEmpty();
+    }
+
+    @Test
+    public void testManyThreadsShareConnections() throws Exception {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 200; t++) {
+            String prefix = "thread-" + t + "-";
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 50; i++) {
+                        String key = prefix + i;
+                        blocking.set(key, key);
+                        Optional<Value> value = blocking.get(key);
+                        if (!Arrays.equals(value.get().getValue(), bytes(key))) {
+                            throw new AssertionError("wrong value for " + key);
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(failure.get()).isNull();
+        assertThat(mc.getMetrics().getOperation("get").getTotalTime().getCount()).isEqualTo(200 * 50);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.skife.memcake.connection.Key;
+import org.skife.memcake.testing.MemcachedRule;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class FlowTest {
+    private static final Duration TIMEOUT = Duration.ofSeconds(2);
+
+    @ClassRule
+    public static final MemcachedRule memcached = new MemcachedRule();
+
+    private Memcake mc;
+
+    @Before
+    public void setUp() throws Exception {
+        mc = Memcake.create(memcached.getAddress(), 1000, TIMEOUT);
+        mc.flush().execute().get();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mc.close();
+    }
+
+    @Test
+    public void testStreamSetsThenGets() throws Exception {
+        IteratorPublisher<Map.Entry<Key, byte[]>> entries = new IteratorPublisher<>(10_000, (i) ->
+            new AbstractMap.SimpleEntry<>(key(i), bytes("value-" + i)));
+        SetSubscriber sets = mc.streamSets(100);
+        entries.subscribe(sets);
+        assertThat(sets.completion().get(10, TimeUnit.SECONDS)).isEmpty();
+        assertThat(entries.maxOutstanding).isLessThanOrEqualTo(100);
+
+        // every other key was set
+        IteratorPublisher<byte[]> keys = new IteratorPublisher<>(20_000, (i) -> key(i / 2 * (i % 2 == 0 ? 1 : -1)).getBytes());
+        GetProcessor gets = mc.streamGets(200);
+        keys.subscribe(gets);
+        Recorder results = new Recorder(64);
+        gets.subscribe(results);
+        results.done.get(10, TimeUnit.SECONDS);
+
+        assertThat(results.lookups).hasSize(20_000);
+        Set<Key> found = new HashSet<>();
+        for (Lookup lookup : results.lookups) {
+            if (lookup.getValue().isPresent()) {
+                found.add(lookup.getKey());
+            }
+        }
+        assertThat(found).hasSize(10_000).contains(key(0), key(9_999));
+        assertThat(keys.maxOutstanding).isLessThanOrEqualTo(200);
+    }
+
+    @Test
+    public void testStreamedSetsKeepTheLatestValue() throws Exception {
+        try (Memcake pooled = Memcake.create(memcached.getAddress(), 1000, 4, TIMEOUT)) {
+            // every key comes round again in later chunks, which may go out on other connections
+            IteratorPublisher<Map.Entry<Key, byte[]>> entries = new IteratorPublisher<>(10_000, (i) ->
+                new AbstractMap.SimpleEntry<>(key(i % 50), bytes("value-" + i)));
+            SetSubscriber sets = pooled.streamSets(100);
+            entries.subscribe(sets);
+            assertThat(sets.completion().get(10, TimeUnit.SECONDS)).isEmpty();
+
+            for (int i = 0; i < 50; i++) {
+                assertThat(pooled.get(key(i).getBytes()).execute().get().get().getValue())
+                    .isEqualTo(bytes("value-" + (9_950 + i)));
+            }
+        }
+    }
+
+    @Test
+    public void testSlowUpstreamIsNotHeldBack() throws Exception {
+        SetSubscriber sets = mc.streamSets(100);
+        sets.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+            }
+
+            @Override
+            public void cancel() {
+            }
+        });
+        // far fewer than a chunk, and upstream has more to come
+        for (int i = 0; i < 3; i++) {
+            sets.onNext(new AbstractMap.SimpleEntry<>(key(i), bytes("value-" + i)));
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        for (int i = 0; i < 3; i++) {
+            while (!mc.get(key(i).getBytes()).execute().get().isPresent()) {
+                assertThat(System.nanoTime()).isLessThan(deadline);
+                Thread.sleep(1);
+            }
+        }
+        assertThat(sets.completion()).isNotDone();
+    }
+
+    @Test
+    public void testGetsFollowDemand() throws Exception {
+        IteratorPublisher<byte[]> keys = new IteratorPublisher<>(1_000, (i) -> key(i).getBytes());
+        GetProcessor gets = mc.streamGets(100);
+        keys.subscribe(gets);
+        Recorder results = new Recorder(0);
+        gets.subscribe(results);
+
+        results.subscription.request(5);
+        while (results.count() < 5) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(50);
+        assertThat(results.count()).isEqualTo(5);
+        assertThat(keys.delivered).isEqualTo(5);
+
+        results.subscription.cancel();
+        assertThat(keys.cancelled).isTrue();
+    }
+
+    @Test
+    public void testSetsFailOnceClosed() throws Exception {
+        Memcake closed = Memcake.create(memcached.getAddress(), 1000, TIMEOUT);
+        closed.close();
+        IteratorPublisher<Map.Entry<Key, byte[]>> entries = new IteratorPublisher<>(100, (i) ->
+            new AbstractMap.SimpleEntry<>(key(i), bytes("value-" + i)));
+        SetSubscriber sets = closed.streamSets(10);
+        entries.subscribe(sets);
+        assertThatThrownBy(() -> sets.completion().get(1, TimeUnit.SECONDS))
+            .hasCauseInstanceOf(IllegalStateException.class);
+        assertThat(entries.cancelled).isTrue();
+    }
+
+    @Test
+    public void testUpstreamFailure() throws Exception {
+        GetProcessor gets = mc.streamGets(10);
+        Recorder results = new Recorder(10);
+        gets.subscribe(results);
+        gets.onSubscribe(new IteratorPublisher<>(1_000, (i) -> key(i).getBytes()).subscription(gets));
+        gets.onError(new IllegalStateException("boom"));
+        assertThatThrownBy(() -> results.done.get(1, TimeUnit.SECONDS)).hasCauseInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    public void testOneSubscriber() throws Exception {
+        GetProcessor gets = mc.streamGets(10);
+        gets.subscribe(new Recorder(1));
+        Recorder second = new Recorder(1);
+        gets.subscribe(second);
+        assertThatThrownBy(() -> second.done.get(1, TimeUnit.SECONDS)).hasCauseInstanceOf(IllegalStateException.class);
+    }
+
+    private static Key key(int i) {
+        return Key.of(bytes("flow-" + i));
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Publishes {@code count} items as demanded, one at a time, noting the most it was asked
+     * for at once beyond what it had delivered.
+     */
+    private static class IteratorPublisher<T> implements Flow.Publisher<T> {
+        private final int count;
+        private final Function<Integer, T> item;
+        private final AtomicInteger emitting = new AtomicInteger();
+        private long demand = 0;
+        private int next = 0;
+        volatile int delivered = 0;
+        volatile long maxOutstanding = 0;
+        volatile boolean cancelled = false;
+
+        IteratorPublisher(int count, Function<Integer, T> item) {
+            this.count = count;
+            this.item = item;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super T> subscriber) {
+            subscriber.onSubscribe(subscription(subscriber));
+        }
+
+        Flow.Subscription subscription(Flow.Subscriber<? super T> subscriber) {
+            return new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    synchronized (IteratorPublisher.this) {
+                        demand += n;
+                        maxOutstanding = Math.max(maxOutstanding, demand);
+                    }
+                    emit(subscriber);
+                }
+
+                @Override
+                public void cancel() {
+                    cancelled = true;
+                }
+            };
+        }
+
+        private void emit(Flow.Subscriber<? super T> subscriber) {
+            if (emitting.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                while (!cancelled && next < count) {
+                    synchronized (this) {
+                        if (demand == 0) {
+                            break;
+                        }
+                        demand--;
+                    }
+                    subscriber.onNext(item.apply(next++));
+                    delivered++;
+                }
+                if (next == count && !cancelled) {
+                    next++;
+                    subscriber.onComplete();
+                }
+                missed = emitting.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+
+    /**
+     * Records lookups, asking for {@code batch} at a time if positive.
+     */
+    private static class Recorder implements Flow.Subscriber<Lookup> {
+        private final int batch;
+        final List<Lookup> lookups = new ArrayList<>();
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        volatile Flow.Subscription subscription;
+        private int sinceRequest = 0;
+
+        Recorder(int batch) {
+            this.batch = batch;
+        }
+
+        synchronized int count() {
+            return lookups.size();
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (batch > 0) {
+                subscription.request(batch);
+            }
+        }
+
+        @Override
+        public void onNext(Lookup item) {
+            synchronized (this) {
+                lookups.add(item);
+            }
+            if (batch > 0 && ++sinceRequest == batch) {
+                sinceRequest = 0;
+                subscription.request(batch);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            done.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            done.complete(null);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class KetamaTest {
+
+    private static final List<String> KEYS = Arrays.asList("a", "foo", "hello", "memcake", "user:42",
+                                                           "0", "1", "2", "3", "4", "5", "6", "7", "8", "9");
+
+    // expected owners were computed independently from libmemcached's update_continuum()
+    // and dispatch_host() with MEMCACHED_BEHAVIOR_KETAMA_WEIGHTED set
+
+    @Test
+    public void testEquallyWeightedServers() throws Exception {
+        Ketama ring = new Ketama(Arrays.asList(InetSocketAddress.createUnresolved("10.0.1.1", 11211),
+                                               InetSocketAddress.createUnresolved("10.0.1.2", 11211),
+                                               InetSocketAddress.createUnresolved("10.0.1.3", 11211),
+                                               InetSocketAddress.createUnresolved("10.0.1.4", 11211)),
+                                 Arrays.asList(1, 1, 1, 1));
+        assertThat(ring.size()).isEqualTo(4 * Ketama.POINTS_PER_SERVER);
+        assertThat(owners(ring)).containsExactly(2, 2, 1, 0, 3, 2, 2, 3, 2, 3, 0, 2, 3, 2, 1);
+    }
+
+    @Test
+    public void testWeightedServersAndPorts() throws Exception {
+        Ketama ring = new Ketama(Arrays.asList(InetSocketAddress.createUnresolved("cache-a", 11211),
+                                               InetSocketAddress.createUnresolved("cache-b", 11212),
+                                               InetSocketAddress.createUnresolved("cache-c", 11211)),
+                                 Arrays.asList(1, 2, 3));
+        assertThat(ring.size()).isEqualTo(480);
+        assertThat(owners(ring)).containsExactly(2, 2, 1, 2, 1, 1, 2, 1, 0, 1, 0, 2, 2, 2, 2);
+
+        int[] counts = new int[3];
+        for (int i = 0; i < 10000; i++) {
+            counts[ring.serverFor(("key-" + i).getBytes(StandardCharsets.UTF_8))]++;
+        }
+        assertThat(counts).containsExactly(1735, 3271, 4994);
+    }
+
+    @Test
+    public void testSingleServerOwnsEverything() throws Exception {
+        Ketama ring = new Ketama(Collections.singletonList(InetSocketAddress.createUnresolved("localhost", 11211)),
+                                 Collections.singletonList(1));
+        assertThat(owners(ring)).containsOnly(0);
+    }
+
+    @Test
+    public void testRejectsBadWeights() throws Exception {
+        assertThatThrownBy(() -> new Ketama(Collections.singletonList(InetSocketAddress.createUnresolved("a", 1)),
+                                            Collections.singletonList(0)))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static int[] owners(Ketama ring) {
+        return KEYS.stream().mapToInt((k) -> ring.serverFor(k.getBytes(StandardCharsets.UTF_8))).toArray();
+    }
+}
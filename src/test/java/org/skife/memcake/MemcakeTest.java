@@ -21,7 +21,11 @@ import org.junit.Before;
 import org.junit.ClassRule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.skife.memcake.connection.CompletionStrategy;
+import org.skife.memcake.connection.Connection;
 import org.skife.memcake.connection.Counter;
+import org.skife.memcake.connection.Key;
+import org.skife.memcake.connection.Metrics;
 import org.skife.memcake.connection.StatusException;
 import org.skife.memcake.connection.Value;
 import org.skife.memcake.connection.Version;
@@ -29,12 +33,26 @@ import org.skife.memcake.testing.Entry;
 import org.skife.memcake.testing.MemcachedRule;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
@@ -44,6 +62,7 @@ import static org.assertj.core.api.Assertions.assertThatThrownBy;
 public class MemcakeTest {
 
     private static final Duration TIMEOUT = Duration.ofSeconds(1);
+    private static final ScheduledExecutorService cron = Executors.newScheduledThreadPool(1);
 
     @ClassRule
     public static final MemcachedRule memcached = new MemcachedRule();
@@ -498,4 +517,286 @@ public class MemcakeTest {
 
         mk.noop().execute().get();
     }
+
+    @Test
+    public void testConnectionPerServerPool() throws Exception {
+        try (Memcake pooled = Memcake.create(memcached.getAddress(), 1000, 4, TIMEOUT)) {
+            List<CompletableFuture<Version>> sets = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                sets.add(pooled.set("pooled-" + i, String.valueOf(i)).execute());
+            }
+            CompletableFuture.allOf(sets.toArray(new CompletableFuture[sets.size()])).get();
+
+            // quiet commands complete without anything sent after them, whichever connection they went to
+            List<CompletableFuture<Void>> quiets = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                quiets.add(pooled.deleteq("pooled-" + i).execute());
+            }
+            for (CompletableFuture<Void> quiet : quiets) {
+                quiet.get();
+            }
+
+            for (int i = 0; i < 200; i++) {
+                Optional<Value> v = pooled.get("pooled-" + i).execute().get();
+                if (i < 10) {
+                    assertThat(v).isEmpty();
+                }
+                else {
+                    assertThat(v.get().getValue()).isEqualTo(String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCallAfterClose() throws Exception {
+        Memcake mk = Memcake.create(memcached.getAddress(), 1000, 2, TIMEOUT);
+        mk.noop().execute().get();
+        mk.close();
+
+        assertThatThrownBy(() -> mk.noop().execute()).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    public void testGetMulti() throws Exception {
+        mc.set("multi-a", "1").flags(7).execute().get();
+        mc.set("multi-b", "2").execute().get();
+
+        Map<Key, Value> found = mc.getMulti(Arrays.asList("multi-a".getBytes(StandardCharsets.UTF_8),
+                                                          "multi-b".getBytes(StandardCharsets.UTF_8),
+                                                          "multi-c".getBytes(StandardCharsets.UTF_8)))
+                                  .execute()
+                                  .get();
+
+        assertThat(found).containsOnlyKeys(Key.of("multi-a"), Key.of("multi-b"));
+        assertThat(found.get(Key.of("multi-a")).getFlags()).isEqualTo(7);
+        assertThat(found.get(Key.of("multi-b")).getValue()).isEqualTo("2".getBytes(StandardCharsets.UTF_8));
+        assertThat(mc.getMulti(new ArrayList<>()).execute().get()).isEmpty();
+    }
+
+    @Test
+    public void testSetMultiAndDeleteMulti() throws Exception {
+        Map<Key, byte[]> values = new HashMap<>();
+        values.put(Key.of("bulk-a"), "1".getBytes(StandardCharsets.UTF_8));
+        values.put(Key.of("bulk-b"), "2".getBytes(StandardCharsets.UTF_8));
+
+        assertThat(mc.setMulti(values).flags(5).execute().get()).isEmpty();
+        assertThat(mc.get("bulk-b").execute().get().get().getFlags()).isEqualTo(5);
+
+        Map<Key, StatusException> failed = mc.deleteMulti(Arrays.asList("bulk-a".getBytes(StandardCharsets.UTF_8),
+                                                                        "bulk-c".getBytes(StandardCharsets.UTF_8)))
+                                             .execute()
+                                             .get();
+        assertThat(failed).containsOnlyKeys(Key.of("bulk-c"));
+        assertThat(mc.get("bulk-a").execute().get()).isEmpty();
+        assertThat(mc.get("bulk-b").execute().get()).isPresent();
+    }
+
+    @Test
+    public void testNearCache() throws Exception {
+        NearCache cache = NearCache.ofEntries(1000, Duration.ofMinutes(1));
+        try (Memcake cached = Memcake.create(memcached.getAddress(), 1000, TIMEOUT).withNearCache(cache)) {
+            cached.set("near", "1").flags(3).execute().get();
+
+            // the set was cached, so neither get goes to the server
+            assertThat(cached.get("near").execute().get().get().getFlags()).isEqualTo(3);
+            assertThat(cached.get("near").execute().get().get().getValue()).isEqualTo("1".getBytes(StandardCharsets.UTF_8));
+            assertThat(cache.getHits()).isEqualTo(2);
+
+            // writes through the client are seen at once
+            cached.append("near", "2").execute().get();
+            assertThat(cached.get("near").execute().get().get().getValue()).isEqualTo("12".getBytes(StandardCharsets.UTF_8));
+            assertThat(cache.getMisses()).isEqualTo(1);
+            assertThat(cached.get("near").execute().get()).isPresent();
+            assertThat(cache.getHits()).isEqualTo(3);
+
+            cached.delete("near").execute().get();
+            assertThat(cached.get("near").execute().get()).isEmpty();
+
+            cached.set("near", "3").execute().get();
+            cached.flush().execute().get();
+            assertThat(cached.get("near").execute().get()).isEmpty();
+        }
+    }
+
+    @Test
+    public void testNearCacheKeepsItsOwnCopyOfSetValues() throws Exception {
+        NearCache cache = NearCache.ofEntries(1000, Duration.ofMinutes(1));
+        try (Memcake cached = Memcake.create(memcached.getAddress(), 1000, TIMEOUT).withNearCache(cache)) {
+            byte[] buffer = "before".getBytes(StandardCharsets.UTF_8);
+            cached.set("near", buffer).execute().get();
+
+            // the caller reuses its buffer once the set is done
+            Arrays.fill(buffer, (byte) 'x');
+            assertThat(cached.get("near").execute().get().get().getValue()).isEqualTo("before".getBytes(StandardCharsets.UTF_8));
+            assertThat(cache.getHits()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testTranscoders() throws Exception {
+        Transcoder<String> json = Transcoders.compressing(Transcoders.string(), 1024);
+        StringBuilder doc = new StringBuilder("[");
+        for (int i = 0; i < 1000; i++) {
+            doc.append("{\"id\":").append(i).append(",\"name\":\"memcake\"},");
+        }
+        String big = doc.append("{}]").toString();
+
+        mc.set("doc", big, json).execute().get();
+        Value stored = mc.get("doc").execute().get().get();
+        assertThat(stored.getFlags() & Transcoders.COMPRESSED).isNotZero();
+        assertThat(stored.getValue().length).isLessThan(big.length() / 3);
+        assertThat(mc.get("doc").execute(json).get()).contains(big);
+
+        // numbers are text, so the server can count with them
+        mc.set("count", 41L, Transcoders.longs()).execute().get();
+        mc.increment("count", 1).execute().get();
+        assertThat(mc.get("count").execute(Transcoders.longs()).get()).contains(42L);
+
+        assertThat(mc.get("no-such-key").execute(json).get()).isEmpty();
+    }
+
+    @Test
+    public void testCoalescedGets() throws Exception {
+        try (Memcake coalescing = Memcake.create(memcached.getAddress(), 1000, TIMEOUT).withCoalescedGets()) {
+            coalescing.set("hot", "1").execute().get();
+
+            // issued faster than the first can make the round trip, so they pile onto it
+            List<CompletableFuture<Optional<Value>>> gets = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                gets.add(coalescing.get("hot").execute());
+            }
+            for (CompletableFuture<Optional<Value>> get : gets) {
+                assertThat(get.get().get().getValue()).isEqualTo("1".getBytes(StandardCharsets.UTF_8));
+            }
+            assertThat(coalescing.getCoalescedGets()).isGreaterThan(0);
+
+            // a get made after a write completes never joins one from before it
+            CompletableFuture<Optional<Value>> before = coalescing.get("hot").execute();
+            coalescing.set("hot", "2").execute().get();
+            assertThat(coalescing.get("hot").execute().get().get().getValue())
+                .isEqualTo("2".getBytes(StandardCharsets.UTF_8));
+            before.get();
+
+            // cancelling one caller's future leaves the others be
+            CompletableFuture<Optional<Value>> first = coalescing.get("hot").execute();
+            CompletableFuture<Optional<Value>> second = coalescing.get("hot").execute();
+            first.cancel(false);
+            assertThat(second.get()).isPresent();
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        try (Memcake measured = Memcake.create(memcached.getAddress(), 1000, TIMEOUT).withMBean("testMetrics")) {
+            measured.set("metered", "1").execute().get();
+            measured.get("metered").execute().get();
+            measured.get("unmetered").execute().get();
+            measured.getMulti(Arrays.asList("metered".getBytes(StandardCharsets.UTF_8),
+                                            "nope".getBytes(StandardCharsets.UTF_8))).execute().get();
+
+            Metrics metrics = measured.getMetrics();
+            assertThat(metrics.getHits()).isEqualTo(2);
+            assertThat(metrics.getMisses()).isEqualTo(2);
+            assertThat(metrics.getErrors()).isZero();
+            assertThat(metrics.getBytesIn()).isGreaterThan(0);
+            assertThat(metrics.getBytesOut()).isGreaterThan(0);
+            assertThat(metrics.getOperation("set").getTotalTime().getCount()).isEqualTo(1);
+            assertThat(metrics.getOperation("get").getWireTime().getCount()).isEqualTo(2);
+            // a multiget is one batch of quiet gets
+            assertThat(metrics.getOperation("getkq").getWireTime().getCount()).isEqualTo(1);
+            assertThat(metrics.getOperation("get").getTotalTime().getP99Nanos()).isGreaterThan(0);
+            assertThat(metrics.getCompletionTime().getCount()).isGreaterThan(0);
+
+            ObjectName name = new ObjectName("org.skife.memcake:type=Memcake,name=\"testMetrics\"");
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertThat(server.getAttribute(name, "Hits")).isEqualTo(2L);
+            assertThat(((TabularData) server.getAttribute(name, "Operations")).isEmpty()).isFalse();
+            measured.close();
+            assertThat(server.isRegistered(name)).isFalse();
+        }
+    }
+
+    @Test
+    public void testCompletionStrategy() throws Exception {
+        ExecutorService callbacks = Executors.newSingleThreadExecutor((r) -> new Thread(r, "test-callbacks"));
+        try (Memcake handed = Memcake.create(memcached.getAddress(), 1000, TIMEOUT)
+                                     .withCompletionStrategy(CompletionStrategy.batched(callbacks))) {
+            handed.set("handed", "off").execute().get();
+            // hold up the executor so the callback is attached before the get is completed
+            CountDownLatch held = new CountDownLatch(1);
+            callbacks.execute(() -> {
+                try {
+                    held.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            CompletableFuture<String> thread = handed.get("handed")
+                                                     .execute()
+                                                     .thenApply((v) -> Thread.currentThread().getName());
+            held.countDown();
+            assertThat(thread.get()).isEqualTo("test-callbacks");
+        } finally {
+            callbacks.shutdown();
+        }
+    }
+
+    @Test
+    public void testShardsAcrossServers() throws Throwable {
+        MemcachedRule other = new MemcachedRule();
+        other.before();
+        try (Memcake sharded = Memcake.create(new LinkedHashSet<>(Arrays.asList(memcached.getAddress(),
+                                                                                other.getAddress())),
+                                              2,
+                                              TIMEOUT,
+                                              (addr) -> {
+                                                  try {
+                                                      return Connection.open(addr,
+                                                                             1000,
+                                                                             AsynchronousSocketChannel.open(),
+                                                                             cron);
+                                                  } catch (IOException e) {
+                                                      throw new IllegalStateException(e);
+                                                  }
+                                              });
+             Memcake first = Memcake.create(memcached.getAddress(), 1000, TIMEOUT);
+             Memcake second = Memcake.create(other.getAddress(), 1000, TIMEOUT)) {
+            sharded.flush().execute().get();
+
+            for (int i = 0; i < 100; i++) {
+                sharded.set("shard-" + i, String.valueOf(i)).execute().get();
+            }
+
+            int onFirst = 0;
+            for (int i = 0; i < 100; i++) {
+                String key = "shard-" + i;
+                assertThat(sharded.get(key).execute().get()).isPresent();
+                boolean a = first.get(key).execute().get().isPresent();
+                boolean b = second.get(key).execute().get().isPresent();
+                assertThat(a).isNotEqualTo(b);
+                if (a) {
+                    onFirst++;
+                }
+            }
+            assertThat(onFirst).isBetween(1, 99);
+
+            List<byte[]> keys = new ArrayList<>();
+            for (int i = 0; i < 101; i++) {
+                keys.add(("shard-" + i).getBytes(StandardCharsets.UTF_8));
+            }
+            Map<Key, Value> found = sharded.getMulti(keys).execute().get();
+            assertThat(found).hasSize(100);
+            assertThat(found.get(Key.of("shard-42")).getValue()).isEqualTo("42".getBytes(StandardCharsets.UTF_8));
+
+            // keyless commands go to every server
+            sharded.flush().execute().get();
+            for (int i = 0; i < 100; i++) {
+                assertThat(sharded.get("shard-" + i).execute().get()).isEmpty();
+            }
+        }
+        finally {
+            other.after();
+        }
+    }
 }
@@ -0,0 +1,160 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake;
+
+import org.junit.Test;
+import org.skife.memcake.connection.Key;
+import org.skife.memcake.connection.Value;
+import org.skife.memcake.connection.Version;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NearCacheTest {
+
+    private static final Duration LONG = Duration.ofMinutes(5);
+
+    @Test
+    public void testHitsAndMisses() throws Exception {
+        NearCache cache = NearCache.ofEntries(10, LONG);
+        assertThat(cache.get(Key.of("a"))).isNull();
+
+        cache.put(Key.of("a"), value("1"), cache.stamp(), 0);
+        assertThat(cache.get(Key.of("a")).getValue()).isEqualTo(bytes("1"));
+
+        assertThat(cache.getHits()).isEqualTo(1);
+        assertThat(cache.getMisses()).isEqualTo(1);
+        assertThat(cache.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void testEntriesExpire() throws Exception {
+        NearCache cache = NearCache.ofEntries(10, Duration.ofMillis(50));
+        cache.put(Key.of("a"), value("1"), cache.stamp(), 0);
+        assertThat(cache.get(Key.of("a"))).isNotNull();
+
+        Thread.sleep(100);
+        assertThat(cache.get(Key.of("a"))).isNull();
+        assertThat(cache.size()).isZero();
+        assertThat(cache.weightedSize()).isZero();
+    }
+
+    @Test
+    public void testExpiryInThePastIsNotCached() throws Exception {
+        NearCache cache = NearCache.ofEntries(10, LONG);
+        long anHourAgo = System.currentTimeMillis() / 1000 - 3600;
+        cache.put(Key.of("a"), value("1"), cache.stamp(), (int) anHourAgo);
+        assertThat(cache.get(Key.of("a"))).isNull();
+    }
+
+    @Test
+    public void testReadOverlappingInvalidationIsNotCached() throws Exception {
+        NearCache cache = NearCache.ofEntries(10, LONG);
+        long readStarted = cache.stamp();
+        long written = cache.invalidate(Key.of("a"));
+
+        cache.put(Key.of("a"), value("old"), readStarted, 0);
+        assertThat(cache.get(Key.of("a"))).isNull();
+
+        cache.put(Key.of("a"), value("new"), written, 0);
+        assertThat(cache.get(Key.of("a")).getValue()).isEqualTo(bytes("new"));
+
+        cache.invalidateAll();
+        assertThat(cache.get(Key.of("a"))).isNull();
+    }
+
+    @Test
+    public void testFrequentlyReadKeysSurviveAScan() throws Exception {
+        NearCache cache = NearCache.ofEntries(100, LONG);
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 50; i++) {
+                Key key = Key.of("hot" + i);
+                if (cache.get(key) == null) {
+                    cache.put(key, value("hot"), cache.stamp(), 0);
+                }
+            }
+        }
+        for (int i = 0; i < 10_000; i++) {
+            cache.put(Key.of("scan" + i), value("cold"), cache.stamp(), 0);
+        }
+
+        int survivors = 0;
+        for (int i = 0; i < 50; i++) {
+            if (cache.get(Key.of("hot" + i)) != null) {
+                survivors++;
+            }
+        }
+        assertThat(survivors).isGreaterThanOrEqualTo(45);
+        assertThat(cache.size()).isLessThanOrEqualTo(100);
+        assertThat(cache.getEvictions()).isGreaterThan(0);
+    }
+
+    @Test
+    public void testBoundedByBytes() throws Exception {
+        NearCache cache = NearCache.ofBytes(10_000, LONG);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(Key.of("k" + i), Value.of(Version.NONE, 0, new byte[100]), cache.stamp(), 0);
+        }
+        assertThat(cache.weightedSize()).isLessThanOrEqualTo(10_000);
+        assertThat(cache.size()).isGreaterThan(50);
+
+        // too big to ever fit
+        cache.put(Key.of("huge"), Value.of(Version.NONE, 0, new byte[20_000]), cache.stamp(), 0);
+        assertThat(cache.get(Key.of("huge"))).isNull();
+    }
+
+    @Test
+    public void testConcurrentWritesKeepThePolicyInStep() throws Exception {
+        NearCache cache = NearCache.ofEntries(1000, LONG);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> writers = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                writers.add(pool.submit(() -> {
+                    for (int i = 0; i < 20_000; i++) {
+                        Key key = Key.of("k" + (i % 2000));
+                        if (i % 3 == 0) {
+                            cache.invalidate(key);
+                        }
+                        else {
+                            cache.put(key, value("v"), cache.stamp(), 0);
+                        }
+                        cache.get(key);
+                    }
+                }));
+            }
+            for (Future<?> writer : writers) {
+                writer.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertThat(cache.weightedSize()).isEqualTo(cache.size()).isLessThanOrEqualTo(1000);
+    }
+
+    private static Value value(String v) {
+        return Value.of(Version.NONE, 0, bytes(v));
+    }
+
+    private static byte[] bytes(String v) {
+        return v.getBytes(StandardCharsets.UTF_8);
+    }
+}
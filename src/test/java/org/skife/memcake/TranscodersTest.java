@@ -0,0 +1,135 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake;
+
+import org.junit.Test;
+import org.skife.memcake.connection.Value;
+import org.skife.memcake.connection.Version;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TranscodersTest {
+
+    @Test
+    public void testRoundTrips() throws Exception {
+        assertThat(roundTrip(Transcoders.string(), "héllo")).isEqualTo("héllo");
+        assertThat(roundTrip(Transcoders.bytes(), new byte[]{1, 2, 3})).containsExactly(1, 2, 3);
+        assertThat(roundTrip(Transcoders.booleans(), true)).isTrue();
+        assertThat(roundTrip(Transcoders.ints(), Integer.MIN_VALUE)).isEqualTo(Integer.MIN_VALUE);
+        assertThat(roundTrip(Transcoders.longs(), Long.MAX_VALUE)).isEqualTo(Long.MAX_VALUE);
+        assertThat(roundTrip(Transcoders.floats(), 1.5f)).isEqualTo(1.5f);
+        assertThat(roundTrip(Transcoders.doubles(), Math.PI)).isEqualTo(Math.PI);
+        assertThat(roundTrip(Transcoders.serializable(Duration.class), Duration.ofSeconds(3)))
+            .isEqualTo(Duration.ofSeconds(3));
+    }
+
+    @Test
+    public void testNumbersAreDecimalText() throws Exception {
+        Value v = Transcoders.longs().encode(42L);
+        assertThat(v.getValue()).isEqualTo("42".getBytes(StandardCharsets.US_ASCII));
+
+        // counters made by increment have no flags, and may be padded when they shrink
+        assertThat(Transcoders.longs().decode(value(0, "7 "))).isEqualTo(7L);
+    }
+
+    @Test
+    public void testFlagsMustMatch() throws Exception {
+        Value serialized = Transcoders.serializable(String.class).encode("x");
+        assertThatThrownBy(() -> Transcoders.longs().decode(serialized)).isInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(() -> Transcoders.ints().decode(Transcoders.longs().encode(1L)))
+            .isInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(() -> Transcoders.longs().decode(value(0, "abc"))).isInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(() -> Transcoders.booleans().decode(value(0, "yes"))).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    public void testLargeValuesAreCompressed() throws Exception {
+        Transcoder<String> t = Transcoders.compressing(Transcoders.string(), 1024);
+        String json = repeat("{\"name\":\"memcake\",\"tags\":[\"a\",\"b\"]},", 1000);
+
+        Value v = t.encode(json);
+        assertThat(v.getFlags() & Transcoders.COMPRESSED).isNotZero();
+        assertThat(v.getValue().length).isLessThan(json.length() / 5);
+        assertThat(t.decode(v)).isEqualTo(json);
+
+        // transcoders which check their flags won't take deflated bytes for the value
+        assertThatThrownBy(() -> Transcoders.serializable(String.class).decode(v))
+            .isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    public void testSmallOrIncompressibleValuesAreNot() throws Exception {
+        Transcoder<byte[]> t = Transcoders.compressing(Transcoders.bytes(), 1024);
+
+        Value small = t.encode(new byte[100]);
+        assertThat(small.getFlags()).isZero();
+        assertThat(small.getValue()).hasSize(100);
+
+        byte[] noise = new byte[8192];
+        new Random(1).nextBytes(noise);
+        Value random = t.encode(noise);
+        assertThat(random.getFlags()).isZero();
+        assertThat(random.getValue()).isSameAs(noise);
+
+        // values stored before compression was turned on still read fine
+        assertThat(t.decode(value(0, "plain"))).isEqualTo("plain".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testCompressionKeepsInnerFlags() throws Exception {
+        Transcoder<Long> t = Transcoders.compressing(Transcoders.longs(), 0);
+        Value v = t.encode(Long.MAX_VALUE);
+        // nineteen digits don't shrink, so it is stored as the plain transcoder would
+        assertThat(v.getFlags()).isEqualTo(Transcoders.longs().encode(1L).getFlags());
+        assertThat(t.decode(v)).isEqualTo(Long.MAX_VALUE);
+
+        Transcoder<String> s = Transcoders.compressing(Transcoders.serializable(String.class), 0);
+        Value sv = s.encode(repeat("z", 10_000));
+        assertThat(sv.getFlags()).isEqualTo(Transcoders.SERIALIZED | Transcoders.COMPRESSED);
+        assertThat(s.decode(sv)).isEqualTo(repeat("z", 10_000));
+    }
+
+    @Test
+    public void testCorruptCompressedValues() throws Exception {
+        Transcoder<String> t = Transcoders.compressing(Transcoders.string(), 0);
+        Value v = t.encode(repeat("abc", 1000));
+        byte[] truncated = Arrays.copyOf(v.getValue(), v.getValue().length / 2);
+        assertThatThrownBy(() -> t.decode(Value.of(Version.NONE, v.getFlags(), truncated)))
+            .isInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(() -> t.decode(value(Transcoders.COMPRESSED, "not deflated")))
+            .isInstanceOf(IllegalStateException.class);
+    }
+
+    private static <T> T roundTrip(Transcoder<T> t, T value) {
+        return t.decode(t.encode(value));
+    }
+
+    private static Value value(int flags, String value) {
+        return Value.of(Version.NONE, flags, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            b.append(s);
+        }
+        return b.toString();
+    }
+}
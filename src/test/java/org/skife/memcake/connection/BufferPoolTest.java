@@ -0,0 +1,79 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.connection;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BufferPoolTest {
+    @Test
+    public void testReleasedBufferIsReused() throws Exception {
+        BufferPool pool = BufferPool.create(false, 1024 * 1024);
+
+        ByteBuffer first = pool.acquire(100);
+        assertThat(first.position()).isEqualTo(0);
+        assertThat(first.limit()).isEqualTo(100);
+        assertThat(first.capacity()).isEqualTo(128);
+        pool.release(first);
+        assertThat(pool.getPooledBytes()).isEqualTo(128);
+
+        ByteBuffer second = pool.acquire(120);
+        assertThat(second).isSameAs(first);
+        assertThat(second.limit()).isEqualTo(120);
+        assertThat(pool.getHits()).isEqualTo(1);
+        assertThat(pool.getMisses()).isEqualTo(1);
+        assertThat(pool.getPooledBytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void testSizeClassBoundaries() throws Exception {
+        BufferPool pool = BufferPool.create(false, 0);
+        assertThat(pool.acquire(0).capacity()).isEqualTo(BufferPool.MIN_POOLED_SIZE);
+        assertThat(pool.acquire(64).capacity()).isEqualTo(64);
+        assertThat(pool.acquire(65).capacity()).isEqualTo(128);
+        assertThat(pool.acquire(BufferPool.MAX_POOLED_SIZE).capacity()).isEqualTo(BufferPool.MAX_POOLED_SIZE);
+        assertThat(pool.acquire(BufferPool.MAX_POOLED_SIZE + 1).capacity()).isEqualTo(BufferPool.MAX_POOLED_SIZE + 1);
+    }
+
+    @Test
+    public void testCapIsRespected() throws Exception {
+        BufferPool pool = BufferPool.create(false, 256);
+        ByteBuffer a = pool.acquire(256);
+        ByteBuffer b = pool.acquire(256);
+        pool.release(a);
+        pool.release(b);
+
+        assertThat(pool.getPooledBytes()).isEqualTo(256);
+        assertThat(pool.getDiscards()).isEqualTo(1);
+    }
+
+    @Test
+    public void testOversizedBuffersAreNotRetained() throws Exception {
+        BufferPool pool = BufferPool.create(false, Long.MAX_VALUE);
+        pool.release(pool.acquire(BufferPool.MAX_POOLED_SIZE * 2));
+        assertThat(pool.getPooledBytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void testDirectPool() throws Exception {
+        BufferPool pool = BufferPool.create(true, 1024);
+        ByteBuffer buffer = pool.acquire(10);
+        assertThat(buffer.isDirect()).isTrue();
+        pool.release(buffer);
+        assertThat(pool.acquire(10)).isSameAs(buffer);
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.connection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.skife.memcake.testing.MemcachedRule;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CompletionStrategyTest {
+    private static final Duration TIMEOUT = Duration.ofSeconds(2);
+
+    @ClassRule
+    public static final MemcachedRule mc = new MemcachedRule();
+
+    private HashedWheelTimer timer;
+    private ExecutorService callbacks;
+    private Connection c;
+
+    @Before
+    public void setUp() throws Exception {
+        timer = HashedWheelTimer.create();
+        callbacks = Executors.newSingleThreadExecutor((r) -> new Thread(r, "test-callbacks"));
+        c = Connection.open(mc.getAddress(), 1000, AsynchronousTransport.create(), timer).get();
+        c.set(key("present"), 0, 0, new byte[]{1}, Version.NONE, TIMEOUT).get();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        c.close();
+        timer.close();
+        callbacks.shutdownNow();
+    }
+
+    @Test
+    public void testInlineByDefault() throws Exception {
+        assertThat(c.getCompletionStrategy()).isSameAs(CompletionStrategy.inline());
+        assertThat(c.get(key("present"), TIMEOUT).get()).isPresent();
+    }
+
+    @Test
+    public void testSlowCallbackDoesNotHoldUpReading() throws Exception {
+        // the first completion is stuck, as if behind a slow callback
+        ExecutorService pool = Executors.newCachedThreadPool();
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger handedOff = new AtomicInteger();
+        c.setCompletionStrategy(CompletionStrategy.executor((task) -> {
+            // decided as it is handed off, the pool's threads may well start in another order
+            boolean first = handedOff.getAndIncrement() == 0;
+            pool.execute(() -> {
+                if (first) {
+                    await(release);
+                }
+                task.run();
+            });
+        }));
+        try {
+            CompletableFuture<Optional<Value>> stuck = c.get(key("present"), TIMEOUT);
+            // inline, the stuck completion would be blocking the read loop, so this would never finish
+            assertThat(c.get(key("present"), TIMEOUT).get(1, TimeUnit.SECONDS)).isPresent();
+            assertThat(stuck).isNotDone();
+            release.countDown();
+            assertThat(stuck.get(1, TimeUnit.SECONDS)).isPresent();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCompletedOnExecutor() throws Exception {
+        c.setCompletionStrategy(CompletionStrategy.executor(callbacks));
+        CountDownLatch held = hold();
+        CompletableFuture<String> completedOn = c.get(key("present"), TIMEOUT)
+                                                 .thenApply((v) -> Thread.currentThread().getName());
+        held.countDown();
+        assertThat(completedOn.get()).isEqualTo("test-callbacks");
+    }
+
+    @Test
+    public void testBatchedCompletesInOrderWithFewHandOffs() throws Exception {
+        AtomicInteger tasks = new AtomicInteger();
+        c.setCompletionStrategy(CompletionStrategy.batched((task) -> {
+            tasks.incrementAndGet();
+            callbacks.execute(task);
+        }));
+        CountDownLatch held = hold();
+        ConcurrentLinkedQueue<String> order = new ConcurrentLinkedQueue<>();
+        List<CompletableFuture<Optional<Value>>> gets = new ArrayList<>();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            String name = "getq-" + i;
+            CompletableFuture<Optional<Value>> get = c.getq(key("present"), TIMEOUT);
+            get.thenRun(() -> order.add(Thread.currentThread().getName() + " " + name));
+            gets.add(get);
+            expected.add("test-callbacks " + name);
+        }
+        CompletableFuture<Void> noop = c.noop(TIMEOUT);
+        // a future is done before its dependents have run, so wait on the last of them instead
+        CompletableFuture<Void> recorded = noop.thenRun(() -> order.add(Thread.currentThread().getName() + " noop"));
+        expected.add("test-callbacks noop");
+        held.countDown();
+        recorded.get();
+
+        for (CompletableFuture<Optional<Value>> get : gets) {
+            assertThat(get.get()).isPresent();
+        }
+        assertThat(order).containsExactlyElementsOf(expected);
+        // one hand off per read, and how the responses are split across reads is up to the scheduler
+        assertThat(tasks.get()).isBetween(1, expected.size() / 4);
+    }
+
+    @Test
+    public void testRejectedCompletionsRunInline() throws Exception {
+        c.setCompletionStrategy(CompletionStrategy.executor((task) -> {
+            throw new RejectedExecutionException("shut down");
+        }));
+        assertThat(c.get(key("present"), TIMEOUT).get(1, TimeUnit.SECONDS)).isPresent();
+    }
+
+    @Test
+    public void testFailuresHandedOff() throws Exception {
+        c.setCompletionStrategy(CompletionStrategy.executor(callbacks));
+        CountDownLatch held = hold();
+        // not a number
+        CompletableFuture<String> failedOn = c.increment(key("present"), 1, 0, 0, Version.NONE, TIMEOUT)
+                                              .handle((v, e) -> e == null ? null : Thread.currentThread().getName());
+        held.countDown();
+        assertThat(failedOn.get()).isEqualTo("test-callbacks");
+    }
+
+    @Test
+    public void testCompletionTimeRecorded() throws Exception {
+        c.get(key("present"), TIMEOUT).get();
+        c.get(key("absent"), TIMEOUT).get();
+        // a response's completion time is recorded after its future is completed, so is
+        // certainly recorded by the time the next response is
+        c.noop(TIMEOUT).get();
+        // the set in setUp, and the two gets, maybe the noop
+        assertThat(c.getMetrics().getCompletionTime().getCount()).isBetween(3L, 4L);
+    }
+
+    /**
+     * Hold up the callbacks executor, so callbacks are attached before anything is completed
+     * on it, until the latch is counted down.
+     */
+    private CountDownLatch hold() {
+        CountDownLatch held = new CountDownLatch(1);
+        callbacks.execute(() -> await(held));
+        return held;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static byte[] key(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+}
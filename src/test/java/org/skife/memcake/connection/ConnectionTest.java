@@ -26,21 +26,34 @@ import org.junit.ClassRule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.skife.memcake.testing.ByteArrayGen;
+import org.skife.memcake.testing.EmbeddedMemcached;
 import org.skife.memcake.testing.Entry;
 import org.skife.memcake.testing.MemcachedRule;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
@@ -73,6 +86,26 @@ public class ConnectionTest {
         c.close();
     }
 
+    @Test
+    public void timeoutsAreCancelledWhenResponsesArrive() throws Exception {
+        try (HashedWheelTimer timer = HashedWheelTimer.create();
+             Connection wc = Connection.open(mc.getAddress(),
+                                             1000,
+                                             AsynchronousSocketChannel.open(),
+                                             timer).get()) {
+            List<CompletableFuture<Void>> quiets = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                quiets.add(wc.setq(("k" + i).getBytes(StandardCharsets.UTF_8), 0, 0, new byte[]{1}, Version.NONE, TIMEOUT));
+            }
+            wc.noop(TIMEOUT).get();
+            for (CompletableFuture<Void> q : quiets) {
+                q.get();
+            }
+            assertThat(wc.get("k1".getBytes(StandardCharsets.UTF_8), TIMEOUT).get()).isPresent();
+            assertThat(timer.getPendingTimeouts()).isZero();
+        }
+    }
+
     @Property
     public void setThenGetValue(Entry entry) throws Exception {
         CompletableFuture<Version> sf = c.set(entry.key(), 0, 0, entry.value(), Version.NONE, TIMEOUT);
@@ -199,9 +232,288 @@ public class ConnectionTest {
          .get();
 
         assertThat(results).containsOnlyKeys(1, 3, 5);
-        assertThat(c.scoreboard).isEmpty();
-        assertThat(c.queuedQuiets).isEmpty();
-        assertThat(c.quietProxies).isEmpty();
+        assertThat(c.inFlight.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void getMultiReturnsOnlyHits() throws Exception {
+        List<Key> keys = new ArrayList<>();
+        for (int i = 0; i < 1500; i++) {
+            Key key = Key.of("multi" + i);
+            keys.add(key);
+            if (i % 3 == 0) {
+                c.setq(key.getBytes(), i, 0, key.getBytes(), Version.NONE, TIMEOUT);
+            }
+        }
+        // a quiet miss ahead of the batch is settled by the batch's noop
+        CompletableFuture<Optional<Value>> miss = c.getq("nope".getBytes(StandardCharsets.UTF_8), TIMEOUT);
+
+        Map<Key, Value> found = c.getMulti(keys, TIMEOUT).get();
+
+        assertThat(miss.isDone()).isTrue();
+        assertThat(found).hasSize(500);
+        for (int i = 0; i < 1500; i += 3) {
+            Value v = found.get(Key.of("multi" + i));
+            assertThat(v.getFlags()).isEqualTo(i);
+            assertThat(v.getValue()).isEqualTo(("multi" + i).getBytes(StandardCharsets.UTF_8));
+        }
+        assertThat(c.inFlight.isEmpty()).isTrue();
+        assertThat(c.batches).isEmpty();
+
+        // and the connection carries on as normal behind it
+        assertThat(c.get(keys.get(3).getBytes(), TIMEOUT).get()).isPresent();
+        assertThat(c.getMulti(Collections.emptyList(), TIMEOUT).get()).isEmpty();
+    }
+
+    @Test
+    public void setMultiAndDeleteMultiReportOnlyFailures() throws Exception {
+        Map<Key, byte[]> values = new LinkedHashMap<>();
+        for (int i = 0; i < 2000; i++) {
+            values.put(Key.of("bulk" + i), ("value" + i).getBytes(StandardCharsets.UTF_8));
+        }
+
+        assertThat(c.setMulti(values, 3, 0, TIMEOUT).get()).isEmpty();
+
+        Value v = c.get(Key.of("bulk1999").getBytes(), TIMEOUT).get().get();
+        assertThat(v.getFlags()).isEqualTo(3);
+        assertThat(v.getValue()).isEqualTo("value1999".getBytes(StandardCharsets.UTF_8));
+
+        List<Key> keys = new ArrayList<>(values.keySet());
+        keys.add(Key.of("never-set"));
+        Map<Key, StatusException> missing = c.deleteMulti(keys, TIMEOUT).get();
+        assertThat(missing).containsOnlyKeys(Key.of("never-set"));
+        assertThat(missing.get(Key.of("never-set")).getStatus()).isEqualTo((char) 1);
+        assertThat(missing.get(Key.of("never-set")).getMessage()).isEqualTo("Not found");
+        assertThat(c.get(Key.of("bulk0").getBytes(), TIMEOUT).get()).isEmpty();
+        assertThat(c.batches).isEmpty();
+    }
+
+    @Test
+    public void pooledValuesAreNotCopiedIntoArrays() throws Exception {
+        BufferPool pool = BufferPool.create(false, 16 * 1024 * 1024);
+        try (Connection pc = Connection.open(mc.getAddress(),
+                                             1000,
+                                             AsynchronousSocketChannel.open(),
+                                             cron,
+                                             pool).get()) {
+            byte[] small = "small".getBytes(StandardCharsets.UTF_8);
+            byte[] large = new byte[200 * 1024];
+            for (int i = 0; i < large.length; i++) {
+                large[i] = (byte) (i * 31);
+            }
+            pc.set(small, 1, 0, small, Version.NONE, TIMEOUT).get();
+            pc.set("large".getBytes(StandardCharsets.UTF_8), 2, 0, large, Version.NONE, TIMEOUT).get();
+
+            // pipelined, so the responses behind the large one share its receive buffer
+            List<CompletableFuture<Optional<PooledValue>>> gets = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                gets.add(pc.getPooled("large".getBytes(StandardCharsets.UTF_8), TIMEOUT));
+                gets.add(pc.getPooled(small, TIMEOUT));
+            }
+            CompletableFuture<Optional<Value>> plain = pc.get(small, TIMEOUT);
+            CompletableFuture<Optional<PooledValue>> missing = pc.getPooled("missing".getBytes(StandardCharsets.UTF_8),
+                                                                            TIMEOUT);
+
+            for (int i = 0; i < gets.size(); i++) {
+                try (PooledValue v = gets.get(i).get().get()) {
+                    ByteBuffer buffer = v.getBuffer();
+                    assertThat(buffer.isReadOnly()).isTrue();
+                    byte[] bytes = new byte[buffer.remaining()];
+                    buffer.get(bytes);
+                    assertThat(bytes).isEqualTo(i % 2 == 0 ? large : small);
+                    assertThat(v.getFlags()).isEqualTo(i % 2 == 0 ? 2 : 1);
+                }
+            }
+            assertThat(plain.get().get().getValue()).isEqualTo(small);
+            assertThat(missing.get()).isEmpty();
+
+            PooledValue released = pc.getPooled(small, TIMEOUT).get().get();
+            released.release();
+            released.release();
+            assertThatThrownBy(released::getBuffer).isInstanceOf(IllegalStateException.class);
+        }
+    }
+
+    @Test
+    public void streamLargeValueToChannel() throws Exception {
+        byte[] large = new byte[3 * 1024 * 1024 + 17];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) (i * 7);
+        }
+        byte[] key = "streamed".getBytes(StandardCharsets.UTF_8);
+        c.set(key, 9, 0, large, Version.NONE, TIMEOUT).get();
+
+        Path file = Files.createTempFile("memcake", ".bin");
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            CompletableFuture<Optional<StreamedValue>> streamed = c.streamTo(key, out, TIMEOUT);
+            CompletableFuture<Optional<StreamedValue>> missing = c.streamTo("nope".getBytes(StandardCharsets.UTF_8),
+                                                                            out,
+                                                                            TIMEOUT);
+            CompletableFuture<Version> behind = c.set("behind".getBytes(StandardCharsets.UTF_8),
+                                                      0, 0, key, Version.NONE, TIMEOUT);
+
+            StreamedValue v = streamed.get().get();
+            assertThat(v.getLength()).isEqualTo(large.length);
+            assertThat(v.getFlags()).isEqualTo(9);
+            assertThat(missing.get()).isEmpty();
+            assertThat(behind.get()).isNotNull();
+            assertThat(Files.readAllBytes(file)).isEqualTo(large);
+        }
+        finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void failingStreamSinkOnlyFailsItsOwnRequest() throws Exception {
+        byte[] key = "streamed".getBytes(StandardCharsets.UTF_8);
+        c.set(key, 0, 0, new byte[100 * 1024], Version.NONE, TIMEOUT).get();
+
+        WritableByteChannel broken = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                throw new IOException("disk full");
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        CompletableFuture<Optional<StreamedValue>> streamed = c.streamTo(key, broken, TIMEOUT);
+        CompletableFuture<Optional<Value>> after = c.get(key, TIMEOUT);
+
+        assertThatThrownBy(streamed::get).hasCauseInstanceOf(IOException.class);
+        assertThat(after.get().get().getValue()).hasSize(100 * 1024);
+    }
+
+    @Test
+    public void throwingStreamSinkOnlyFailsItsOwnRequest() throws Exception {
+        byte[] key = "streamed".getBytes(StandardCharsets.UTF_8);
+        c.set(key, 0, 0, new byte[100 * 1024], Version.NONE, TIMEOUT).get();
+
+        WritableByteChannel readOnly = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                throw new NonWritableChannelException();
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        CompletableFuture<Optional<StreamedValue>> streamed = c.streamTo(key, readOnly, TIMEOUT);
+        CompletableFuture<Optional<Value>> after = c.get(key, TIMEOUT);
+
+        assertThatThrownBy(streamed::get).hasCauseInstanceOf(NonWritableChannelException.class);
+        assertThat(after.get().get().getValue()).hasSize(100 * 1024);
+    }
+
+    @Test
+    public void pipelineSpanningSeveralWriteBatches() throws Exception {
+        // enough bytes that the write loop has to split this across gathering writes
+        int count = (Connection.MAX_BATCH_BYTES / 1024) + 64;
+        List<CompletableFuture<Void>> sets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] value = new byte[1024];
+            value[0] = (byte) i;
+            sets.add(c.setq(("k" + i).getBytes(StandardCharsets.UTF_8), 0, 0, value, Version.NONE, TIMEOUT));
+        }
+        c.noop(TIMEOUT).get();
+        for (CompletableFuture<Void> set : sets) {
+            assertThat(set).isDone();
+        }
+
+        List<CompletableFuture<Optional<Value>>> gets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            gets.add(c.get(("k" + i).getBytes(StandardCharsets.UTF_8), TIMEOUT));
+        }
+        for (int i = 0; i < count; i++) {
+            assertThat(gets.get(i).get().get().getValue()[0]).isEqualTo((byte) i);
+        }
+        assertThat(c.inFlight.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void responsesLargerThanReadBuffer() throws Exception {
+        byte[] big = new byte[Connection.MAX_READ_BUFFER * 2 + 17];
+        for (int i = 0; i < big.length; i++) {
+            big[i] = (byte) i;
+        }
+        byte[] key = "big".getBytes(StandardCharsets.UTF_8);
+        byte[] small = "small".getBytes(StandardCharsets.UTF_8);
+        c.set(key, 0, 0, big, Version.NONE, TIMEOUT).get();
+        c.set(small, 0, 0, small, Version.NONE, TIMEOUT).get();
+
+        // interleave so small responses share reads with the tail and head of big ones
+        List<CompletableFuture<Optional<Value>>> gets = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            gets.add(c.get(small, TIMEOUT));
+            gets.add(c.get(key, TIMEOUT));
+        }
+        for (int i = 0; i < gets.size(); i++) {
+            byte[] expected = i % 2 == 0 ? small : big;
+            assertThat(gets.get(i).get().get().getValue()).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    public void directBufferPoolRoundTrip() throws Exception {
+        BufferPool pool = BufferPool.create(true, 1024 * 1024);
+        try (Connection dc = Connection.open(mc.getAddress(),
+                                             1000,
+                                             AsynchronousSocketChannel.open(),
+                                             cron,
+                                             pool).get()) {
+            byte[] key = "direct".getBytes(StandardCharsets.UTF_8);
+            for (int i = 0; i < 10; i++) {
+                byte[] value = new byte[]{(byte) i, 1, 2, 3};
+                dc.set(key, 0, 0, value, Version.NONE, TIMEOUT).get();
+                assertThat(dc.get(key, TIMEOUT).get().get().getValue()).isEqualTo(value);
+            }
+            assertThat(dc.get("missing".getBytes(StandardCharsets.UTF_8), TIMEOUT).get()).isEmpty();
+        }
+        assertThat(pool.getHits()).isGreaterThan(0);
+    }
+
+    @Test
+    public void largeValuesAreNotCopiedIntoThePool() throws Exception {
+        BufferPool pool = BufferPool.create(false, 16 * 1024 * 1024);
+        try (Connection dc = Connection.open(mc.getAddress(),
+                                             1000,
+                                             AsynchronousSocketChannel.open(),
+                                             cron,
+                                             pool).get()) {
+            byte[] key = "wrapped".getBytes(StandardCharsets.UTF_8);
+            // sized to look exactly like a pooled buffer if it were ever released
+            byte[] value = new byte[64 * 1024];
+            for (int i = 0; i < value.length; i++) {
+                value[i] = (byte) i;
+            }
+            byte[] expected = value.clone();
+
+            List<CompletableFuture<Void>> sets = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                sets.add(dc.setq(key, 0, 0, value, Version.NONE, TIMEOUT));
+            }
+            dc.noop(TIMEOUT).get();
+            for (CompletableFuture<Void> set : sets) {
+                set.get();
+            }
+
+            assertThat(value).isEqualTo(expected);
+            assertThat(dc.get(key, TIMEOUT).get().get().getValue()).isEqualTo(expected);
+        }
+        assertThat(pool.getPooledBytes()).isLessThan(64 * 1024);
     }
 
     @Property
@@ -282,6 +594,16 @@ public class ConnectionTest {
         assertThat(set.get(1, TimeUnit.MILLISECONDS)).isEmpty();
     }
 
+    @Test
+    public void testAnchoredQuietsCompleteOnTheirOwn() throws Exception {
+        c.setAnchorQuiets(true);
+        CompletableFuture<Optional<Value>> miss = c.getq("missing".getBytes(StandardCharsets.UTF_8), TIMEOUT);
+        CompletableFuture<Void> deleted = c.deleteq("missing".getBytes(StandardCharsets.UTF_8), Version.NONE, TIMEOUT);
+
+        assertThat(miss.get()).isEmpty();
+        assertThatThrownBy(deleted::get).hasCauseInstanceOf(StatusException.class);
+    }
+
     @Test
     public void testVersion() throws Exception {
         String version = c.version(TIMEOUT).get();
@@ -428,6 +750,24 @@ public class ConnectionTest {
         assertThatThrownBy(noop::get).hasCauseInstanceOf(Exception.class);
     }
 
+    @Test
+    public void failureListenersAddedAfterFailureStillRun() throws Throwable {
+        MemcachedRule doomed = new MemcachedRule();
+        doomed.before();
+        Connection dc = Connection.open(doomed.getAddress(),
+                                        1000,
+                                        AsynchronousSocketChannel.open(),
+                                        cron).get();
+        CountDownLatch before = new CountDownLatch(1);
+        dc.addNetworkFailureListener(before::countDown);
+        doomed.stop();
+        assertThat(before.await(5, TimeUnit.SECONDS)).isTrue();
+
+        CountDownLatch after = new CountDownLatch(1);
+        dc.addNetworkFailureListener(after::countDown);
+        assertThat(after.getCount()).isZero();
+    }
+
     @Test
     public void testFlushQ() throws Exception {
         c.set(new byte[]{1}, 0, 0, new byte[]{1}, Version.NONE, TIMEOUT);
@@ -458,21 +798,97 @@ public class ConnectionTest {
         assertThat(v.getValue()).isEqualTo(Bytes.concat(additional, initial));
     }
 
-    /**
-     * Sadly this test may flake as it relies on memcached to NOT respond faster than the local
-     * process executes. We need a good mock memcached for testing :-)
-     */
+    @Test
+    public void testMaxRequestsInFlightIsBounded() throws Exception {
+        try (HashedWheelTimer timer = HashedWheelTimer.create();
+             AsynchronousSocketChannel channel = AsynchronousSocketChannel.open()) {
+            assertThatThrownBy(() -> Connection.open(mc.getAddress(),
+                                                     Connection.MAX_REQUESTS_IN_FLIGHT + 1,
+                                                     channel,
+                                                     timer))
+                .isInstanceOf(IllegalArgumentException.class);
+        }
+    }
+
     @Test
     public void testMaxRequestsInFlight() throws Exception {
-        Connection c = Connection.open(mc.getAddress(),
-                                       1,
-                                       AsynchronousSocketChannel.open(),
-                                       cron).get();
-        c.noop(TIMEOUT);
-        c.noop(TIMEOUT);
-        c.noop(TIMEOUT);
-
-        CompletableFuture<Void> f2 = c.noop(TIMEOUT);
-        assertThatThrownBy(f2::get).hasCauseInstanceOf(IllegalStateException.class);
+        // responses are held back so the first noop is certain to still be in flight
+        try (EmbeddedMemcached slow = EmbeddedMemcached.start().withLatency(Duration.ofMillis(500));
+             Connection c = Connection.open(slow.getAddress(),
+                                            1,
+                                            AsynchronousSocketChannel.open(),
+                                            cron).get()) {
+            CompletableFuture<Void> first = c.noop(TIMEOUT);
+            CompletableFuture<Void> f2 = c.noop(TIMEOUT);
+            assertThatThrownBy(f2::get).hasCauseInstanceOf(IllegalStateException.class);
+            assertThat(first.isDone()).isFalse();
+            first.get();
+        }
+    }
+
+    @Test
+    public void admissionQueueAbsorbsBursts() throws Exception {
+        try (HashedWheelTimer timer = HashedWheelTimer.create();
+             Connection ac = Connection.open(mc.getAddress(),
+                                             2,
+                                             1000,
+                                             AsynchronousSocketChannel.open(),
+                                             timer,
+                                             BufferPool.create(false, 1024 * 1024)).get()) {
+            List<CompletableFuture<Version>> sets = new ArrayList<>();
+            for (int i = 0; i < 500; i++) {
+                sets.add(ac.set(("burst" + i).getBytes(StandardCharsets.UTF_8), 0, 0, new byte[]{1}, Version.NONE, TIMEOUT));
+            }
+            for (CompletableFuture<Version> set : sets) {
+                assertThat(set.get()).isNotNull();
+            }
+            assertThat(ac.getRequestsWaiting()).isZero();
+            assertThat(ac.getRequestsInFlight()).isZero();
+        }
+    }
+
+    @Test
+    public void admissionQueueIsBounded() throws Exception {
+        try (HashedWheelTimer timer = HashedWheelTimer.create();
+             Connection ac = Connection.open(mc.getAddress(),
+                                             1,
+                                             1,
+                                             AsynchronousSocketChannel.open(),
+                                             timer,
+                                             BufferPool.create(false, 1024 * 1024)).get()) {
+            // a quiet miss holds the only permit until it times out
+            CompletableFuture<Optional<Value>> miss = ac.getq("missing".getBytes(StandardCharsets.UTF_8),
+                                                              Duration.ofMillis(200));
+            CompletableFuture<Void> waiter = ac.noop(TIMEOUT);
+            CompletableFuture<Void> rejected = ac.noop(TIMEOUT);
+
+            assertThat(ac.getRequestsWaiting()).isEqualTo(1);
+            assertThatThrownBy(rejected::get).hasCauseInstanceOf(IllegalStateException.class);
+
+            waiter.get();
+            assertThatThrownBy(miss::get).hasCauseInstanceOf(TimeoutException.class);
+        }
+    }
+
+    @Test
+    public void waitingCountsAgainstTimeout() throws Exception {
+        try (HashedWheelTimer timer = HashedWheelTimer.create();
+             Connection ac = Connection.open(mc.getAddress(),
+                                             1,
+                                             10,
+                                             AsynchronousSocketChannel.open(),
+                                             timer,
+                                             BufferPool.create(false, 1024 * 1024)).get()) {
+            CompletableFuture<Optional<Value>> miss = ac.getq("missing".getBytes(StandardCharsets.UTF_8), TIMEOUT);
+            CompletableFuture<Void> waiter = ac.noop(Duration.ofMillis(100));
+
+            assertThatThrownBy(waiter::get).hasCauseInstanceOf(TimeoutException.class);
+            assertThat(ac.getRequestsWaiting()).isZero();
+
+            // the permit is still usable once the quiet command is flushed out
+            assertThat(miss.isDone()).isFalse();
+            assertThatThrownBy(miss::get).hasCauseInstanceOf(TimeoutException.class);
+            ac.noop(TIMEOUT).get();
+        }
     }
 }
@@ -0,0 +1,102 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.connection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class HashedWheelTimerTest {
+
+    private HashedWheelTimer timer;
+
+    @Before
+    public void setUp() throws Exception {
+        // a small wheel so that the longer timeouts need several laps
+        timer = HashedWheelTimer.create(Duration.ofMillis(5), 8);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        timer.close();
+    }
+
+    @Test
+    public void testTimeoutFires() throws Exception {
+        CountDownLatch fired = new CountDownLatch(2);
+        long start = System.nanoTime();
+        timer.schedule(fired::countDown, TimeUnit.MILLISECONDS.toNanos(20));
+        timer.schedule(fired::countDown, TimeUnit.MILLISECONDS.toNanos(150));
+
+        assertThat(fired.await(2, TimeUnit.SECONDS)).isTrue();
+        assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(150));
+        assertThat(timer.getPendingTimeouts()).isZero();
+    }
+
+    @Test
+    public void testCancelledTimeoutDoesNotFire() throws Exception {
+        AtomicBoolean cancelledFired = new AtomicBoolean();
+        CountDownLatch later = new CountDownLatch(1);
+        TimeoutScheduler.Timeout t = timer.schedule(() -> cancelledFired.set(true),
+                                                    TimeUnit.MILLISECONDS.toNanos(20));
+        timer.schedule(later::countDown, TimeUnit.MILLISECONDS.toNanos(60));
+        assertThat(timer.getPendingTimeouts()).isEqualTo(2);
+
+        t.cancel();
+        t.cancel();
+        assertThat(timer.getPendingTimeouts()).isEqualTo(1);
+
+        assertThat(later.await(2, TimeUnit.SECONDS)).isTrue();
+        assertThat(cancelledFired.get()).isFalse();
+        assertThat(timer.getPendingTimeouts()).isZero();
+    }
+
+    @Test
+    public void testFailingTaskDoesNotStopTimer() throws Exception {
+        CountDownLatch fired = new CountDownLatch(1);
+        timer.schedule(() -> {
+            throw new IllegalStateException("boom");
+        }, 0);
+        timer.schedule(fired::countDown, TimeUnit.MILLISECONDS.toNanos(20));
+        assertThat(fired.await(2, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    public void testCloseFiresPendingTimeouts() throws Exception {
+        CountDownLatch fired = new CountDownLatch(2);
+        AtomicBoolean cancelledFired = new AtomicBoolean();
+        timer.schedule(fired::countDown, TimeUnit.MILLISECONDS.toNanos(20));
+        timer.schedule(fired::countDown, TimeUnit.HOURS.toNanos(1));
+        timer.schedule(() -> cancelledFired.set(true), TimeUnit.HOURS.toNanos(1)).cancel();
+
+        timer.close();
+        assertThat(fired.await(2, TimeUnit.SECONDS)).isTrue();
+        assertThat(cancelledFired.get()).isFalse();
+        assertThat(timer.getPendingTimeouts()).isZero();
+    }
+
+    @Test
+    public void testScheduleAfterClose() throws Exception {
+        timer.close();
+        assertThatThrownBy(() -> timer.schedule(() -> {}, 0)).isInstanceOf(IllegalStateException.class);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.connection;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class InFlightTableTest {
+
+    @Test
+    public void testCapacityIsPowerOfTwoWithHeadroom() throws Exception {
+        assertThat(new InFlightTable(1).capacity()).isEqualTo(InFlightTable.MIN_CAPACITY);
+        assertThat(new InFlightTable(1000).capacity()).isEqualTo(2048);
+        assertThat(new InFlightTable(Integer.MAX_VALUE).capacity()).isEqualTo(InFlightTable.MAX_CAPACITY);
+    }
+
+    @Test
+    public void testAddGetRemove() throws Exception {
+        InFlightTable table = new InFlightTable(10);
+        Responder r = responder();
+        int opaque = table.add(Integer.MIN_VALUE, r);
+
+        assertThat(opaque).isEqualTo(Integer.MIN_VALUE);
+        assertThat(table.get(opaque)).isSameAs(r);
+        assertThat(table.isEmpty()).isFalse();
+
+        assertThat(table.remove(r)).isTrue();
+        assertThat(table.remove(r)).isFalse();
+        assertThat(table.get(opaque)).isNull();
+        assertThat(table.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void testSkipsSlotStillHeldByOlderRequest() throws Exception {
+        InFlightTable table = new InFlightTable(1);
+        int capacity = table.capacity();
+        Responder slow = responder();
+        table.add(0, slow);
+
+        // a full lap later the slot is still busy, so the next free opaque is used instead
+        Responder next = responder();
+        assertThat(table.add(capacity, next)).isEqualTo(capacity + 1);
+
+        // a late response for an opaque which now maps onto someone else's slot is ignored
+        assertThat(table.get(1)).isNull();
+        assertThat(table.remove(1)).isNull();
+        assertThat(table.get(capacity + 1)).isSameAs(next);
+        assertThat(table.get(0)).isSameAs(slow);
+    }
+
+    @Test
+    public void testFullTable() throws Exception {
+        InFlightTable table = new InFlightTable(1);
+        for (int i = 0; i < table.capacity(); i++) {
+            table.add(i, responder());
+        }
+        assertThatThrownBy(() -> table.add(table.capacity(), responder())).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    public void testDrain() throws Exception {
+        InFlightTable table = new InFlightTable(10);
+        for (int i = 0; i < 5; i++) {
+            table.add(i, responder());
+        }
+        List<Responder> drained = new ArrayList<>();
+        table.drain(drained::add);
+        assertThat(drained).hasSize(5);
+        assertThat(table.isEmpty()).isTrue();
+    }
+
+    private static Responder responder() {
+        return new Responder((e) -> {
+        }, (r) -> {
+        });
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.connection;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketsCoverTheirUpperBounds() throws Exception {
+        long previous = -1;
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            long upper = LatencyHistogram.upperBound(i);
+            assertThat(upper).isGreaterThan(previous);
+            assertThat(LatencyHistogram.bucket(upper)).isEqualTo(i);
+            assertThat(LatencyHistogram.bucket(previous + 1)).isEqualTo(i);
+            previous = upper;
+        }
+        assertThat(LatencyHistogram.bucket(Long.MAX_VALUE)).isEqualTo(LatencyHistogram.BUCKETS - 1);
+    }
+
+    @Test
+    public void testBucketsAreWithinAnEighth() throws Exception {
+        for (long v = 1; v < 10_000_000_000L; v = v * 3 + 1) {
+            long upper = LatencyHistogram.upperBound(LatencyHistogram.bucket(v));
+            assertThat(upper).isGreaterThanOrEqualTo(v);
+            assertThat((double) (upper - v) / v).isLessThanOrEqualTo(0.125);
+        }
+    }
+
+    @Test
+    public void testPercentiles() throws Exception {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            h.record(i * 1000L);
+        }
+        Latency l = h.snapshot();
+        assertThat(l.getCount()).isEqualTo(1000);
+        assertThat(l.getMeanNanos()).isEqualTo(500_500);
+        assertThat(l.getMaxNanos()).isEqualTo(1_000_000);
+        assertThat(l.getP50Nanos()).isBetween(500_000L, 562_500L);
+        assertThat(l.getP99Nanos()).isBetween(990_000L, 1_000_000L);
+        assertThat(l.getP999Nanos()).isEqualTo(1_000_000L);
+        assertThat(l.getPercentileNanos(0)).isBetween(1000L, 1125L);
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        Latency l = new LatencyHistogram().snapshot();
+        assertThat(l.getCount()).isZero();
+        assertThat(l.getMeanNanos()).isZero();
+        assertThat(l.getP99Nanos()).isZero();
+    }
+
+    @Test
+    public void testNegativeIsRecordedAsZero() throws Exception {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(-5);
+        assertThat(h.snapshot().getMaxNanos()).isZero();
+        assertThat(h.snapshot().getCount()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.connection;
+
+import org.junit.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ResponseFutureTest {
+
+    @Test
+    public void testGetWokenByCompletion() throws Exception {
+        ResponseFuture<String> f = new ResponseFuture<>();
+        completeSoon(() -> f.complete("done"));
+        assertThat(f.get()).isEqualTo("done");
+    }
+
+    @Test
+    public void testGetWokenByFailure() throws Exception {
+        ResponseFuture<String> f = new ResponseFuture<>();
+        completeSoon(() -> f.completeExceptionally(new IllegalStateException("nope")));
+        assertThatThrownBy(f::get).isInstanceOf(ExecutionException.class)
+                                  .hasCauseInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    public void testJoinWokenByCancel() throws Exception {
+        ResponseFuture<String> f = new ResponseFuture<>();
+        completeSoon(() -> f.cancel(false));
+        assertThatThrownBy(f::join).isInstanceOf(CancellationException.class);
+    }
+
+    @Test
+    public void testJoinKeepsInterrupt() throws Exception {
+        ResponseFuture<String> f = new ResponseFuture<>();
+        Thread.currentThread().interrupt();
+        completeSoon(() -> f.completeExceptionally(new IllegalStateException("nope")));
+        assertThatThrownBy(f::join).isInstanceOf(CompletionException.class);
+        assertThat(Thread.interrupted()).isTrue();
+    }
+
+    @Test
+    public void testGetTimesOut() throws Exception {
+        ResponseFuture<String> f = new ResponseFuture<>();
+        assertThatThrownBy(() -> f.get(10, TimeUnit.MILLISECONDS)).isInstanceOf(TimeoutException.class);
+        f.complete("late");
+        assertThat(f.get(10, TimeUnit.MILLISECONDS)).isEqualTo("late");
+    }
+
+    @Test
+    public void testGetInterrupted() throws Exception {
+        ResponseFuture<String> f = new ResponseFuture<>();
+        Thread.currentThread().interrupt();
+        assertThatThrownBy(f::get).isInstanceOf(InterruptedException.class);
+        assertThat(Thread.interrupted()).isFalse();
+    }
+
+    @Test
+    public void testSeveralWaiters() throws Exception {
+        ResponseFuture<String> f = new ResponseFuture<>();
+        CountDownLatch done = new CountDownLatch(4);
+        AtomicReference<Object> seen = new AtomicReference<>();
+        for (int i = 0; i < 4; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    seen.compareAndSet(null, f.get());
+                } catch (Exception e) {
+                    seen.set(e);
+                }
+                done.countDown();
+            });
+            t.start();
+        }
+        Thread.sleep(50);
+        f.complete("all");
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(seen.get()).isEqualTo("all");
+    }
+
+    private static void completeSoon(Runnable completion) {
+        Thread t = new Thread(() -> {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            completion.run();
+        });
+        t.start();
+    }
+}
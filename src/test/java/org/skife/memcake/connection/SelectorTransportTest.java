@@ -0,0 +1,210 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.connection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.skife.memcake.testing.MemcachedRule;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SelectorTransportTest {
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    @ClassRule
+    public static final MemcachedRule mc = new MemcachedRule();
+
+    private SelectorTransport transport;
+    private HashedWheelTimer timer;
+    private Connection c;
+
+    @Before
+    public void setUp() throws Exception {
+        transport = SelectorTransport.create(2);
+        timer = HashedWheelTimer.create();
+        c = Connection.open(mc.getAddress(), 10_000, transport, timer).get();
+        c.flush(0, TIMEOUT).get();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        c.close();
+        timer.close();
+        transport.close();
+    }
+
+    @Test
+    public void testRoundTrips() throws Exception {
+        byte[] key = "selected".getBytes(StandardCharsets.UTF_8);
+        c.set(key, 3, 0, new byte[]{1, 2, 3}, Version.NONE, TIMEOUT).get();
+        Value v = c.get(key, TIMEOUT).get().get();
+        assertThat(v.getValue()).containsExactly(1, 2, 3);
+        assertThat(v.getFlags()).isEqualTo(3);
+
+        c.deleteq(key, Version.NONE, TIMEOUT);
+        assertThat(c.get(key, TIMEOUT).get()).isEmpty();
+        assertThat(c.stat(TIMEOUT).get()).containsKey("pid");
+    }
+
+    @Test
+    public void testDeepPipelineOfLargeValues() throws Exception {
+        // enough to fill the socket's send buffer, so writes have to wait for the loop
+        byte[] large = new byte[256 * 1024];
+        Arrays.fill(large, (byte) 7);
+        List<CompletableFuture<Version>> sets = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            sets.add(c.set(("large-" + i).getBytes(StandardCharsets.UTF_8), 0, 0, large, Version.NONE, TIMEOUT));
+        }
+        for (CompletableFuture<Version> set : sets) {
+            set.get();
+        }
+
+        List<CompletableFuture<Optional<Value>>> gets = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            gets.add(c.get(("large-" + i).getBytes(StandardCharsets.UTF_8), TIMEOUT));
+        }
+        for (CompletableFuture<Optional<Value>> get : gets) {
+            assertThat(get.get().get().getValue()).isEqualTo(large);
+        }
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        List<Thread> threads = new ArrayList<>();
+        List<CompletableFuture<Counter>> counts = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 500; i++) {
+                    CompletableFuture<Counter> count = c.increment("count".getBytes(StandardCharsets.UTF_8),
+                                                                   1,
+                                                                   0,
+                                                                   0,
+                                                                   Version.NONE,
+                                                                   TIMEOUT);
+                    synchronized (counts) {
+                        counts.add(count);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (CompletableFuture<Counter> count : counts) {
+            count.get();
+        }
+        Map<Key, Value> values = c.getMulti(Arrays.asList(Key.of("count")), TIMEOUT).get();
+        // the first increment creates it at the initial value
+        assertThat(new String(values.get(Key.of("count")).getValue(), StandardCharsets.US_ASCII).trim())
+            .isEqualTo("3999");
+    }
+
+    @Test
+    public void testServerGoingAwayFailsTheConnection() throws Throwable {
+        MemcachedRule doomed = new MemcachedRule();
+        doomed.before();
+        Connection dc = Connection.open(doomed.getAddress(), 100, transport, timer).get();
+        dc.noop(TIMEOUT).get();
+
+        CountDownLatch failed = new CountDownLatch(1);
+        dc.addNetworkFailureListener(failed::countDown);
+        doomed.stop();
+        assertThat(failed.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThatThrownBy(() -> dc.noop(TIMEOUT).get()).hasCauseInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    public void testThrowingHandlerOnlyFailsItsOwnChannel() throws Exception {
+        try (SelectorTransport single = SelectorTransport.create(1)) {
+            TransportChannel raw = single.connect(mc.getAddress()).get();
+            ByteBuffer noop = ByteBuffer.allocate(24);
+            noop.put(0, (byte) 0x80).put(1, Opcodes.noop);
+            CompletableFuture<Long> written = new CompletableFuture<>();
+            raw.write(new ByteBuffer[]{noop}, 0, 1, null, handler(written));
+            written.get();
+            CountDownLatch thrown = new CountDownLatch(1);
+            raw.read(ByteBuffer.allocate(24), null, new CompletionHandler<Integer, Object>() {
+                @Override
+                public void completed(Integer result, Object attachment) {
+                    thrown.countDown();
+                    throw new IllegalStateException("handler bug");
+                }
+
+                @Override
+                public void failed(Throwable exc, Object attachment) {
+                }
+            });
+            assertThat(thrown.await(5, TimeUnit.SECONDS)).isTrue();
+
+            // the loop survives, and the channel whose handler threw is closed
+            Connection other = Connection.open(mc.getAddress(), 10, single, timer).get();
+            other.noop(TIMEOUT).get();
+            CompletableFuture<Integer> after = new CompletableFuture<>();
+            raw.read(ByteBuffer.allocate(24), null, handler(after));
+            assertThatThrownBy(() -> after.get(5, TimeUnit.SECONDS)).hasCauseInstanceOf(AsynchronousCloseException.class);
+            other.close();
+        }
+    }
+
+    private static <V> CompletionHandler<V, Object> handler(CompletableFuture<V> cf) {
+        return new CompletionHandler<V, Object>() {
+            @Override
+            public void completed(V result, Object attachment) {
+                cf.complete(result);
+            }
+
+            @Override
+            public void failed(Throwable exc, Object attachment) {
+                cf.completeExceptionally(exc);
+            }
+        };
+    }
+
+    @Test
+    public void testConnectFailureAndClosedTransport() throws Exception {
+        int unused = MemcachedRule.findUnusedPort();
+        assertThatThrownBy(() -> Connection.open(new InetSocketAddress("127.0.0.1", unused),
+                                                 10,
+                                                 transport,
+                                                 timer).get())
+            .hasCauseInstanceOf(IOException.class);
+
+        CompletableFuture<Optional<Value>> outstanding = c.get("never".getBytes(StandardCharsets.UTF_8), TIMEOUT);
+        outstanding.get();
+        transport.close();
+        assertThatThrownBy(() -> Connection.open(mc.getAddress(), 10, transport, timer).get())
+            .hasCauseInstanceOf(IllegalStateException.class);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.connection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.skife.memcake.Memcake;
+import org.skife.memcake.testing.EmbeddedMemcached;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.Assume.assumeTrue;
+
+public class UnixDomainSocketTest {
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private Path socket;
+    private EmbeddedMemcached server;
+    private SelectorTransport transport;
+    private HashedWheelTimer timer;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue("unix domain sockets need Java 16", UnixDomainSockets.isSupported());
+        socket = folder.getRoot().toPath().resolve("memcached.sock");
+        server = EmbeddedMemcached.start(socket);
+        transport = SelectorTransport.create(1);
+        timer = HashedWheelTimer.create();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (server != null) {
+            transport.close();
+            timer.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testPipelinedAndQuietCommands() throws Exception {
+        Connection c = Connection.open(UnixDomainSockets.address(socket), 1000, transport, timer).get();
+        try {
+            List<CompletableFuture<Void>> sets = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                sets.add(c.setq(key(i), i, 0, new byte[]{(byte) i}, Version.NONE, TIMEOUT));
+            }
+            List<CompletableFuture<Optional<Value>>> gets = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                gets.add(c.getq(key(i), TIMEOUT));
+            }
+            CompletableFuture<Optional<Value>> miss = c.getq(key(100), TIMEOUT);
+            c.noop(TIMEOUT).get();
+
+            for (CompletableFuture<Void> set : sets) {
+                assertThat(set).isCompleted();
+            }
+            for (int i = 0; i < 100; i++) {
+                Value v = gets.get(i).getNow(Optional.empty()).get();
+                assertThat(v.getFlags()).isEqualTo(i);
+                assertThat(v.getValue()).containsExactly((byte) i);
+            }
+            assertThat(miss.get()).isEmpty();
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void testLargeValues() throws Exception {
+        Connection c = Connection.open(UnixDomainSockets.address(socket), 1000, transport, timer).get();
+        try {
+            byte[] large = new byte[1024 * 1024];
+            Arrays.fill(large, (byte) 3);
+            List<CompletableFuture<Version>> sets = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                sets.add(c.set(key(i), 0, 0, large, Version.NONE, TIMEOUT));
+            }
+            for (CompletableFuture<Version> set : sets) {
+                set.get();
+            }
+            assertThat(c.get(key(7), TIMEOUT).get().get().getValue()).isEqualTo(large);
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void testClient() throws Exception {
+        try (Memcake mc = Memcake.create(socket, 100, 2, TIMEOUT, timer, transport)) {
+            mc.set("hello", "world").execute().get();
+            mc.set("goodbye", "world").execute().get();
+            assertThat(mc.get("hello").execute().get()).isPresent();
+
+            Map<Key, Value> found = mc.getMulti(Arrays.asList(key("hello"), key("goodbye"), key("nope")))
+                                      .execute()
+                                      .get();
+            assertThat(found).hasSize(2);
+        }
+    }
+
+    @Test
+    public void testSocketRemovedOnClose() throws Exception {
+        assertThat(Files.exists(socket)).isTrue();
+        server.close();
+        assertThat(Files.exists(socket)).isFalse();
+        assertThatThrownBy(() -> Connection.open(UnixDomainSockets.address(socket), 10, transport, timer).get())
+            .hasCauseInstanceOf(IOException.class);
+    }
+
+    @Test
+    public void testAsynchronousTransportRefuses() throws Exception {
+        assertThatThrownBy(() -> AsynchronousTransport.create().connect(UnixDomainSockets.address(socket)).get())
+            .hasCauseInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static byte[] key(int i) {
+        return key("unix-" + i);
+    }
+
+    private static byte[] key(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,823 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.testing;
+
+import org.skife.memcake.connection.UnixDomainSockets;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * An in process stand in for memcached, speaking the binary protocol on a single selector
+ * thread. Covers every command the client sends, including quiet commands (which only answer
+ * errors, or hits for gets) and stat's stream of packets, with memcached's status codes, CAS,
+ * and expiry. Values live on the heap with no eviction, and a restart starts empty.
+ * <p>
+ * Responses can be held back by an artificial latency, see {@link #withLatency(Duration)}.
+ */
+public final class EmbeddedMemcached implements AutoCloseable {
+    private static final byte REQUEST = (byte) 0x80;
+    private static final byte RESPONSE = (byte) 0x81;
+
+    private static final byte GET = 0x00;
+    private static final byte SET = 0x01;
+    private static final byte ADD = 0x02;
+    private static final byte REPLACE = 0x03;
+    private static final byte DELETE = 0x04;
+    private static final byte INCREMENT = 0x05;
+    private static final byte DECREMENT = 0x06;
+    private static final byte QUIT = 0x07;
+    private static final byte FLUSH = 0x08;
+    private static final byte GETQ = 0x09;
+    private static final byte NOOP = 0x0a;
+    private static final byte VERSION = 0x0b;
+    private static final byte GETK = 0x0c;
+    private static final byte GETKQ = 0x0d;
+    private static final byte APPEND = 0x0e;
+    private static final byte PREPEND = 0x0f;
+    private static final byte STAT = 0x10;
+    private static final byte SETQ = 0x11;
+    private static final byte ADDQ = 0x12;
+    private static final byte REPLACEQ = 0x13;
+    private static final byte DELETEQ = 0x14;
+    private static final byte INCREMENTQ = 0x15;
+    private static final byte DECREMENTQ = 0x16;
+    private static final byte QUITQ = 0x17;
+    private static final byte FLUSHQ = 0x18;
+    private static final byte APPENDQ = 0x19;
+    private static final byte PREPENDQ = 0x1a;
+
+    private static final int NOT_FOUND = 0x01;
+    private static final int EXISTS = 0x02;
+    private static final int TOO_LARGE = 0x03;
+    private static final int INVALID_ARGUMENTS = 0x04;
+    private static final int NOT_STORED = 0x05;
+    private static final int NON_NUMERIC = 0x06;
+    private static final int UNKNOWN_COMMAND = 0x81;
+
+    private static final String VERSION_STRING = "1.4.39-embedded";
+    private static final int MAX_KEY_LENGTH = 250;
+    // as if run with -I 16m, so tests can use values past the default megabyte
+    private static final int MAX_VALUE_LENGTH = 16 * 1024 * 1024;
+    // expirations up to thirty days are relative, anything larger is a unix time
+    private static final long MAX_RELATIVE_EXPIRY = 60 * 60 * 24 * 30;
+    // stop reading from a client which has this much waiting to be written to it
+    private static final int HIGH_WATER = 4 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final int port;
+    // null unless listening on a unix domain socket
+    private final Path socket;
+    private final Thread loop;
+    private volatile boolean running = true;
+    private volatile long latencyNanos = 0;
+
+    // everything below is only touched by the loop
+    private final Map<ByteBuffer, Item> items = new HashMap<>();
+    private final PriorityQueue<Delayed> delayed = new PriorityQueue<>();
+    private final long startedAt = System.currentTimeMillis();
+    private long flushAt = 0;
+    private long nextCas = 1;
+    private long sequence = 0;
+    private long totalItems = 0;
+    private long totalConnections = 0;
+    private long currentConnections = 0;
+    private long gets = 0;
+    private long sets = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    private EmbeddedMemcached(ServerSocketChannel server, Selector selector, int port, Path socket) {
+        this.server = server;
+        this.selector = selector;
+        this.port = port;
+        this.socket = socket;
+        this.loop = new Thread(this::run, "embedded-memcached-" + (socket == null ? port : socket.getFileName()));
+        this.loop.setDaemon(true);
+    }
+
+    /**
+     * Listen on an ephemeral port.
+     */
+    public static EmbeddedMemcached start() throws IOException {
+        return start(0);
+    }
+
+    public static EmbeddedMemcached start(int port) throws IOException {
+        Selector selector = Selector.open();
+        ServerSocketChannel server = ServerSocketChannel.open();
+        try {
+            server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            server.bind(new InetSocketAddress(port), 1024);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            server.close();
+            selector.close();
+            throw e;
+        }
+        int bound = ((InetSocketAddress) server.getLocalAddress()).getPort();
+        EmbeddedMemcached mc = new EmbeddedMemcached(server, selector, bound, null);
+        mc.loop.start();
+        return mc;
+    }
+
+    /**
+     * Listen on a unix domain socket, as memcached does with {@code -s}. Needs Java 16 or later.
+     * The socket is removed on close.
+     */
+    public static EmbeddedMemcached start(Path socket) throws IOException {
+        SocketAddress address = UnixDomainSockets.address(socket);
+        Selector selector = Selector.open();
+        ServerSocketChannel server;
+        try {
+            // ServerSocketChannel.open(ProtocolFamily) is only there from Java 15
+            Method open = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+            server = (ServerSocketChannel) open.invoke(null, StandardProtocolFamily.valueOf("UNIX"));
+        } catch (ReflectiveOperationException e) {
+            selector.close();
+            throw new IOException("unable to open unix domain socket", e);
+        }
+        try {
+            server.bind(address, 1024);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            server.close();
+            selector.close();
+            throw e;
+        }
+        EmbeddedMemcached mc = new EmbeddedMemcached(server, selector, 0, socket);
+        mc.loop.start();
+        return mc;
+    }
+
+    /**
+     * Hold every response back for {@code latency} before sending it, to the nearest
+     * millisecond. Responses are still sent in order. May be changed while running.
+     *
+     * @return this server
+     */
+    public EmbeddedMemcached withLatency(Duration latency) {
+        this.latencyNanos = latency.toNanos();
+        selector.wakeup();
+        return this;
+    }
+
+    /**
+     * @throws IllegalStateException if listening on a unix domain socket
+     */
+    public InetSocketAddress getAddress() {
+        if (socket != null) {
+            throw new IllegalStateException("listening on " + socket + ", not a port");
+        }
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    }
+
+    /**
+     * @return the loopback address and port, or the unix domain socket, being listened on
+     */
+    public SocketAddress getSocketAddress() {
+        return socket == null ? getAddress() : UnixDomainSockets.address(socket);
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Stop listening and drop every connection.
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            loop.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select(releaseDue());
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Client client = (Client) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            client.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            client.flush();
+                        }
+                    } catch (IOException e) {
+                        client.close();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // nothing more to be done, shut down
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Client) {
+                    ((Client) key.attachment()).close();
+                }
+            }
+            closeQuietly(server);
+            closeQuietly(selector);
+            if (socket != null) {
+                try {
+                    Files.deleteIfExists(socket);
+                } catch (IOException e) {
+                    // left behind, nothing to be done
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            if (socket == null) {
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            }
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Client(channel, key));
+            totalConnections++;
+            currentConnections++;
+        }
+    }
+
+    /**
+     * Send the responses whose delay is up.
+     *
+     * @return milliseconds until the next is due, or zero if none are waiting
+     */
+    private long releaseDue() {
+        long now = System.nanoTime();
+        Delayed next;
+        while ((next = delayed.peek()) != null && next.due <= now) {
+            delayed.poll();
+            next.client.delayedChunks--;
+            if (next.client.open) {
+                next.client.append(next.bytes);
+                try {
+                    next.client.flush();
+                } catch (IOException e) {
+                    next.client.close();
+                }
+            }
+        }
+        if (next == null) {
+            return 0;
+        }
+        return Math.max(1, (next.due - now + 999_999) / 1_000_000);
+    }
+
+    private final class Client {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        // responses waiting to be written, in write mode
+        private ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+        private boolean open = true;
+        private boolean quitting = false;
+        // responses held back by latency, later ones must wait their turn behind them
+        private int delayedChunks = 0;
+        private long lastDue = 0;
+
+        Client(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            in.flip();
+            int start = out.position();
+            while (!quitting && in.remaining() >= 24) {
+                int p = in.position();
+                if (in.get(p) != REQUEST) {
+                    close();
+                    return;
+                }
+                int bodyLength = in.getInt(p + 8);
+                if (in.remaining() - 24 < bodyLength) {
+                    if (in.capacity() < 24 + bodyLength) {
+                        ByteBuffer bigger = ByteBuffer.allocate(24 + bodyLength);
+                        bigger.put(in);
+                        bigger.flip();
+                        in = bigger;
+                    }
+                    break;
+                }
+                process(in, p, bodyLength);
+                in.position(p + 24 + bodyLength);
+            }
+            in.compact();
+
+            long latency = latencyNanos;
+            if ((latency > 0 || delayedChunks > 0) && out.position() > start) {
+                byte[] chunk = new byte[out.position() - start];
+                out.position(start);
+                out.duplicate().get(chunk);
+                lastDue = Math.max(lastDue, System.nanoTime() + latency);
+                delayed.add(new Delayed(lastDue, sequence++, this, chunk));
+                delayedChunks++;
+            }
+            flush();
+        }
+
+        void flush() throws IOException {
+            if (!open) {
+                return;
+            }
+            out.flip();
+            channel.write(out);
+            out.compact();
+            if (quitting && out.position() == 0 && delayedChunks == 0) {
+                close();
+                return;
+            }
+            int ops = 0;
+            if (!quitting && out.position() < HIGH_WATER) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (out.position() > 0) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        void close() {
+            if (open) {
+                open = false;
+                currentConnections--;
+                key.cancel();
+                closeQuietly(channel);
+            }
+        }
+
+        void append(byte[] bytes) {
+            ensure(bytes.length);
+            out.put(bytes);
+        }
+
+        private void ensure(int length) {
+            if (out.remaining() < length) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + length));
+                out.flip();
+                bigger.put(out);
+                out = bigger;
+            }
+        }
+
+        private void process(ByteBuffer in, int p, int bodyLength) {
+            byte opcode = in.get(p + 1);
+            int keyLength = in.getChar(p + 2);
+            int extrasLength = in.get(p + 4) & 0xff;
+            int opaque = in.getInt(p + 12);
+            long cas = in.getLong(p + 16);
+            int extras = p + 24;
+            int valueLength = bodyLength - extrasLength - keyLength;
+
+            ByteBuffer key = in.duplicate();
+            key.limit(extras + extrasLength + keyLength).position(extras + extrasLength);
+            ByteBuffer value = in.duplicate();
+            value.limit(extras + bodyLength).position(extras + extrasLength + keyLength);
+
+            if (keyLength > MAX_KEY_LENGTH || valueLength < 0) {
+                error(opcode, INVALID_ARGUMENTS, opaque, "Invalid arguments");
+                return;
+            }
+
+            switch (opcode) {
+                case GET:
+                case GETQ:
+                case GETK:
+                case GETKQ:
+                    get(opcode, key, opaque);
+                    break;
+                case SET:
+                case SETQ:
+                case ADD:
+                case ADDQ:
+                case REPLACE:
+                case REPLACEQ:
+                    if (extrasLength != 8 || keyLength == 0) {
+                        error(opcode, INVALID_ARGUMENTS, opaque, "Invalid arguments");
+                        break;
+                    }
+                    store(opcode, key, in.getInt(extras), in.getInt(extras + 4), value, cas, opaque);
+                    break;
+                case APPEND:
+                case APPENDQ:
+                case PREPEND:
+                case PREPENDQ:
+                    concat(opcode, key, value, cas, opaque);
+                    break;
+                case DELETE:
+                case DELETEQ:
+                    delete(opcode, key, cas, opaque);
+                    break;
+                case INCREMENT:
+                case INCREMENTQ:
+                case DECREMENT:
+                case DECREMENTQ:
+                    if (extrasLength != 20) {
+                        error(opcode, INVALID_ARGUMENTS, opaque, "Invalid arguments");
+                        break;
+                    }
+                    count(opcode,
+                          key,
+                          in.getLong(extras),
+                          in.getLong(extras + 8),
+                          in.getInt(extras + 16),
+                          cas,
+                          opaque);
+                    break;
+                case QUIT:
+                    respond(opcode, 0, opaque, 0);
+                    quitting = true;
+                    break;
+                case QUITQ:
+                    quitting = true;
+                    break;
+                case FLUSH:
+                case FLUSHQ:
+                    flushAll(extrasLength == 4 ? in.getInt(extras) : 0);
+                    if (opcode == FLUSH) {
+                        respond(opcode, 0, opaque, 0);
+                    }
+                    break;
+                case NOOP:
+                    respond(opcode, 0, opaque, 0);
+                    break;
+                case VERSION:
+                    header(opcode, 0, 0, 0, VERSION_STRING.length(), opaque, 0);
+                    out.put(VERSION_STRING.getBytes(StandardCharsets.US_ASCII));
+                    break;
+                case STAT:
+                    stat(key, opaque);
+                    break;
+                default:
+                    error(opcode, UNKNOWN_COMMAND, opaque, "Unknown command");
+            }
+        }
+
+        private void get(byte opcode, ByteBuffer key, int opaque) {
+            gets++;
+            Item item = live(key);
+            if (item == null) {
+                misses++;
+                if (opcode == GET || opcode == GETK) {
+                    error(opcode, NOT_FOUND, opaque, "Not found");
+                }
+                return;
+            }
+            hits++;
+            int keyLength = opcode == GETK || opcode == GETKQ ? key.remaining() : 0;
+            header(opcode, keyLength, 4, 0, 4 + keyLength + item.value.length, opaque, item.cas);
+            out.putInt(item.flags);
+            if (keyLength > 0) {
+                out.put(key.duplicate());
+            }
+            out.put(item.value);
+        }
+
+        private void store(byte opcode, ByteBuffer key, int flags, int expiry, ByteBuffer value, long cas, int opaque) {
+            sets++;
+            if (value.remaining() > MAX_VALUE_LENGTH) {
+                error(opcode, TOO_LARGE, opaque, "Too large.");
+                return;
+            }
+            Item existing = live(key);
+            if ((opcode == ADD || opcode == ADDQ) && existing != null) {
+                error(opcode, EXISTS, opaque, "Data exists for key.");
+                return;
+            }
+            if ((opcode == REPLACE || opcode == REPLACEQ) && existing == null) {
+                error(opcode, NOT_FOUND, opaque, "Not found");
+                return;
+            }
+            if (!casMatches(opcode, existing, cas, opaque)) {
+                return;
+            }
+            byte[] bytes = new byte[value.remaining()];
+            value.duplicate().get(bytes);
+            Item item = put(key, flags, expiresAt(expiry), bytes);
+            if (opcode == SET || opcode == ADD || opcode == REPLACE) {
+                respond(opcode, 0, opaque, item.cas);
+            }
+        }
+
+        private void concat(byte opcode, ByteBuffer key, ByteBuffer value, long cas, int opaque) {
+            Item existing = live(key);
+            if (existing == null) {
+                error(opcode, NOT_STORED, opaque, "Not stored.");
+                return;
+            }
+            if (!casMatches(opcode, existing, cas, opaque)) {
+                return;
+            }
+            byte[] bytes = new byte[existing.value.length + value.remaining()];
+            if (opcode == APPEND || opcode == APPENDQ) {
+                System.arraycopy(existing.value, 0, bytes, 0, existing.value.length);
+                value.duplicate().get(bytes, existing.value.length, value.remaining());
+            }
+            else {
+                value.duplicate().get(bytes, 0, value.remaining());
+                System.arraycopy(existing.value, 0, bytes, value.remaining(), existing.value.length);
+            }
+            Item item = put(key, existing.flags, existing.expiresAt, bytes);
+            if (opcode == APPEND || opcode == PREPEND) {
+                respond(opcode, 0, opaque, item.cas);
+            }
+        }
+
+        private void delete(byte opcode, ByteBuffer key, long cas, int opaque) {
+            Item existing = live(key);
+            if (existing == null) {
+                error(opcode, NOT_FOUND, opaque, "Not found");
+                return;
+            }
+            if (!casMatches(opcode, existing, cas, opaque)) {
+                return;
+            }
+            items.remove(key);
+            if (opcode == DELETE) {
+                respond(opcode, 0, opaque, 0);
+            }
+        }
+
+        private void count(byte opcode, ByteBuffer key, long delta, long initial, int expiry, long cas, int opaque) {
+            Item existing = live(key);
+            long counter;
+            Item item;
+            if (existing == null) {
+                // an expiry of all ones means fail rather than create
+                if (expiry == -1) {
+                    error(opcode, NOT_FOUND, opaque, "Not found");
+                    return;
+                }
+                counter = initial;
+                item = put(key, 0, expiresAt(expiry), decimal(counter));
+            }
+            else {
+                if (!casMatches(opcode, existing, cas, opaque)) {
+                    return;
+                }
+                long current;
+                try {
+                    current = Long.parseUnsignedLong(new String(existing.value, StandardCharsets.US_ASCII).trim());
+                } catch (NumberFormatException e) {
+                    error(opcode, NON_NUMERIC, opaque, "Non-numeric server-side value for incr or decr");
+                    return;
+                }
+                if (opcode == INCREMENT || opcode == INCREMENTQ) {
+                    // wraps at 2^64, as memcached does
+                    counter = current + delta;
+                }
+                else {
+                    counter = Long.compareUnsigned(current, delta) < 0 ? 0 : current - delta;
+                }
+                item = put(key, existing.flags, existing.expiresAt, decimal(counter));
+            }
+            if (opcode == INCREMENT || opcode == DECREMENT) {
+                header(opcode, 0, 0, 0, 8, opaque, item.cas);
+                out.putLong(counter);
+            }
+        }
+
+        private void stat(ByteBuffer key, int opaque) {
+            String group = StandardCharsets.US_ASCII.decode(key.duplicate()).toString();
+            Map<String, String> stats = new LinkedHashMap<>();
+            if (group.isEmpty()) {
+                String name = ManagementFactory.getRuntimeMXBean().getName();
+                stats.put("pid", name.contains("@") ? name.substring(0, name.indexOf('@')) : "0");
+                stats.put("uptime", String.valueOf((System.currentTimeMillis() - startedAt) / 1000));
+                stats.put("time", String.valueOf(System.currentTimeMillis() / 1000));
+                stats.put("version", VERSION_STRING);
+                stats.put("curr_connections", String.valueOf(currentConnections));
+                stats.put("total_connections", String.valueOf(totalConnections));
+                stats.put("cmd_get", String.valueOf(gets));
+                stats.put("cmd_set", String.valueOf(sets));
+                stats.put("get_hits", String.valueOf(hits));
+                stats.put("get_misses", String.valueOf(misses));
+                stats.put("curr_items", String.valueOf(liveItems()));
+                stats.put("total_items", String.valueOf(totalItems));
+            }
+            else if (group.equals("items")) {
+                // everything is in the one slab class
+                stats.put("items:1:number", String.valueOf(liveItems()));
+            }
+            else {
+                error(STAT, NOT_FOUND, opaque, "Not found");
+                return;
+            }
+            for (Map.Entry<String, String> stat : stats.entrySet()) {
+                byte[] k = stat.getKey().getBytes(StandardCharsets.US_ASCII);
+                byte[] v = stat.getValue().getBytes(StandardCharsets.US_ASCII);
+                header(STAT, k.length, 0, 0, k.length + v.length, opaque, 0);
+                out.put(k);
+                out.put(v);
+            }
+            respond(STAT, 0, opaque, 0);
+        }
+
+        private boolean casMatches(byte opcode, Item existing, long cas, int opaque) {
+            if (cas == 0) {
+                return true;
+            }
+            if (existing == null) {
+                error(opcode, NOT_FOUND, opaque, "Not found");
+                return false;
+            }
+            if (existing.cas != cas) {
+                error(opcode, EXISTS, opaque, "Data exists for key.");
+                return false;
+            }
+            return true;
+        }
+
+        private void respond(byte opcode, int status, int opaque, long cas) {
+            header(opcode, 0, 0, status, 0, opaque, cas);
+        }
+
+        private void error(byte opcode, int status, int opaque, String message) {
+            byte[] body = message.getBytes(StandardCharsets.US_ASCII);
+            header(opcode, 0, 0, status, body.length, opaque, 0);
+            out.put(body);
+        }
+
+        /**
+         * Write a response header, making room for the body which follows it.
+         */
+        private void header(byte opcode, int keyLength, int extrasLength, int status, int bodyLength, int opaque, long cas) {
+            ensure(24 + bodyLength);
+            out.put(RESPONSE);
+            out.put(opcode);
+            out.putChar((char) keyLength);
+            out.put((byte) extrasLength);
+            out.put((byte) 0x00); // data type
+            out.putChar((char) status);
+            out.putInt(bodyLength);
+            out.putInt(opaque);
+            out.putLong(cas);
+        }
+    }
+
+    /**
+     * @param key looked up by its remaining bytes, it is not kept
+     */
+    private Item live(ByteBuffer key) {
+        long now = System.currentTimeMillis();
+        if (flushAt != 0 && flushAt <= now) {
+            items.clear();
+            flushAt = 0;
+        }
+        Item item = items.get(key);
+        if (item != null && item.expired(now)) {
+            items.remove(key);
+            return null;
+        }
+        return item;
+    }
+
+    private Item put(ByteBuffer key, int flags, long expiresAt, byte[] value) {
+        byte[] k = new byte[key.remaining()];
+        key.duplicate().get(k);
+        Item item = new Item(flags, expiresAt, nextCas++, value);
+        items.put(ByteBuffer.wrap(k), item);
+        totalItems++;
+        return item;
+    }
+
+    private void flushAll(int expiry) {
+        if (expiry == 0) {
+            items.clear();
+            flushAt = 0;
+        }
+        else {
+            flushAt = expiresAt(expiry);
+        }
+    }
+
+    private long liveItems() {
+        long now = System.currentTimeMillis();
+        items.values().removeIf((item) -> item.expired(now));
+        return items.size();
+    }
+
+    private static long expiresAt(int expiry) {
+        long seconds = Integer.toUnsignedLong(expiry);
+        if (seconds == 0) {
+            return 0;
+        }
+        if (seconds <= MAX_RELATIVE_EXPIRY) {
+            return System.currentTimeMillis() + seconds * 1000;
+        }
+        return seconds * 1000;
+    }
+
+    private static byte[] decimal(long counter) {
+        return Long.toUnsignedString(counter).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            // nothing to be done
+        }
+    }
+
+    private static final class Item {
+        private final int flags;
+        private final long expiresAt;
+        private final long cas;
+        private final byte[] value;
+
+        Item(int flags, long expiresAt, long cas, byte[] value) {
+            this.flags = flags;
+            this.expiresAt = expiresAt;
+            this.cas = cas;
+            this.value = value;
+        }
+
+        boolean expired(long now) {
+            return expiresAt != 0 && expiresAt <= now;
+        }
+    }
+
+    private static final class Delayed implements Comparable<Delayed> {
+        private final long due;
+        private final long sequence;
+        private final Client client;
+        private final byte[] bytes;
+
+        Delayed(long due, long sequence, Client client, byte[] bytes) {
+            this.due = due;
+            this.sequence = sequence;
+            this.client = client;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            int c = Long.compare(due, o.due);
+            return c != 0 ? c : Long.compare(sequence, o.sequence);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.skife.memcake.testing;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.skife.memcake.connection.Connection;
+import org.skife.memcake.connection.HashedWheelTimer;
+import org.skife.memcake.connection.StatusException;
+import org.skife.memcake.connection.Version;
+
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class EmbeddedMemcachedTest {
+    private static final Duration TIMEOUT = Duration.ofSeconds(2);
+
+    private EmbeddedMemcached server;
+    private HashedWheelTimer timer;
+    private Connection c;
+
+    @Before
+    public void setUp() throws Exception {
+        server = EmbeddedMemcached.start();
+        timer = HashedWheelTimer.create();
+        c = Connection.open(server.getAddress(), 1000, AsynchronousSocketChannel.open(), timer).get();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        c.close();
+        timer.close();
+        server.close();
+    }
+
+    @Test
+    public void testQuietCommandsOnlyAnswerErrors() throws Exception {
+        byte[] key = "counter".getBytes(StandardCharsets.UTF_8);
+        CompletableFuture<Void> set = c.setq(key, 0, 0, "41".getBytes(StandardCharsets.US_ASCII), Version.NONE, TIMEOUT);
+        CompletableFuture<Void> incr = c.incrementq(key, 1, 0, 0, Version.NONE, TIMEOUT);
+        CompletableFuture<Void> add = c.addq(key, 0, 0, new byte[]{1}, TIMEOUT);
+        c.noop(TIMEOUT).get();
+
+        set.get();
+        incr.get();
+        assertThatThrownBy(add::get).isInstanceOf(ExecutionException.class)
+                                    .hasCauseInstanceOf(StatusException.class);
+        assertThat(c.get(key, TIMEOUT).get().get().getValue()).isEqualTo("42".getBytes(StandardCharsets.US_ASCII));
+        assertThat(c.getq("nope".getBytes(StandardCharsets.UTF_8), TIMEOUT)
+                    .thenCombine(c.noop(TIMEOUT), (v, n) -> v)
+                    .get()).isEmpty();
+    }
+
+    @Test
+    public void testLatencyKeepsResponsesInOrder() throws Exception {
+        server.withLatency(Duration.ofMillis(50));
+        long start = System.nanoTime();
+        List<CompletableFuture<Version>> sets = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            sets.add(c.set("slow".getBytes(StandardCharsets.UTF_8), 0, 0, new byte[]{(byte) i}, Version.NONE, TIMEOUT));
+        }
+        // give the server time to read them, then dropping the latency must not let later
+        // responses overtake those held back
+        Thread.sleep(20);
+        server.withLatency(Duration.ZERO);
+        Version last = c.set("slow".getBytes(StandardCharsets.UTF_8), 0, 0, new byte[]{10}, Version.NONE, TIMEOUT).get();
+        assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(Duration.ofMillis(50).toNanos());
+        for (CompletableFuture<Version> set : sets) {
+            assertThat(set.isDone()).isTrue();
+            assertThat(set.get()).isNotEqualTo(last);
+        }
+    }
+
+    @Test
+    public void testStatIsAStreamOfPackets() throws Exception {
+        c.set("a".getBytes(StandardCharsets.UTF_8), 0, 0, new byte[]{1}, Version.NONE, TIMEOUT).get();
+        assertThat(c.stat(TIMEOUT).get()).containsEntry("curr_items", "1")
+                                         .containsEntry("curr_connections", "1")
+                                         .containsKey("pid");
+        assertThat(c.stat("items", TIMEOUT).get()).containsEntry("items:1:number", "1");
+    }
+}
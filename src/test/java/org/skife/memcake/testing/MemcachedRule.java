@@ -20,15 +20,24 @@ import org.zeroturnaround.exec.ProcessExecutor;
 import org.zeroturnaround.exec.StartedProcess;
 import org.zeroturnaround.exec.stream.slf4j.Slf4jStream;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 
+/**
+ * Runs a memcached for the duration of a test. This is the {@code memcached} on the PATH, if
+ * there is one, or else an {@link EmbeddedMemcached}. Set {@code -Dmemcake.memcached} to
+ * {@code embedded}, or to the command to run, to choose.
+ */
 public class MemcachedRule extends ExternalResource {
     private static final Logger log = LoggerFactory.getLogger(MemcachedRule.class);
+    private static final String COMMAND = System.getProperty("memcake.memcached",
+                                                             onPath("memcached") ? "memcached" : "embedded");
 
     private StartedProcess process;
+    private EmbeddedMemcached embedded;
     private int port;
 
     @Override
@@ -38,8 +47,12 @@ public class MemcachedRule extends ExternalResource {
     }
 
     public void start() throws IOException {
-        log.info("starting memcached on {}", port);
-        this.process = new ProcessExecutor().command("memcached", "-p", port + "")
+        log.info("starting {} on {}", COMMAND, port);
+        if (COMMAND.equals("embedded")) {
+            this.embedded = EmbeddedMemcached.start(port);
+            return;
+        }
+        this.process = new ProcessExecutor().command(COMMAND, "-p", port + "")
                                             .redirectOutput(Slf4jStream.of(log).asDebug())
                                             .redirectError(Slf4jStream.of(log).asInfo())
                                             .start();
@@ -58,6 +71,11 @@ public class MemcachedRule extends ExternalResource {
 
     public void stop() {
         log.info("stopping memcached on {}", port);
+        if (embedded != null) {
+            embedded.close();
+            embedded = null;
+            return;
+        }
         Process p = process.getProcess().destroyForcibly();
         while (p.isAlive()) {
             try {
@@ -77,6 +95,19 @@ public class MemcachedRule extends ExternalResource {
         return new InetSocketAddress(port);
     }
 
+    private static boolean onPath(String command) {
+        String path = System.getenv("PATH");
+        if (path == null) {
+            return false;
+        }
+        for (String dir : path.split(File.pathSeparator)) {
+            if (new File(dir, command).canExecute()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public static synchronized int findUnusedPort() {
         try (ServerSocket socket = new ServerSocket()) {
             socket.bind(new InetSocketAddress(0));